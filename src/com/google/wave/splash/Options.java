@@ -27,12 +27,148 @@ public interface Options {
    */
   boolean alwaysReloadTemplates();
 
+  /**
+   * True if the hot template fragments (blips, headers and feeds) are rendered
+   * by their compiled java renderers instead of MVEL. Turn this off while
+   * editing those fragments.
+   */
+  boolean precompiledTemplates();
+
   /**
    * Number of characters that is considered one page in a paging set, breaks
    * up the wave into pages along this guide.
    */
   int charsPerPage();
 
+  /**
+   * As {@link #charsPerPage}, for waves rendered compactly for the mobile
+   * client.
+   */
+  int compactCharsPerPage();
+
+  /**
+   * Minimum number of blips on a page before their bodies are rendered in
+   * parallel rather than one after the other. Zero disables parallel rendering.
+   */
+  int parallelRenderThreshold();
+
+  /**
+   * True if inline reply threads are left out of rendered waves, showing only
+   * their reply counts, and are fetched by the client when expanded.
+   */
+  boolean lazyInlineReplies();
+
+  /**
+   * Longest time a client's update poll is held open waiting for the open
+   * wave to change, in milliseconds. Not used in appengine mode, where polls
+   * are answered right away.
+   */
+  int longPollTimeoutMillis();
+
+  /**
+   * How often a wave that clients are waiting on is checked for changes, in
+   * milliseconds. There is one check per wave, however many clients wait.
+   */
+  int longPollCheckMillis();
+
+  /**
+   * How long a wave fetched from the backend is shared by everyone polling it,
+   * in milliseconds. A wave is refreshed from the backend at most this often,
+   * however many clients view it.
+   */
+  int waveRefreshMillis();
+
+  /**
+   * How long edits are held before being sent to the backend, in
+   * milliseconds. All edits a client makes to a wave in that time go out in
+   * one batch, and only the last edit to each blip is sent. Edits are sent
+   * with the request that made them if 0, and always on appengine.
+   */
+  int editCoalesceMillis();
+
+  /**
+   * Longest time a Server-Sent Events stream of updates is kept open, in
+   * milliseconds, after which the browser reconnects. Each open stream holds
+   * a request thread.
+   */
+  int eventStreamMillis();
+
+  /**
+   * Most Server-Sent Events streams open at once. Clients turned away long
+   * poll instead.
+   */
+  int eventStreamCapacity();
+
+  /**
+   * Longest time an rpc request is suspended waiting on the wave backend, in
+   * milliseconds, after which it waits holding its thread like it would in
+   * appengine mode.
+   */
+  int rpcSuspendMillis();
+
+  /**
+   * Smallest rpc response that is gzipped for clients that accept it, in
+   * characters of json. Smaller responses are not worth the cpu.
+   */
+  int rpcGzipThreshold();
+
+  /**
+   * Most rpc requests the server works on at once, or 0 for no limit. Requests
+   * beyond that wait up to {@link #rpcAdmissionWaitMillis()} to be admitted.
+   */
+  int rpcCapacity();
+
+  /**
+   * Most rpc requests in flight at which background rpcs, like polls for
+   * updates, are still admitted. Kept below {@link #rpcCapacity()} so the rest
+   * is left to the rpcs users wait on.
+   */
+  int backgroundRpcCapacity();
+
+  /**
+   * Most requests for any one rpc the server works on at once, or 0 for no
+   * limit.
+   */
+  int rpcConcurrency();
+
+  /**
+   * Limits on requests for particular rpcs the server works on at once, that
+   * override {@link #rpcConcurrency()}. For example 'open_wave:16,search:8'.
+   */
+  String rpcConcurrencyLimits();
+
+  /**
+   * Longest time an rpc request waits to be admitted when the server is busy,
+   * in milliseconds, after which it is turned away with 503.
+   */
+  int rpcAdmissionWaitMillis();
+
+  /**
+   * Steady number of rpc requests a session may send per second, or 0 for no
+   * limit. Anonymous users, who share a session, are not limited, and neither
+   * are requests for the later pages of a wave.
+   */
+  int sessionRpcsPerSecond();
+
+  /**
+   * Number of rpc requests a session may send in a burst, above its steady
+   * rate.
+   */
+  int sessionRpcBurst();
+
+  /**
+   * Directory to keep rendered permalink pages in for crawlers, so they can be
+   * served without going to the wave backend. Empty to keep them in memory only.
+   */
+  String crawlerSnapshotDirectory();
+
+  /**
+   * How long clients may keep static resources (scripts, styles and images)
+   * without revalidating them, in seconds. Only applies in production mode,
+   * in development they always revalidate.
+   */
+  int resourceMaxAgeSeconds();
+
   /**
    * @return true if Ripple should render header buttons.
    */
@@ -59,6 +195,12 @@ public interface Options {
    */
   boolean enableProfileFetching();
 
+  /**
+   * @return true if clients may stream updates over Server-Sent Events rather
+   *     than long poll for them. Off by default, as each stream holds a thread.
+   */
+  boolean enableEventStreams();
+
   /**
    * Returns whether we're in production mode or not. Generally in production
    * mode templates are compressed and scripts are minified. In development by
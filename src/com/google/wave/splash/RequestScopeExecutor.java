@@ -16,6 +16,9 @@
  */
 package com.google.wave.splash;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
 /**
  * Interface for submitting jobs within a request scope. Implementors can
  * perform logic before submitting the runnable to an executor if necessary,
@@ -30,4 +33,12 @@ public interface RequestScopeExecutor {
    * @param runnable the runnable to execute.
    */
   void submit(Runnable runnable);
+
+  /**
+   * Submits a task to the executor, whose result the caller will wait for.
+   *
+   * @param task the task to execute.
+   * @return the pending result of the task.
+   */
+  <T> Future<T> submit(Callable<T> task);
 }
@@ -17,7 +17,9 @@
 package com.google.wave.splash;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Scopes;
+import com.google.inject.name.Names;
 import com.google.inject.servlet.ServletModule;
 import com.google.inject.servlet.SessionScoped;
 import com.google.wave.splash.auth.oauth.OAuthModule;
@@ -38,7 +40,11 @@ import java.util.List;
 import java.util.ResourceBundle;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -49,6 +55,7 @@ import java.util.concurrent.TimeUnit;
  */
 class SplashModule extends ServletModule {
   private static int THREAD_POOL_SIZE = 10;
+  private static int RENDER_POOL_SIZE = Runtime.getRuntime().availableProcessors();
 
   static class OsfeRpcMethods implements RpcMethods {
     private final List<String> methodList;
@@ -67,10 +74,19 @@ class SplashModule extends ServletModule {
     }
   }
 
+  private final Options options;
+
+  SplashModule() {
+    // Note: this is the default development options, but will be different in LFE.
+    this(loadOptions());
+  }
+
+  SplashModule(Options options) {
+    this.options = options;
+  }
+
   @Override
   protected void configureServlets() {
-    // Note: this is the default development options, but will be different in LFE.
-    Options options = loadOptions();
     bind(Options.class).toInstance(options);
 
     install(new WebServletModule(options));
@@ -81,8 +97,21 @@ class SplashModule extends ServletModule {
     // Prefetch thread pool, job queue.
     if (options.enableAppengineMode()) {
       bind(ExecutorService.class).toInstance(new DummyExecutorService());
+      bind(ExecutorService.class).annotatedWith(Names.named("render"))
+          .toInstance(MoreExecutors.sameThreadExecutor());
+
+      // Nothing is scheduled in appengine mode, but it must be injectable.
+      bind(ScheduledExecutorService.class).toInstance(new DummyScheduledExecutorService());
     } else {
       bind(ExecutorService.class).toInstance(Executors.newFixedThreadPool(THREAD_POOL_SIZE));
+
+      // Blip rendering is cpu-bound, so one thread per core.
+      bind(ExecutorService.class).annotatedWith(Names.named("render"))
+          .toInstance(Executors.newFixedThreadPool(RENDER_POOL_SIZE));
+
+      // Checks of waves that clients are long-polling.
+      bind(ScheduledExecutorService.class)
+          .toInstance(Executors.newScheduledThreadPool(THREAD_POOL_SIZE));
     }
     bind(RpcMethods.class).to(OsfeRpcMethods.class).in(Scopes.SINGLETON);
 
@@ -149,4 +178,35 @@ class SplashModule extends ServletModule {
     public void execute(Runnable command) {
     }
   }
+
+  /**
+   * A scheduled executor service that refuses to schedule anything, for
+   * appengine. Work that would be scheduled is done right away there instead,
+   * so any attempt to schedule is a bug we want to hear about.
+   */
+  private static class DummyScheduledExecutorService extends DummyExecutorService
+      implements ScheduledExecutorService {
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      throw new RejectedExecutionException("Cannot schedule work in appengine mode");
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+      throw new RejectedExecutionException("Cannot schedule work in appengine mode");
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+        long period, TimeUnit unit) {
+      throw new RejectedExecutionException("Cannot schedule work in appengine mode");
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+        long delay, TimeUnit unit) {
+      throw new RejectedExecutionException("Cannot schedule work in appengine mode");
+    }
+  }
 }
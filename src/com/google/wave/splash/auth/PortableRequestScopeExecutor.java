@@ -17,12 +17,17 @@
 package com.google.wave.splash.auth;
 
 import com.google.inject.Inject;
+import com.google.inject.Key;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
 import com.google.wave.splash.PortableRequestScope;
 import com.google.wave.splash.RequestScopeExecutor;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,17 +39,20 @@ import java.util.logging.Logger;
 @Singleton
 public class PortableRequestScopeExecutor implements RequestScopeExecutor {
   private final static Logger LOG = Logger.getLogger(PortableRequestScopeExecutor.class.getName());
+  private static final Key<String> REQUEST_URL = Key.get(String.class, Names.named("requestUrl"));
 
   private final ExecutorService executor;
   private final PortableRequestScope requestScope;
   private final Provider<SessionContext> sessionProvider;
+  private final Provider<String> requestUrl;
 
   @Inject
   PortableRequestScopeExecutor(ExecutorService executor, PortableRequestScope requestScope,
-      Provider<SessionContext> sessionProvider) {
+      Provider<SessionContext> sessionProvider, @Named("requestUrl") Provider<String> requestUrl) {
     this.executor = executor;
     this.requestScope = requestScope;
     this.sessionProvider = sessionProvider;
+    this.requestUrl = requestUrl;
   }
 
   public void submit(final Runnable runnable) {
@@ -66,4 +74,28 @@ public class PortableRequestScopeExecutor implements RequestScopeExecutor {
       }
     });
   }
+
+  /**
+   * Runs the task with the session and url of the current request, which is
+   * enough to fetch and render waves. Failures are left for the caller.
+   */
+  public <T> Future<T> submit(final Callable<T> task) {
+    final SessionContext session = sessionProvider.get();
+    final String url = requestUrl.get();
+
+    return executor.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        requestScope.enter();
+        requestScope.seed(SessionContext.class, session);
+        requestScope.seed(REQUEST_URL, url);
+
+        try {
+          return task.call();
+        } finally {
+          requestScope.exit();
+        }
+      }
+    });
+  }
 }
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.data;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.wave.api.Blip;
+import com.google.wave.api.BlipThread;
+import com.google.wave.api.Wavelet;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A precomputed view of the conversation thread tree of a single wavelet
+ * snapshot. Rendering and diffing walk this tree several times per request, so
+ * we compute branch sizes, render order, depths and parent links once per
+ * wavelet version instead of on every walk.
+ * <p>
+ * The index also splits the main conversation into pages, so that any page
+ * can be rendered on its own without rendering the pages before it.
+ */
+public class ThreadIndex {
+  /**
+   * Rough number of characters of markup the blip template and author bar add
+   * around a blip's content. Only used to estimate where pages break.
+   */
+  static final int BLIP_OVERHEAD_CHARS = 1000;
+
+  private final Map<String, List<Blip>> threadBlips = Maps.newHashMap();
+  private final Map<String, Integer> threadSizes = Maps.newHashMap();
+  private final Map<String, List<Blip>> childBlips = Maps.newHashMap();
+
+  // Main conversation only, in the order the threaded renderer emits it.
+  private final List<Blip> renderOrder = Lists.newArrayList();
+  private final Map<String, Integer> positions = Maps.newHashMap();
+  private final Map<String, Integer> depths = Maps.newHashMap();
+  private final Map<String, String> parents = Maps.newHashMap();
+
+  // Position in render order of the first blip of each page.
+  private final List<Integer> pageStarts = Lists.newArrayList();
+
+  private ThreadIndex() {
+  }
+
+  /**
+   * Walks the given wavelet's thread tree once and indexes it, breaking the
+   * main conversation into pages of roughly {@code charsPerPage} characters
+   * of rendered html.
+   */
+  public static ThreadIndex build(Wavelet wavelet, int charsPerPage) {
+    ThreadIndex index = new ThreadIndex();
+    for (BlipThread thread : wavelet.getThreads().values()) {
+      index.indexThread(thread);
+    }
+    for (Blip blip : wavelet.getBlips().values()) {
+      index.childBlips.put(blip.getBlipId(), ImmutableList.copyOf(blip.getChildBlips()));
+    }
+
+    BlipThread rootThread = wavelet.getRootThread();
+    if (rootThread != null) {
+      index.indexThread(rootThread);
+      index.walk(rootThread, null, 0);
+    }
+    index.paginate(charsPerPage);
+    return index;
+  }
+
+  /**
+   * A page ends after the blip that takes it past {@code charsPerPage}, which
+   * is where the renderer used to break pages when it measured actual html.
+   */
+  private void paginate(int charsPerPage) {
+    pageStarts.add(0);
+    int chars = 0;
+    for (int i = 0; i < renderOrder.size(); i++) {
+      String content = renderOrder.get(i).getContent();
+      chars += BLIP_OVERHEAD_CHARS + (content != null ? content.length() : 0);
+      if (chars >= charsPerPage && i + 1 < renderOrder.size()) {
+        pageStarts.add(i + 1);
+        chars = 0;
+      }
+    }
+  }
+
+  /**
+   * Computes the blips of a thread and the size of its reply branch. Memoized,
+   * so each thread is only ever visited once.
+   */
+  private int indexThread(BlipThread thread) {
+    Integer size = threadSizes.get(thread.getId());
+    if (size != null) {
+      return size;
+    }
+
+    List<Blip> blips = ImmutableList.copyOf(thread.getBlips());
+    threadBlips.put(thread.getId(), blips);
+
+    int total = blips.size();
+    for (Blip blip : blips) {
+      for (BlipThread replyThread : blip.getReplyThreads()) {
+        total += indexThread(replyThread);
+      }
+    }
+    threadSizes.put(thread.getId(), total);
+    return total;
+  }
+
+  private void walk(BlipThread thread, String parentId, int depth) {
+    for (Blip blip : threadBlips.get(thread.getId())) {
+      String blipId = blip.getBlipId();
+      positions.put(blipId, renderOrder.size());
+      renderOrder.add(blip);
+      depths.put(blipId, depth);
+      if (parentId != null) {
+        parents.put(blipId, parentId);
+      }
+
+      for (BlipThread replyThread : blip.getReplyThreads()) {
+        walk(replyThread, blipId, depth + 1);
+      }
+    }
+  }
+
+  /**
+   * @return the blips of the given thread, in order.
+   */
+  public List<Blip> blipsOf(BlipThread thread) {
+    List<Blip> blips = threadBlips.get(thread.getId());
+    return blips != null ? blips : thread.getBlips();
+  }
+
+  /**
+   * @return the number of blips in the given thread, including all blips in
+   *     its (transitive) reply threads.
+   */
+  public int threadSize(BlipThread thread) {
+    Integer size = threadSizes.get(thread.getId());
+    return size != null ? size : sizeOf(thread);
+  }
+
+  /**
+   * Slow path for threads that were added after this index was built. Does not
+   * touch the index, which may be shared by concurrent renders.
+   */
+  private static int sizeOf(BlipThread thread) {
+    List<Blip> blips = thread.getBlips();
+    int total = blips.size();
+    for (Blip blip : blips) {
+      for (BlipThread replyThread : blip.getReplyThreads()) {
+        total += sizeOf(replyThread);
+      }
+    }
+    return total;
+  }
+
+  /**
+   * @return the child blips of the given blip in the blip hierarchy.
+   */
+  public List<Blip> childrenOf(Blip blip) {
+    List<Blip> children = childBlips.get(blip.getBlipId());
+    return children != null ? children : blip.getChildBlips();
+  }
+
+  /**
+   * @return all blips of the main conversation (not including inline reply
+   *     threads) in the order they are rendered.
+   */
+  public List<Blip> renderOrder() {
+    return renderOrder;
+  }
+
+  /**
+   * @return the number of blips in the main conversation.
+   */
+  public int size() {
+    return renderOrder.size();
+  }
+
+  /**
+   * @return the number of pages the main conversation is split into, at
+   *     least 1.
+   */
+  public int pageCount() {
+    return pageStarts.size();
+  }
+
+  /**
+   * @return the position in render order of the first blip on the given page,
+   *     or {@link #size()} if there is no such page.
+   */
+  public int pageStart(int page) {
+    return page < pageStarts.size() ? pageStarts.get(page) : renderOrder.size();
+  }
+
+  /**
+   * @return the position in render order of the blip following the last blip
+   *     on the given page.
+   */
+  public int pageEnd(int page) {
+    return pageStart(page + 1);
+  }
+
+  /**
+   * @return the position of the blip in render order, or -1 if it is not part
+   *     of the main conversation.
+   */
+  public int positionOf(String blipId) {
+    Integer position = positions.get(blipId);
+    return position != null ? position : -1;
+  }
+
+  /**
+   * @return the indentation depth of the blip in the main conversation, or -1
+   *     if it is not part of the main conversation.
+   */
+  public int depthOf(String blipId) {
+    Integer depth = depths.get(blipId);
+    return depth != null ? depth : -1;
+  }
+
+  /**
+   * @return the id of the blip whose reply thread contains the given blip, or
+   *     null if it is in the root thread.
+   */
+  public String parentOf(String blipId) {
+    return parents.get(blipId);
+  }
+}
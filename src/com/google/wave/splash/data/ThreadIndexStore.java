@@ -0,0 +1,82 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.data;
+
+import com.google.common.base.Function;
+import com.google.common.collect.MapMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
+import com.google.wave.api.Wavelet;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the {@link ThreadIndex} of every wavelet snapshot we have in memory.
+ * Indexes are keyed weakly by snapshot identity, so an index lives exactly as
+ * long as the cached snapshot it was built from and each fetched version gets
+ * its own.
+ */
+@Singleton
+public class ThreadIndexStore {
+  private final ConcurrentMap<Wavelet, ThreadIndex> indexes;
+
+  // Same again, paginated for compact renders. Only built for waves that are
+  // actually viewed compactly.
+  private final ConcurrentMap<Wavelet, ThreadIndex> compactIndexes;
+
+  @Inject
+  public ThreadIndexStore(Options options) {
+    this.indexes = makeIndexMap(options.charsPerPage());
+    this.compactIndexes = makeIndexMap(options.compactCharsPerPage());
+  }
+
+  private static ConcurrentMap<Wavelet, ThreadIndex> makeIndexMap(final int charsPerPage) {
+    return new MapMaker()
+        .weakKeys()
+        .makeComputingMap(new Function<Wavelet, ThreadIndex>() {
+          @Override
+          public ThreadIndex apply(Wavelet wavelet) {
+            return ThreadIndex.build(wavelet, charsPerPage);
+          }
+        });
+  }
+
+  /**
+   * Returns the index for the given snapshot, building it if necessary.
+   */
+  public ThreadIndex get(Wavelet wavelet) {
+    return indexes.get(wavelet);
+  }
+
+  /**
+   * Returns the index for the given snapshot with the shorter pages of
+   * compact renders, building it if necessary.
+   */
+  public ThreadIndex getCompact(Wavelet wavelet) {
+    return compactIndexes.get(wavelet);
+  }
+
+  /**
+   * Discards the index of a snapshot that was modified in place, so that it
+   * is rebuilt on next use.
+   */
+  public void invalidate(Wavelet wavelet) {
+    indexes.remove(wavelet);
+    compactIndexes.remove(wavelet);
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.data.serialize;
+
+import com.google.inject.Singleton;
+import com.google.wave.splash.rpc.ClientAction;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes {@link ClientAction}s as json straight into a response, a field at a
+ * time, rather than building the whole response up as a string with Gson
+ * first. The json is the same as the browser Gson writes: fields in
+ * declaration order, nulls left out and no html escaping.
+ */
+@Singleton
+public class ClientActionWriter {
+  private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+  /**
+   * Writes the given actions as a json array.
+   */
+  public void write(List<ClientAction> actions, Writer out) throws IOException {
+    out.write('[');
+    for (int i = 0; i < actions.size(); i++) {
+      if (i > 0) {
+        out.write(',');
+      }
+      write(actions.get(i), out);
+    }
+    out.write(']');
+  }
+
+  /**
+   * Writes a single action as a json object.
+   */
+  public void write(ClientAction action, Writer out) throws IOException {
+    out.write('{');
+    boolean first = true;
+    first = writeField("waveId", action.getWaveId(), first, out);
+    first = writeField("blipId", action.getBlipId(), first, out);
+    first = writeField("action", action.getAction(), first, out);
+    first = writeField("html", action.getHtml(), first, out);
+    first = writeField("parent", action.getParent(), first, out);
+    first = writeName("indent", first, out);
+    out.write(action.isIndent() ? "true" : "false");
+    writeName("version", first, out);
+    out.write(Long.toString(action.getVersion()));
+    writeField("baseVersion", action.getBaseVersion(), out);
+    writeField("baseHash", action.getBaseHash(), out);
+    writeField("windowStart", action.getWindowStart(), out);
+    writeField("windowTotal", action.getWindowTotal(), out);
+    out.write('}');
+  }
+
+  private static boolean writeField(String name, String value, boolean first, Writer out)
+      throws IOException {
+    if (null == value) {
+      return first;
+    }
+    writeName(name, first, out);
+    writeString(value, out);
+    return false;
+  }
+
+  // Only ever written after the fields that are always there.
+  private static void writeField(String name, Number value, Writer out) throws IOException {
+    if (null != value) {
+      writeName(name, false, out);
+      out.write(value.toString());
+    }
+  }
+
+  private static boolean writeName(String name, boolean first, Writer out) throws IOException {
+    if (!first) {
+      out.write(',');
+    }
+    out.write('"');
+    out.write(name);
+    out.write("\":");
+    return false;
+  }
+
+  /**
+   * Writes a quoted json string, in one pass. Runs of characters that need no
+   * escaping, which is nearly all of them, are written as they are.
+   */
+  static void writeString(String value, Writer out) throws IOException {
+    out.write('"');
+    int start = 0;
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      String escaped;
+      switch (c) {
+        case '"':
+          escaped = "\\\"";
+          break;
+        case '\\':
+          escaped = "\\\\";
+          break;
+        case '\b':
+          escaped = "\\b";
+          break;
+        case '\t':
+          escaped = "\\t";
+          break;
+        case '\n':
+          escaped = "\\n";
+          break;
+        case '\f':
+          escaped = "\\f";
+          break;
+        case '\r':
+          escaped = "\\r";
+          break;
+        default:
+          if (!isControlCharacter(c)) {
+            continue;
+          }
+          escaped = null;
+      }
+
+      out.write(value, start, i - start);
+      if (null != escaped) {
+        out.write(escaped);
+      } else {
+        out.write("\\u");
+        out.write(HEX_CHARS[(c >> 12) & 0xf]);
+        out.write(HEX_CHARS[(c >> 8) & 0xf]);
+        out.write(HEX_CHARS[(c >> 4) & 0xf]);
+        out.write(HEX_CHARS[c & 0xf]);
+      }
+      start = i + 1;
+    }
+    out.write(value, start, length - start);
+    out.write('"');
+  }
+
+  /**
+   * The characters Gson writes as unicode escapes. Line and paragraph
+   * separators are among them, as they end lines in javascript.
+   */
+  private static boolean isControlCharacter(char c) {
+    return c < 0x20 || c == 0x2028 || c == 0x2029 || (c >= 0x7f && c <= 0x9f);
+  }
+}
@@ -27,6 +27,7 @@ import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.wave.splash.data.ThreadIndexStore;
 import com.google.wave.splash.web.stats.Timed;
 import com.google.wave.api.Blip;
 import com.google.wave.api.BlipData;
@@ -58,11 +59,13 @@ public class JsonSerializer {
 
   private final Gson gson;
   private final JsonParser parser;
+  private final ThreadIndexStore threadIndexes;
 
   @Inject
-  public JsonSerializer(Gson gson, JsonParser parser) {
+  public JsonSerializer(Gson gson, JsonParser parser, ThreadIndexStore threadIndexes) {
     this.gson = gson;
     this.parser = parser;
+    this.threadIndexes = threadIndexes;
   }
 
   /**
@@ -136,6 +139,8 @@ public class JsonSerializer {
       blips.put(blipData.getBlipId(), blip);
     }
 
+    // Index the thread tree now, while we're off the render path.
+    threadIndexes.get(wavelet);
     return new FetchWaveletResult(wavelet);
   }
 
@@ -23,6 +23,7 @@ import com.google.gson.JsonParser;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.google.wave.splash.data.ThreadIndexStore;
 import com.google.wave.splash.web.Browser;
 import com.google.wave.api.SearchResult.Digest;
 import com.google.wave.api.impl.GsonFactory;
@@ -55,8 +56,8 @@ public class SerializeModule extends AbstractModule {
   }
 
   @Provides @Singleton
-  JsonSerializer provideJsonSerializer(Gson gson) {
-    return new JsonSerializer(gson, new JsonParser());
+  JsonSerializer provideJsonSerializer(Gson gson, ThreadIndexStore threadIndexes) {
+    return new JsonSerializer(gson, new JsonParser(), threadIndexes);
   }
 
   private static class DigestInstanceCreator implements InstanceCreator<Digest> {
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.rpc;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The blips a client holds rendered html for, by DOM id, with the version of
+ * that html. Changes to these blips can be sent as patches against it rather
+ * than in full. Also lists the blips the client could not apply a patch to,
+ * which have to be resent in full.
+ */
+public class BlipBases {
+  private final Map<String, Long> versions = Maps.newHashMap();
+  private final Set<String> resends = Sets.newHashSet();
+
+  /**
+   * Records that the client has the html of the given blip at the given version.
+   */
+  public void put(String domId, long version) {
+    versions.put(domId, version);
+  }
+
+  /**
+   * Records that the client needs the full html of the given blip.
+   */
+  public void resend(String domId) {
+    resends.add(domId);
+  }
+
+  /**
+   * @return the version of the blip html the client has, or null if it has
+   *     none we can patch against.
+   */
+  public Long versionOf(String domId) {
+    return resends.contains(domId) ? null : versions.get(domId);
+  }
+
+  public boolean needsResend(String domId) {
+    return resends.contains(domId);
+  }
+
+  public boolean hasResends() {
+    return !resends.isEmpty();
+  }
+}
@@ -17,10 +17,25 @@
 package com.google.wave.splash.rpc;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.PortableRequestScope;
+import com.google.wave.splash.auth.SessionContext;
 import com.google.wave.splash.data.Memcache;
+import com.google.wave.splash.data.ThreadIndexStore;
+import com.google.wave.splash.rpc.OperationRequestClient.OperationRequestBatch;
+import com.google.wave.splash.text.Markup;
+import com.google.wave.splash.web.stats.Stat;
+import com.google.wave.splash.web.stats.Stats;
 import com.google.wave.api.Blip;
+import com.google.wave.api.BlipData;
 import com.google.wave.api.OperationType;
 import com.google.wave.api.Wavelet;
 import com.google.wave.api.JsonRpcConstant.ParamsProperty;
@@ -32,10 +47,26 @@ import com.google.wave.splash.text.ContentUnrenderer.UnrenderedBlip;
 
 import org.waveprotocol.wave.model.id.WaveId;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Rpc class for replying to and editing blips.
+ * <p>
+ * Edits are applied to the cached snapshot right away, so the editor's own
+ * updates show them, and queued for the backend. Everything a client edits
+ * in a wave within a short window goes out in one batch that nobody waits
+ * on, and each blip edited more than once in the window is only sent with
+ * its last content, which replaces the rest. Once the backend has answered,
+ * the client learns which of its edits stuck from acknowledgements it picks
+ * up with its next rpc.
  *
  * @author David Byttow
  */
@@ -43,16 +74,63 @@ import java.util.logging.Logger;
 public class BlipEditRpc {
   private static Logger LOG = Logger.getLogger(BlipEditRpc.class.getName());
 
+  @Stat(name = "blip-edits-queued",
+      help = "Number of blip edits and replies queued to be sent to the backend.")
+  private static volatile int blipEditsQueued;
+
+  @Stat(name = "blip-edits-coalesced",
+      help = "Number of queued blip edits dropped for a later edit to the same blip.")
+  private static volatile int blipEditsCoalesced;
+
+  @Stat(name = "blip-edit-batches-sent",
+      help = "Number of batches of blip edits sent to the backend.")
+  private static volatile int blipEditBatchesSent;
+
+  @Stat(name = "blip-edit-batches-failed",
+      help = "Number of batches of blip edits the backend did not apply in full.")
+  private static volatile int blipEditBatchesFailed;
+
+  static {
+    Stats.trackClass(BlipEditRpc.class);
+  }
+
   private final OperationRequestClient requestClient;
   private final Memcache memcache;
+  private final ThreadIndexStore threadIndexes;
+  private final WaveletUpdateRpc waveletUpdateRpc;
+  private final Provider<ScheduledExecutorService> executor;
+  private final PortableRequestScope requestScope;
+  private final Provider<SessionContext> sessionProvider;
+  private final long coalesceMillis;
+
+  // Edits waiting to be sent, by client session and wave.
+  private final ConcurrentMap<String, PendingEdits> pending = new MapMaker().makeMap();
+
+  // Acknowledgements of sent edits that their client has not picked up yet,
+  // by client session and wave. Dropped under memory pressure, as a client
+  // may never come back for them.
+  private final ConcurrentMap<String, Queue<ClientAction>> acks = new MapMaker()
+      .softValues()
+      .makeMap();
 
   @Inject
-  public BlipEditRpc(OperationRequestClient requestClient, Memcache memcache) {
+  public BlipEditRpc(OperationRequestClient requestClient, Memcache memcache,
+      ThreadIndexStore threadIndexes, WaveletUpdateRpc waveletUpdateRpc,
+      Provider<ScheduledExecutorService> executor, PortableRequestScope requestScope,
+      Provider<SessionContext> sessionProvider, Options options) {
     this.requestClient = requestClient;
     this.memcache = memcache;
+    this.threadIndexes = threadIndexes;
+    this.waveletUpdateRpc = waveletUpdateRpc;
+    this.executor = executor;
+    this.requestScope = requestScope;
+    this.sessionProvider = sessionProvider;
+
+    // There are no threads to send edits later from on appengine.
+    this.coalesceMillis = options.enableAppengineMode() ? 0 : options.editCoalesceMillis();
   }
 
-  public void newReply(WaveId waveId, String parentId, String content) {
+  public void newReply(WaveId waveId, String parentId, final String content) {
     Wavelet wavelet = memcache.retrieve(waveId.getId());
     if (wavelet == null) {
       // update failed, wavelet has been evicted?
@@ -66,23 +144,31 @@ public class BlipEditRpc {
     }
     Blip newBlip = parent.reply();
     newBlip.appendMarkup(content);
+    threadIndexes.invalidate(wavelet);
 
-    OperationRequestClient.OperationRequestBatch batch = requestClient.newRequestBatch();
-    batch.addWaveBasedRequest(OperationType.BLIP_CREATE_CHILD, waveId.serialise(),
-        newBlip.getWaveletId().serialise(), parent.getBlipId(),
-        Parameter.of(ParamsProperty.BLIP_DATA, newBlip.serialize()));
+    final String waveIdAsString = waveId.serialise();
+    final String waveletId = newBlip.getWaveletId().serialise();
+    final String parentBlipId = parent.getBlipId();
+    final String newBlipId = newBlip.getBlipId();
+    final BlipData blipData = newBlip.serialize();
+    queue(waveId, "reply " + newBlipId, new Edit(null) {
+      @Override
+      void addTo(OperationRequestBatch batch) {
+        batch.addWaveBasedRequest(OperationType.BLIP_CREATE_CHILD, waveIdAsString,
+            waveletId, parentBlipId,
+            Parameter.of(ParamsProperty.BLIP_DATA, blipData));
 
-    batch.addWaveBasedRequest(OperationType.DOCUMENT_APPEND_MARKUP,
-        waveId.serialise(), newBlip.getWaveletId().serialise(), newBlip.getBlipId(),
-        Parameter.of(ParamsProperty.CONTENT, content));
-
-    batch.apply();
+        batch.addWaveBasedRequest(OperationType.DOCUMENT_APPEND_MARKUP,
+            waveIdAsString, waveletId, newBlipId,
+            Parameter.of(ParamsProperty.CONTENT, content));
+      }
+    });
   }
 
   /**
    * Updates the given blip with some content (complete replace).
    */
-  public void applyEdit(WaveId waveId, String blipId, String content) {
+  public void applyEdit(WaveId waveId, final String blipId, String content) {
     // TODO: Clean this up -- this whole dance of workers is
     // because we cannot modify or add ops to the current wavelets that we have.
     Wavelet wavelet = memcache.retrieve(waveId.getId());
@@ -90,23 +176,203 @@ public class BlipEditRpc {
       // update failed, wavelet has been evicted?
       return;
     }
-    UnrenderedBlip actualContent = new ContentUnrenderer().unrender(content);
+    final UnrenderedBlip actualContent = new ContentUnrenderer().unrender(content);
     // Fix our in-memory state first.
     Blip blip = wavelet.getBlip(blipId);
     blip.all().delete();
     blip.appendMarkup(content);
+    threadIndexes.invalidate(wavelet);
 
     // TODO(anthonybaxter): This needs to be completely rewritten. Wheeeeee.
 
-    // Now just replace the blip's contents with the new contents.
-    OperationRequestClient.OperationRequestBatch batch = requestClient.newRequestBatch();
-    batch.addWaveBasedRequest(OperationType.DOCUMENT_MODIFY, waveId.serialise(),
-        blip.getWaveletId().serialise(), blip.getBlipId(),
-        Parameter.of(ParamsProperty.MODIFY_ACTION,
-            new DocumentModifyAction(ModifyHow.REPLACE, ImmutableList.of(actualContent.contents),
-            null, null, null, false)));
+    // Now just replace the blip's contents with the new contents, unless
+    // they are replaced again before being sent.
+    final String waveIdAsString = waveId.serialise();
+    final String waveletId = blip.getWaveletId().serialise();
+    queue(waveId, "edit " + blipId, new Edit(Markup.toDomId(blipId)) {
+      @Override
+      void addTo(OperationRequestBatch batch) {
+        batch.addWaveBasedRequest(OperationType.DOCUMENT_MODIFY, waveIdAsString, waveletId,
+            blipId, Parameter.of(ParamsProperty.MODIFY_ACTION,
+                new DocumentModifyAction(ModifyHow.REPLACE,
+                    ImmutableList.of(actualContent.contents), null, null, null, false)));
+      }
+    });
+  }
+
+  /**
+   * Sends the edits this client made to the given wave, unless they are held
+   * back to be coalesced with more. Never waits for the backend.
+   */
+  public void submit(WaveId waveId) {
+    if (coalesceMillis > 0) {
+      return;
+    }
+    PendingEdits edits = pending.get(key(waveId));
+    if (null != edits) {
+      edits.send();
+    }
+  }
+
+  /**
+   * @return ack-edit actions for the blips of the given wave whose edits by
+   *     this client the backend has applied since last asked, and retry-edit
+   *     actions for those it has not.
+   */
+  public List<ClientAction> takeAcks(WaveId waveId) {
+    List<ClientAction> result = Lists.newArrayList();
+    Queue<ClientAction> queue = acks.get(key(waveId));
+    if (null != queue) {
+      ClientAction ack;
+      while (null != (ack = queue.poll())) {
+        result.add(ack);
+      }
+    }
+    return result;
+  }
+
+  private void queue(WaveId waveId, String editKey, Edit edit) {
+    ++blipEditsQueued;
+    String key = key(waveId);
+    while (true) {
+      PendingEdits edits = pending.get(key);
+      if (null == edits) {
+        PendingEdits fresh = new PendingEdits(key, waveId, sessionProvider.get());
+        edits = pending.putIfAbsent(key, fresh);
+        if (null == edits) {
+          edits = fresh;
+          if (coalesceMillis > 0) {
+            executor.get().schedule(fresh, coalesceMillis, TimeUnit.MILLISECONDS);
+          }
+        }
+      }
+
+      // Edits that were sent just now can't take more, so start another batch.
+      if (edits.add(editKey, edit)) {
+        return;
+      }
+      pending.remove(key, edits);
+    }
+  }
+
+  private void acknowledge(String key, WaveId waveId, List<Edit> edits, boolean applied) {
+    if (!applied) {
+      ++blipEditBatchesFailed;
+    }
+
+    // Whether or not they stuck, the wave others share has our edits in it.
+    waveletUpdateRpc.forgetRefresh(waveId);
+
+    Queue<ClientAction> queue = acks.get(key);
+    if (null == queue) {
+      Queue<ClientAction> fresh = new ConcurrentLinkedQueue<ClientAction>();
+      queue = acks.putIfAbsent(key, fresh);
+      if (null == queue) {
+        queue = fresh;
+      }
+    }
+    for (Edit edit : edits) {
+      if (null != edit.domId) {
+        queue.add(new ClientAction(applied ? "ack-edit" : "retry-edit")
+            .waveId(waveId.serialise())
+            .blipId(edit.domId));
+      }
+    }
+  }
+
+  private String key(WaveId waveId) {
+    return sessionProvider.get().getSessionKey() + " " + waveId.serialise();
+  }
+
+  /**
+   * The operations making up one edit. Edits of blips the client knows are
+   * acknowledged by the blip's DOM id; new replies are not.
+   */
+  private abstract static class Edit {
+    final String domId;
+
+    Edit(String domId) {
+      this.domId = domId;
+    }
+
+    abstract void addTo(OperationRequestBatch batch);
+  }
+
+  /**
+   * The edits a client has made to one wave and that have not been sent yet,
+   * by blip edited or reply made.
+   */
+  private class PendingEdits implements Runnable {
+    private final String key;
+    private final WaveId waveId;
+    private final SessionContext session;
+
+    // Guarded by this.
+    private final Map<String, Edit> edits = Maps.newLinkedHashMap();
+    private boolean sent;
+
+    PendingEdits(String key, WaveId waveId, SessionContext session) {
+      this.key = key;
+      this.waveId = waveId;
+      this.session = session;
+    }
 
-    batch.apply();
-    
+    /**
+     * @return false if these edits were already sent.
+     */
+    synchronized boolean add(String editKey, Edit edit) {
+      if (sent) {
+        return false;
+      }
+
+      // A later edit goes after whatever came in between.
+      if (null != edits.remove(editKey)) {
+        ++blipEditsCoalesced;
+      }
+      edits.put(editKey, edit);
+      return true;
+    }
+
+    /**
+     * Sends the edits once the window is over, with the session of the client
+     * that made them.
+     */
+    @Override
+    public void run() {
+      requestScope.enter();
+      requestScope.seed(SessionContext.class, session);
+      try {
+        send();
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Error sending edits to wave " + waveId, e);
+      } finally {
+        requestScope.exit();
+      }
+    }
+
+    void send() {
+      final List<Edit> batched;
+      synchronized (this) {
+        if (sent) {
+          return;
+        }
+        sent = true;
+        pending.remove(key, this);
+        batched = ImmutableList.copyOf(edits.values());
+      }
+
+      OperationRequestBatch batch = requestClient.newRequestBatch();
+      for (Edit edit : batched) {
+        edit.addTo(batch);
+      }
+      ++blipEditBatchesSent;
+      final ListenableFuture<Boolean> applied = batch.applyAsync();
+      applied.addListener(new Runnable() {
+        @Override
+        public void run() {
+          acknowledge(key, waveId, batched, Boolean.TRUE.equals(RpcUtil.getSafely(applied)));
+        }
+      }, MoreExecutors.sameThreadExecutor());
+    }
   }
 }
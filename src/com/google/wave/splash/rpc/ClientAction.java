@@ -32,6 +32,16 @@ public final class ClientAction {
   private boolean indent;
   private long version;
 
+  // Only set on patch-blip actions, to the version and html hash of the blip
+  // the patch applies to. Left null, and out of the json, otherwise.
+  private Long baseVersion;
+  private Integer baseHash;
+
+  // Only set on update-wave-window actions, to the position of the first blip
+  // in the window and the number of blips in the wave.
+  private Integer windowStart;
+  private Integer windowTotal;
+
   public ClientAction(String action) {
     action(action);
   }
@@ -103,4 +113,32 @@ public final class ClientAction {
   public long getVersion() {
     return version;
   }
+
+  public ClientAction base(long baseVersion, int baseHash) {
+    this.baseVersion = baseVersion;
+    this.baseHash = baseHash;
+    return this;
+  }
+
+  public Long getBaseVersion() {
+    return baseVersion;
+  }
+
+  public Integer getBaseHash() {
+    return baseHash;
+  }
+
+  public ClientAction window(int windowStart, int windowTotal) {
+    this.windowStart = windowStart;
+    this.windowTotal = windowTotal;
+    return this;
+  }
+
+  public Integer getWindowStart() {
+    return windowStart;
+  }
+
+  public Integer getWindowTotal() {
+    return windowTotal;
+  }
 }
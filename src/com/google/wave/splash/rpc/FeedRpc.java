@@ -16,16 +16,19 @@
  */
 package com.google.wave.splash.rpc;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
-import com.google.inject.internal.ImmutableMap;
 import com.google.wave.splash.Options;
 import com.google.wave.splash.RequestScopeExecutor;
 import com.google.wave.splash.auth.SessionContext;
 import com.google.wave.splash.data.Memcache;
 import com.google.wave.splash.data.serialize.JsonSerializer;
 import com.google.wave.splash.web.stats.Timed;
+import com.google.wave.splash.web.template.FeedFragment;
 import com.google.wave.splash.web.template.Templates;
 import com.google.wave.splash.wprime.Index;
 import com.google.wave.api.OperationType;
@@ -38,6 +41,8 @@ import org.waveprotocol.wave.model.id.WaveletId;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 /**
@@ -118,24 +123,39 @@ public class FeedRpc {
    * @param query the search query
    * @param startAt the index from which to start fetching results, inclusive
    * @param numResults The maximum number of results to return
+   * @param executor runs the rest of the update once a remote search is
+   *   answered
    */
-  public ClientAction updateFeedPage(long from, String query, int startAt, int numResults) {
-    Index index = indexProvider.get();
+  public ListenableFuture<ClientAction> updateFeedPage(long from, final String query,
+      int startAt, int numResults, Executor executor) {
+    final Index index = indexProvider.get();
     if (index.isReady() && !index.isAllQuery(query)) {
-      return render(index.search(query));
+      return Futures.immediateFuture(render(index.search(query)));
     }
 
     // Cache for later.
-    String feedKey = generateFeedKey(query);
+    final String feedKey = generateFeedKey(query);
     List<SearchResult.Digest> feed = memcache.retrieve(feedKey);
 
-    if (null == feed || from == 0L) {
-      feed = query(query, index, feedKey, feed, startAt, numResults);
-    } else {
+    if (null != feed && from != 0L) {
       // If something is already in memcache, use that first, then stream results.
       memcache.remove(feedKey);
+      return Futures.immediateFuture(showFeed(feed));
     }
 
+    final ListenableFuture<String> search = search(query, startAt, numResults);
+    ListenableFutureTask<ClientAction> update = new ListenableFutureTask<ClientAction>(
+        new Callable<ClientAction>() {
+          @Override
+          public ClientAction call() {
+            return showFeed(query(query, index, feedKey, RpcUtil.getSafely(search)));
+          }
+        });
+    search.addListener(update, executor);
+    return update;
+  }
+
+  private ClientAction showFeed(List<Digest> feed) {
     // If it's still null, then the remote search itself failed...
     if (feed == null) {
       return null;
@@ -149,15 +169,13 @@ public class FeedRpc {
 
   @Timed(threshold = 100)
   private ClientAction render(Collection<Digest> feed) {
-    String filledFeed = templates.process(Templates.FEED_TEMPLATE, ImmutableMap.of("feed", feed));
-    return new ClientAction("update-feed").html(filledFeed);
+    StringBuilder filledFeed = new StringBuilder();
+    templates.render(Templates.FEED_TEMPLATE, new FeedFragment(feed), filledFeed);
+    return new ClientAction("update-feed").html(filledFeed.toString());
   }
 
   @Timed(threshold = 1500)
-  private List<Digest> query(String query, Index index,
-                             String feedKey, List<Digest> oldFeed,
-                             int startAt, int numResults) {
-    String json = search(query, startAt, numResults);
+  private List<Digest> query(String query, Index index, String feedKey, String json) {
     SearchResult searchResult = serializer.parseSearchResult(query, json);
     if (searchResult == null) {
       return null;
@@ -175,13 +193,13 @@ public class FeedRpc {
   }
 
   @Timed(threshold = 1000)
-  private String search(String query, int startAt, int numResults) {
+  private ListenableFuture<String> search(String query, int startAt, int numResults) {
     OperationRequestClient.OperationRequestBatch batch = requestClient.newRequestBatch();
     batch.addRobotRequest(OperationType.ROBOT_SEARCH,
         RpcParam.of("query", query),
         RpcParam.of("index", Integer.toString(startAt)),
         RpcParam.of("numResults", Integer.toString(numResults)));
-    return RpcUtil.getSafely(batch.sendAsync());
+    return batch.sendAsync();
   }
 
   /**
@@ -89,6 +89,14 @@ public class OperationRequestClient {
     public ListenableFuture<String> sendAsync() {
       return bundle.sendAsync();
     }
+
+    /**
+     * Sends the operations asynchronously, and logs those that fail.
+     * @return the future of whether all operations succeeded.
+     */
+    public ListenableFuture<Boolean> applyAsync() {
+      return bundle.applyAsync();
+    }
   }
 
   @Inject
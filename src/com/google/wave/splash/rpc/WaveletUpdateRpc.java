@@ -19,16 +19,26 @@ package com.google.wave.splash.rpc;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ValueFuture;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
 import com.google.wave.splash.data.Memcache;
 import com.google.wave.splash.data.ProfileStore;
+import com.google.wave.splash.data.ThreadIndex;
+import com.google.wave.splash.data.ThreadIndexStore;
+import com.google.wave.splash.text.HtmlPatch;
 import com.google.wave.splash.text.Markup;
 import com.google.wave.splash.web.stats.Stat;
 import com.google.wave.splash.web.stats.Stats;
 import com.google.wave.splash.web.stats.Timed;
+import com.google.wave.splash.web.template.RenderMode;
 import com.google.wave.splash.web.template.WaveRenderer;
 import com.google.wave.api.Blip;
 import com.google.wave.api.ParticipantProfile;
@@ -39,14 +49,25 @@ import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.id.WaveletId;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
  * Fetches a wavelet, diffs it, transforms it to html wrapped inside a json packet
  *  and returns the result as a client action.
+ * <p>
+ * Everyone viewing a wave shares the work of keeping up with it: the wave is
+ * fetched from the backend at most once per refresh interval, and the blip
+ * changes between two versions are rendered once for all clients at the
+ * older version. Only headers and patches, which depend on what each client
+ * already has, are picked per client, and those come from caches too.
  *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
@@ -62,6 +83,34 @@ public class WaveletUpdateRpc {
       help = "Number of cache hits when fetching wavelets.")
   private static volatile int waveletFetchCacheHits;
 
+  @Stat(name = "header-cache-hits",
+      help = "Number of wave headers served from the rendered header cache.")
+  private static volatile int headerCacheHits;
+
+  @Stat(name = "header-updates-skipped",
+      help = "Number of wave updates sent without a header, as the client's was current.")
+  private static volatile int headerUpdatesSkipped;
+
+  @Stat(name = "blip-patches-sent",
+      help = "Number of changed blips sent as a patch rather than in full.")
+  private static volatile int blipPatchesSent;
+
+  @Stat(name = "blip-patch-chars-saved",
+      help = "Characters of blip html not sent thanks to patches.")
+  private static volatile long blipPatchCharsSaved;
+
+  @Stat(name = "wavelet-refreshes-shared",
+      help = "Number of wavelet fetches served by a recent backend fetch of the same wave.")
+  private static volatile int waveletRefreshesShared;
+
+  @Stat(name = "wave-diffs-served",
+      help = "Number of wave updates sent with the changes since the client's version.")
+  private static volatile int waveDiffsServed;
+
+  @Stat(name = "wave-diffs-rendered",
+      help = "Number of times the changes between two wave versions were rendered.")
+  private static volatile int waveDiffsRendered;
+
   static {
     Stats.trackClass(WaveletUpdateRpc.class);
   }
@@ -71,27 +120,90 @@ public class WaveletUpdateRpc {
   private final ProfileStore profileStore;
   private final WaveRenderer waveRenderer;
   private final FetchProfilesRpc fetchProfilesRpc;
+  private final ThreadIndexStore threadIndexes;
+  private final long refreshNanos;
 
   public static final long LATEST_VERSION = -1L;
+
+  /**
+   * Header version of a client that has no header yet. Never matches a header
+   * hash, which is never negative.
+   */
+  public static final long NO_HEADER = -1L;
+
+  // Header hashes are sent to the client as JavaScript numbers, which are
+  // only exact up to 53 bits.
+  private static final long HEADER_HASH_MASK = (1L << 53) - 1;
+
+  /**
+   * A patch is only sent if it is at most this fraction of the size of the
+   * blip's html, otherwise the client gets the html in full.
+   */
+  static final double MAX_PATCH_RATIO = 0.5;
+
   private final Provider<RemoteWaveService> waveServiceProvider;
 
+  // Rendered header html keyed by everything it is rendered from (see
+  // headerKey), so waves only share a header when they would render the same
+  // one. Entries are only dropped under memory pressure.
+  private final ConcurrentMap<String, String> headers = new MapMaker()
+      .softValues()
+      .makeMap();
+
+  // Blip html as we last sent it to clients, keyed by wave id, blip id,
+  // version and render mode. Patches are made against these.
+  private final ConcurrentMap<String, String> sentBlips = new MapMaker()
+      .softValues()
+      .makeMap();
+
+  // The latest backend fetch of each wave, shared by everyone who wants the
+  // wave until it is older than the refresh interval. Failed fetches are
+  // dropped as soon as they fail, so the next caller tries again.
+  private final ConcurrentMap<WaveId, Refresh> refreshes = new MapMaker()
+      .softValues()
+      .makeMap();
+
+  // Snapshots whose participants' profiles we asked for, so that we ask once
+  // per fetch of a wave rather than once per viewer.
+  private final Set<Wavelet> profiledWavelets = Collections.newSetFromMap(
+      new MapMaker().weakKeys().<Wavelet, Boolean>makeMap());
+
+  // The blip changes between two versions of a wave, rendered once for all
+  // clients at the older version. A crowd of clients polling at once waits on
+  // the one rendering rather than each doing its own. Keyed by versions, not
+  // snapshots, so that the snapshots themselves are not kept alive.
+  private final ConcurrentMap<String, ValueFuture<List<ClientAction>>> diffs = new MapMaker()
+      .softValues()
+      .makeMap();
+
+  // Blip changes turned into patches against an earlier version of the blip,
+  // or the change itself if no patch is worth sending. Keyed by version and
+  // html, so that equal changes share patches without being kept alive.
+  private final ConcurrentMap<String, ClientAction> patches = new MapMaker()
+      .softValues()
+      .makeMap();
+
   @Inject
   public WaveletUpdateRpc(Memcache memcache, ProfileStore profileStore, 
       WaveRenderer waveRenderer, FetchProfilesRpc fetchProfilesRpc,
-      Provider<RemoteWaveService> waveServiceProvider) {
+      Provider<RemoteWaveService> waveServiceProvider, ThreadIndexStore threadIndexes,
+      Options options) {
     this.memcache = memcache;
 
     this.profileStore = profileStore;
     this.waveRenderer = waveRenderer;
     this.fetchProfilesRpc = fetchProfilesRpc;
     this.waveServiceProvider = waveServiceProvider;
+    this.threadIndexes = threadIndexes;
+    this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(options.waveRefreshMillis());
   }
 
   /**
    * Uses cache first, only falls back to fetch if needed. Fast.
    */
   @Timed(threshold = 300)
-  public Collection<ClientAction> smartFetch(WaveId waveId, WaveletId waveletId, int page) {
+  public ListenableFuture<Collection<ClientAction>> smartFetch(WaveId waveId,
+      WaveletId waveletId, int page, RenderMode mode, Executor executor) {
     String waveIdAsString = waveId.getId();
 
     // Try to fetch latest available version in cache.
@@ -101,13 +213,118 @@ public class WaveletUpdateRpc {
       // Cache miss, goto full fetch
       log.fine("Cache miss for " + waveIdAsString);
       ++waveletFetchCacheMisses;
-      return fetch(waveId, waveletId);
+      return fetch(waveId, waveletId, mode, executor);
     } else {
       ++waveletFetchCacheHits;
     }
 
     log.fine("Smart fetch succeeded for " + waveIdAsString);
-    return renderWave(snapshot, page);
+    return Futures.immediateFuture(renderWave(snapshot, page, mode));
+  }
+
+  /**
+   * @return the latest snapshot of the given wave, from the cache if possible,
+   *     or null if the wave could not be fetched.
+   */
+  @Timed(threshold = 300)
+  public Wavelet fetchSnapshot(WaveId waveId, WaveletId waveletId) {
+    Wavelet snapshot = cachedSnapshot(waveId);
+    if (null != snapshot) {
+      ++waveletFetchCacheHits;
+      return snapshot;
+    }
+
+    ++waveletFetchCacheMisses;
+    snapshot = RpcUtil.getSafely(refreshWavelet(waveId, waveletId));
+    if (null != snapshot) {
+      threadIndexes.get(snapshot);
+      memcache.storeAll(ImmutableMap.<String, Object>of(
+          computeWaveKey(waveId.getId(), snapshot.getLastModifiedTime()), snapshot,
+          waveId.getId(), snapshot));
+    }
+    return snapshot;
+  }
+
+  /**
+   * Fetches the latest snapshot of the given wave and caches it, without
+   * rendering anything. Used to watch waves for changes.
+   *
+   * @return the version fetched, or {@link #LATEST_VERSION} if the wave could
+   *     not be fetched.
+   */
+  @Timed(threshold = 300)
+  public long fetchVersion(WaveId waveId, WaveletId waveletId) {
+    Wavelet snapshot = RpcUtil.getSafely(refreshWavelet(waveId, waveletId));
+    if (null == snapshot) {
+      return LATEST_VERSION;
+    }
+
+    threadIndexes.get(snapshot);
+    memcache.storeAll(ImmutableMap.<String, Object>of(
+        computeWaveKey(waveId.getId(), snapshot.getLastModifiedTime()), snapshot,
+        waveId.getId(), snapshot));
+    return snapshot.getLastModifiedTime();
+  }
+
+  /**
+   * @return the latest snapshot of the given wave if we have it cached, or
+   *     null. Never goes to the wave backend.
+   */
+  public Wavelet cachedSnapshot(WaveId waveId) {
+    return memcache.retrieve(waveId.getId());
+  }
+
+  /**
+   * @return the cached snapshot of the given wave if it is the version the
+   *     backend gave us less than the refresh interval ago, or null if the
+   *     wave may have changed since. Never goes to the wave backend.
+   */
+  public Wavelet currentSnapshot(WaveId waveId) {
+    Refresh refresh = refreshes.get(waveId);
+    Wavelet snapshot = cachedSnapshot(waveId);
+    if (null == refresh || null == snapshot || !refresh.wavelet.isDone() || refresh.isStale()) {
+      return null;
+    }
+    Wavelet latest = RpcUtil.getSafely(refresh.wavelet);
+    return null != latest && latest.getLastModifiedTime() == snapshot.getLastModifiedTime()
+        ? snapshot
+        : null;
+  }
+
+  /**
+   * Renders one inline reply thread of a wave, from the cached snapshot if
+   * there is one. Used to expand inline replies, which are not rendered with
+   * the rest of the wave.
+   *
+   * @return the client action, or null if there is no such wave or thread.
+   */
+  @Timed(threshold = 300)
+  public ClientAction fetchInlineReply(WaveId waveId, WaveletId waveletId, String threadId,
+      RenderMode mode) {
+    Wavelet snapshot = fetchSnapshot(waveId, waveletId);
+    if (null == snapshot) {
+      return null;
+    }
+
+    ClientAction action = waveRenderer.renderInlineReplyThread(snapshot, threadId, mode);
+    return null != action ? action.waveId(waveId.serialise()) : null;
+  }
+
+  /**
+   * Renders a window of blips of a wave, from the cached snapshot if there is
+   * one. Used by clients that only render the blips in view.
+   *
+   * @return the client action, carrying the window's start and the total
+   *     number of blips in the wave.
+   */
+  @Timed(threshold = 300)
+  public ClientAction fetchWindow(WaveId waveId, WaveletId waveletId, int start, int count,
+      RenderMode mode) {
+    Wavelet snapshot = fetchSnapshot(waveId, waveletId);
+    if (null == snapshot) {
+      return waveRenderer.renderNotFound().waveId(waveId.serialise());
+    }
+    return waveRenderer.renderWindow(snapshot, start, count, mode).waveId(waveId.serialise());
   }
 
   /**
@@ -116,28 +333,57 @@ public class WaveletUpdateRpc {
    */
   @Timed
   public Collection<ClientAction> prefetch(WaveId waveId, WaveletId waveletId) {
-    return difference(waveId, waveletId, true, true, false, LATEST_VERSION);
+    return difference(waveId, RpcUtil.getSafely(refreshWavelet(waveId, waveletId)), true, true,
+        false, LATEST_VERSION, NO_HEADER, null, RenderMode.FULL);
   }
 
   /**
    * Complete fetch for latest wave, ignores cache.
    */
-  public Collection<ClientAction> fetch(WaveId waveId, WaveletId waveletId) {
-    return difference(waveId, waveletId, true, true, true, LATEST_VERSION);
+  public ListenableFuture<Collection<ClientAction>> fetch(WaveId waveId, WaveletId waveletId,
+      RenderMode mode, Executor executor) {
+    return difference(waveId, waveletId, true, true, true, LATEST_VERSION, NO_HEADER, null,
+        mode, executor);
   }
 
   /**
    * Complete fetch, Fetch latest wave first, compares with cache
-   *  and returns diffs only.
+   *  and returns diffs only. The header is left out of the diff if the
+   *  client's header version shows it is still current, and changed blips
+   *  are sent as patches where the client has an earlier version of them.
    */
-  public Collection<ClientAction> fetchDiff(WaveId waveId, WaveletId waveletId,
-      long clientWaveVersion) {
-    return difference(waveId, waveletId, false, false, true, clientWaveVersion);
+  public ListenableFuture<Collection<ClientAction>> fetchDiff(WaveId waveId,
+      WaveletId waveletId, long clientWaveVersion, long clientHeaderVersion,
+      BlipBases blipBases, RenderMode mode, Executor executor) {
+    return difference(waveId, waveletId, false, false, true, clientWaveVersion,
+        clientHeaderVersion, blipBases, mode, executor);
   }
 
-  private Collection<ClientAction> difference(WaveId waveId, WaveletId waveletId,
-      boolean ignoreDiff, boolean showHeader, boolean render, long clientWaveVersion) {
-    Wavelet wavelet = RpcUtil.getSafely(fetchWavelet(waveId, waveletId));
+  /**
+   * Sends off the fetch of the latest wavelet without waiting for it. It is
+   * diffed on the given executor once it arrives.
+   */
+  private ListenableFuture<Collection<ClientAction>> difference(final WaveId waveId,
+      WaveletId waveletId, final boolean ignoreDiff, final boolean showHeader,
+      final boolean render, final long clientWaveVersion, final long clientHeaderVersion,
+      final BlipBases blipBases, final RenderMode mode, Executor executor) {
+    final ListenableFuture<Wavelet> fetch = refreshWavelet(waveId, waveletId);
+    ListenableFutureTask<Collection<ClientAction>> diff =
+        new ListenableFutureTask<Collection<ClientAction>>(
+            new Callable<Collection<ClientAction>>() {
+              @Override
+              public Collection<ClientAction> call() {
+                return difference(waveId, RpcUtil.getSafely(fetch), ignoreDiff, showHeader,
+                    render, clientWaveVersion, clientHeaderVersion, blipBases, mode);
+              }
+            });
+    fetch.addListener(diff, executor);
+    return diff;
+  }
+
+  private Collection<ClientAction> difference(WaveId waveId, Wavelet wavelet,
+      boolean ignoreDiff, boolean showHeader, boolean render, long clientWaveVersion,
+      long clientHeaderVersion, BlipBases blipBases, RenderMode mode) {
     if (wavelet == null) {
       if (!render) {
         return ImmutableList.of();
@@ -145,8 +391,10 @@ public class WaveletUpdateRpc {
       return ImmutableList.of(waveRenderer.renderNotFound().waveId(waveId.serialise()));
     }
 
-    // Fetch the profiles for this wave.
-    fetchProfiles(wavelet);
+    // Fetch the profiles for this wave, once per snapshot.
+    if (profiledWavelets.add(wavelet)) {
+      fetchProfiles(wavelet);
+    }
 
     // We should use the fresh version if either the flag is set or the client
     // version is bogus (LATEST_VERSION)
@@ -161,13 +409,16 @@ public class WaveletUpdateRpc {
     }
     Wavelet oldWavelet = memcache.retrieve(waveKey);
 
-    // If nothing changed since our last cache entry, do nothing.
-    if (!ignoreDiff && isNewer(wavelet, oldWavelet)) {
+    // If nothing changed since our last cache entry, and the client does not
+    // need any blips resent, do nothing.
+    boolean resend = blipBases != null && blipBases.hasResends();
+    if (!ignoreDiff && isNewer(wavelet, oldWavelet) && !resend) {
       return ImmutableList.of();
     }
 
     // Update the latest version in the cache for this wave id, and also
-    // cache the wave@version.
+    // cache the wave@version. Its thread index lives alongside the snapshot.
+    threadIndexes.get(wavelet);
     Map<String, Object> waves = ImmutableMap.<String, Object>of(
         computeWaveKey(waveIdAsString, wavelet.getLastModifiedTime()), wavelet,
         waveIdAsString, wavelet);
@@ -179,10 +430,10 @@ public class WaveletUpdateRpc {
     }
 
     if (!ignoreDiff) {
-      return renderDiff(oldWavelet, wavelet);
+      return renderDiff(oldWavelet, wavelet, clientHeaderVersion, blipBases, mode);
     }
     // We do not want to diff, so just statically render the new wavelet.
-    return renderWave(wavelet, 0);
+    return renderWave(wavelet, 0, mode);
   }
 
   @Timed(threshold = 200)
@@ -190,20 +441,84 @@ public class WaveletUpdateRpc {
     fetchProfilesRpc.fetchProfiles(wavelet.getParticipants());
   }
 
+  /**
+   * Renders the changes from the client's snapshot to the given one. The blip
+   * changes are shared with every other client at the same snapshot, unless
+   * this one needs blips resent; the header and patches are picked for it.
+   */
   @Timed(threshold = 300)
-  Collection<ClientAction> renderDiff(Wavelet oldWavelet, Wavelet wavelet) {
+  Collection<ClientAction> renderDiff(Wavelet oldWavelet, Wavelet wavelet,
+      long clientHeaderVersion, BlipBases blipBases, RenderMode mode) {
+    List<ClientAction> actions = Lists.newArrayList();
+    if (mode != RenderMode.COMPACT) {
+      ClientAction headerAction = renderHeader(wavelet, clientHeaderVersion);
+      if (headerAction != null) {
+        actions.add(headerAction);
+      }
+    }
+
+    List<ClientAction> changes;
+    if (blipBases != null && blipBases.hasResends()) {
+      changes = renderChanges(oldWavelet, wavelet, blipBases, mode);
+    } else {
+      changes = sharedChanges(oldWavelet, wavelet, mode);
+    }
+    ++waveDiffsServed;
+
+    String waveIdAsString = wavelet.getWaveId().serialise();
+    for (ClientAction change : changes) {
+      actions.add(null != blipBases ? patch(waveIdAsString, change, blipBases, mode) : change);
+    }
+    return actions;
+  }
+
+  /**
+   * Renders the changes between two snapshots, or waits for whoever is
+   * rendering them already.
+   */
+  private List<ClientAction> sharedChanges(Wavelet oldWavelet, Wavelet wavelet,
+      RenderMode mode) {
+    String key = wavelet.getWaveId().serialise() + "/"
+        + (null != oldWavelet ? oldWavelet.getLastModifiedTime() : "-") + "/"
+        + wavelet.getLastModifiedTime() + "/" + mode;
+    ValueFuture<List<ClientAction>> diff = diffs.get(key);
+    if (null == diff) {
+      ValueFuture<List<ClientAction>> rendering = ValueFuture.create();
+      diff = diffs.putIfAbsent(key, rendering);
+      if (null == diff) {
+        try {
+          ++waveDiffsRendered;
+          List<ClientAction> changes = renderChanges(oldWavelet, wavelet, null, mode);
+          rendering.set(changes);
+          return changes;
+        } catch (RuntimeException e) {
+          // Let the next client try again.
+          diffs.remove(key, rendering);
+          rendering.setException(e);
+          throw e;
+        }
+      }
+    }
+
+    List<ClientAction> changes = RpcUtil.getSafely(diff);
+    return null != changes ? changes : renderChanges(oldWavelet, wavelet, null, mode);
+  }
+
+  /**
+   * Renders the blips deleted, added and changed since the old snapshot, and
+   * moves the client to the new one. Blips the client needs resent count as
+   * changed.
+   */
+  private List<ClientAction> renderChanges(Wavelet oldWavelet, Wavelet wavelet,
+      BlipBases blipBases, RenderMode mode) {
     List<ClientAction> actions = Lists.newArrayList();
-    // TODO(dhanji): cache the profiles, we don't need to keep fetching them.
-    ClientAction headerAction = waveRenderer.renderHeader(loadProfiles(wavelet.getParticipants()));
     String waveIdAsString = wavelet.getWaveId().serialise();
-    headerAction.waveId(waveIdAsString);
-    actions.add(headerAction);
 
     // Generate delete-blip actions by diffing with memory store.
     if (oldWavelet != null) {
       computeDeletedBlips(wavelet, oldWavelet, actions);
     }
-    computeAddedBlips(wavelet, oldWavelet, wavelet.getRootBlip(), actions);
+    computeAddedBlips(wavelet, oldWavelet, wavelet.getRootBlip(), blipBases, mode, actions);
 
     // Move the client's wave version forward.
     actions.add(new ClientAction("update-wave-version")
@@ -214,19 +529,113 @@ public class WaveletUpdateRpc {
     return actions;
   }
 
+  /**
+   * Renders a page of the given wavelet, with its header unless rendering
+   * compactly: the mobile client has no room to show one.
+   */
   @Timed
-  Collection<ClientAction> renderWave(Wavelet wavelet, int page) {
+  Collection<ClientAction> renderWave(Wavelet wavelet, int page, RenderMode mode) {
     ImmutableList.Builder<ClientAction> builder = ImmutableList.builder();
     String waveIdAsString = wavelet.getWaveId().serialise();
-    builder.add(waveRenderer.render(wavelet, page).waveId(waveIdAsString));
-    // TODO(dhanji): cache the profiles, we don't need to keep fetching them.
-    ClientAction headerAction =
-        waveRenderer.renderHeader(loadProfiles(wavelet.getParticipants()));
-    headerAction.waveId(waveIdAsString);
-    builder.add(headerAction);
+    builder.add(waveRenderer.render(wavelet, page, mode).waveId(waveIdAsString));
+    if (mode != RenderMode.COMPACT) {
+      builder.add(renderHeader(wavelet, NO_HEADER));
+    }
     return builder.build();
   }
 
+  /**
+   * @return the version of the header {@link #renderWave} sends with the given
+   *     wavelet, or {@link #NO_HEADER} if it sends none.
+   */
+  public long headerVersion(Wavelet wavelet, RenderMode mode) {
+    if (mode == RenderMode.COMPACT) {
+      return NO_HEADER;
+    }
+    Participants participants = wavelet.getParticipants();
+    return headerHash(participants, loadProfiles(participants));
+  }
+
+  /**
+   * Renders the header of the given wavelet, or reuses a previous rendering of
+   * the same participants and profiles. The action carries the header hash as
+   * its version, which the client sends back with its next update. The hash
+   * only tells a client whether its header changed; rendered headers are
+   * looked up by the profiles themselves, never by hash.
+   *
+   * @return the update-header action, or null if the client's header version
+   *     shows it already has this header.
+   */
+  ClientAction renderHeader(Wavelet wavelet, long clientHeaderVersion) {
+    Participants participants = wavelet.getParticipants();
+    List<ParticipantProfile> profiles = loadProfiles(participants);
+    long headerHash = headerHash(participants, profiles);
+    if (headerHash == clientHeaderVersion) {
+      ++headerUpdatesSkipped;
+      return null;
+    }
+
+    String headerKey = headerKey(participants, profiles);
+    String html = headers.get(headerKey);
+    if (html == null) {
+      html = waveRenderer.renderHeader(profiles).getHtml();
+      headers.put(headerKey, html);
+    } else {
+      ++headerCacheHits;
+    }
+    return new ClientAction("update-header")
+        .waveId(wavelet.getWaveId().serialise())
+        .html(html)
+        .version(headerHash);
+  }
+
+  /**
+   * Hashes everything the header is rendered from: the participants in order,
+   * and the parts of their profiles that show in the header.
+   */
+  static long headerHash(Iterable<String> participants, List<ParticipantProfile> profiles) {
+    long hash = 17;
+    int i = 0;
+    for (String address : participants) {
+      ParticipantProfile profile = profiles.get(i++);
+      hash = 31 * hash + address.hashCode();
+      hash = 31 * hash + hashOf(profile.getName());
+      hash = 31 * hash + hashOf(profile.getImageUrl());
+      hash = 31 * hash + hashOf(profile.getProfileUrl());
+    }
+    return hash & HEADER_HASH_MASK;
+  }
+
+  private static int hashOf(String value) {
+    return value != null ? value.hashCode() : 0;
+  }
+
+  /**
+   * Spells out everything the header is rendered from, the same things that
+   * go into its hash. Each field is prefixed with its length, so no two lists
+   * of profiles spell the same key, and a missing field with a '-'.
+   */
+  static String headerKey(Iterable<String> participants, List<ParticipantProfile> profiles) {
+    StringBuilder key = new StringBuilder();
+    int i = 0;
+    for (String address : participants) {
+      ParticipantProfile profile = profiles.get(i++);
+      appendField(key, address);
+      appendField(key, profile.getName());
+      appendField(key, profile.getImageUrl());
+      appendField(key, profile.getProfileUrl());
+    }
+    return key.toString();
+  }
+
+  private static void appendField(StringBuilder key, String value) {
+    if (value == null) {
+      key.append('-');
+    } else {
+      key.append(value.length()).append(':').append(value);
+    }
+  }
+
   @Timed
   List<ParticipantProfile> loadProfiles(Participants participants) {
     ImmutableList.Builder<ParticipantProfile> result = ImmutableList.builder();
@@ -242,25 +651,72 @@ public class WaveletUpdateRpc {
     return waveServiceProvider.get().fetchWavelet(waveId, waveletId);
   }
 
+  /**
+   * Fetches the latest wavelet from the backend, unless a fetch of it is
+   * under way or finished less than the refresh interval ago, which is then
+   * shared instead. However many clients poll a wave, it is fetched at most
+   * once per interval.
+   */
+  ListenableFuture<Wavelet> refreshWavelet(final WaveId waveId, WaveletId waveletId) {
+    while (true) {
+      Refresh refresh = refreshes.get(waveId);
+      if (null != refresh && !refresh.isStale()) {
+        ++waveletRefreshesShared;
+        return refresh.wavelet;
+      }
+
+      final Refresh fresh = new Refresh(System.nanoTime() + refreshNanos);
+      boolean started = (null == refresh)
+          ? null == refreshes.putIfAbsent(waveId, fresh)
+          : refreshes.replace(waveId, refresh, fresh);
+      if (started) {
+        final ListenableFuture<Wavelet> fetch = fetchWavelet(waveId, waveletId);
+        fetch.addListener(new Runnable() {
+          @Override
+          public void run() {
+            Wavelet wavelet = RpcUtil.getSafely(fetch);
+            if (null == wavelet) {
+              refreshes.remove(waveId, fresh);
+            }
+            fresh.wavelet.set(wavelet);
+          }
+        }, MoreExecutors.sameThreadExecutor());
+        return fresh.wavelet;
+      }
+    }
+  }
+
+  /**
+   * Makes the next fetch of the given wave go to the backend, so that a client
+   * that just edited it sees its edits on its next poll.
+   */
+  public void forgetRefresh(WaveId waveId) {
+    refreshes.remove(waveId);
+  }
+
   /**
    * Generates add actions for each blip in the given wavelet. The JS client determines
    * whether or not an add op should update-in-place.
    */
   private void computeAddedBlips(Wavelet wavelet, Wavelet oldWavelet, Blip rootBlip,
-      List<ClientAction> actions) {
+      BlipBases blipBases, RenderMode mode, List<ClientAction> actions) {
     boolean shouldAdd = true;
 
     // Only add new blip if it's newer!
     if (null != oldWavelet) {
       Blip oldRoot = oldWavelet.getRootBlip();
-      shouldAdd = (null == oldRoot) || isNewer(rootBlip, oldRoot);
+      shouldAdd = (null == oldRoot) || isNewer(rootBlip, oldRoot)
+          || needsResend(rootBlip, blipBases);
     }
 
+    String waveIdAsString = wavelet.getWaveId().serialise();
     if (shouldAdd) {
-      ClientAction rootAction = toAction(rootBlip, null, wavelet.getTitle());
+      ClientAction rootAction = toAction(waveIdAsString, rootBlip, null, wavelet.getTitle(),
+          mode);
       actions.add(rootAction);
     }
-    addChildren(rootBlip, oldWavelet, actions);
+    addChildren(waveIdAsString, threadIndexes.get(wavelet), rootBlip, oldWavelet, blipBases,
+        mode, actions);
   }
 
   /**
@@ -306,8 +762,9 @@ public class WaveletUpdateRpc {
         && oldWavelet.getLastModifiedTime() >= wavelet.getLastModifiedTime();
   }
 
-  private void addChildren(Blip blip, Wavelet oldWavelet, List<ClientAction> actions) {
-    List<Blip> children = blip.getChildBlips();
+  private void addChildren(String waveIdAsString, ThreadIndex threadIndex, Blip blip,
+      Wavelet oldWavelet, BlipBases blipBases, RenderMode mode, List<ClientAction> actions) {
+    List<Blip> children = threadIndex.childrenOf(blip);
     int numberOfChildren = children.size();
     for (int i = 0; i < numberOfChildren; i++) {
       Blip child = children.get(i);
@@ -316,11 +773,12 @@ public class WaveletUpdateRpc {
       // Check if this blip is really newer.
       if (null != oldWavelet) {
         Blip oldBlip = oldWavelet.getBlip(child.getBlipId());
-        shouldAdd = (null == oldBlip) || isNewer(child, oldBlip);
+        shouldAdd = (null == oldBlip) || isNewer(child, oldBlip)
+            || needsResend(child, blipBases);
       }
 
       if (shouldAdd) {
-        ClientAction action = toAction(child, blip.getBlipId(), "");
+        ClientAction action = toAction(waveIdAsString, child, blip.getBlipId(), "", mode);
 
         // all subsequent children are rendered indented. This is in keeping with
         // our funky flattened blip tree scheme.
@@ -332,7 +790,7 @@ public class WaveletUpdateRpc {
       }
 
       // recursively...
-      addChildren(child, oldWavelet, actions);
+      addChildren(waveIdAsString, threadIndex, child, oldWavelet, blipBases, mode, actions);
     }
   }
 
@@ -341,11 +799,19 @@ public class WaveletUpdateRpc {
    * If title is specified, this is a root blip.
    */
   public ClientAction toAction(Blip blipData, String parent, String title) {
-    String renderedBlip = waveRenderer.toHtml(blipData, title);
+    return toAction(blipData.getWaveId().serialise(), blipData, parent, title, RenderMode.FULL);
+  }
+
+  private ClientAction toAction(String waveIdAsString, Blip blipData, String parent,
+      String title, RenderMode mode) {
+    String domId = Markup.toDomId(blipData.getBlipId());
+    String renderedBlip = waveRenderer.toHtml(blipData, title, mode);
+    sentBlips.put(sentBlipKey(waveIdAsString, domId, blipData.getLastModifiedTime(), mode),
+        renderedBlip);
 
     // NOTE: new blip ids should not be selectors!!!
     ClientAction action = new ClientAction("add-blip")
-        .blipId(Markup.toDomId(blipData.getBlipId()))
+        .blipId(domId)
         .html(renderedBlip)
         .version(blipData.getLastModifiedTime());
 
@@ -354,4 +820,87 @@ public class WaveletUpdateRpc {
     }
     return action;
   }
+
+  /**
+   * Swaps an add-blip action for a patch-blip action against the html the
+   * client already has for the blip, if we still have that html too and the
+   * patch is small enough to be worth it. The action itself is shared, so it
+   * is left as it is.
+   */
+  private ClientAction patch(String waveIdAsString, ClientAction change, BlipBases blipBases,
+      RenderMode mode) {
+    if (!"add-blip".equals(change.getAction())) {
+      return change;
+    }
+    Long baseVersion = blipBases.versionOf(change.getBlipId());
+    if (null == baseVersion) {
+      return change;
+    }
+
+    String key = waveIdAsString + " " + change.getBlipId() + "/" + change.getVersion() + "/"
+        + baseVersion + "/" + mode + "/" + Integer.toHexString(change.getHtml().hashCode());
+    ClientAction action = patches.get(key);
+    if (null == action) {
+      action = patch(waveIdAsString, change, baseVersion, mode);
+      ClientAction raced = patches.putIfAbsent(key, action);
+      action = null != raced ? raced : action;
+    }
+    if (!"patch-blip".equals(action.getAction())) {
+      return change;
+    }
+    ++blipPatchesSent;
+    blipPatchCharsSaved += change.getHtml().length() - action.getHtml().length();
+    return action;
+  }
+
+  private ClientAction patch(String waveIdAsString, ClientAction change, long baseVersion,
+      RenderMode mode) {
+    String baseHtml = sentBlips.get(
+        sentBlipKey(waveIdAsString, change.getBlipId(), baseVersion, mode));
+    if (null == baseHtml) {
+      return change;
+    }
+
+    String html = change.getHtml();
+    String patch = HtmlPatch.diff(baseHtml, html);
+    if (patch.length() > html.length() * MAX_PATCH_RATIO) {
+      return change;
+    }
+
+    return new ClientAction("patch-blip")
+        .blipId(change.getBlipId())
+        .parent(change.getParent())
+        .indent(change.isIndent())
+        .version(change.getVersion())
+        .html(patch)
+        .base(baseVersion, baseHtml.hashCode());
+  }
+
+  private static boolean needsResend(Blip blip, BlipBases blipBases) {
+    return null != blipBases && blipBases.needsResend(Markup.toDomId(blip.getBlipId()));
+  }
+
+  private static String sentBlipKey(String waveIdAsString, String domId, long version,
+      RenderMode mode) {
+    return waveIdAsString + " " + domId + "/" + version + "/" + mode;
+  }
+
+  /**
+   * A backend fetch of a wave, and until when it is shared.
+   */
+  private static class Refresh {
+    final ValueFuture<Wavelet> wavelet = ValueFuture.create();
+    private final long expiresNanos;
+
+    Refresh(long expiresNanos) {
+      this.expiresNanos = expiresNanos;
+    }
+
+    /**
+     * @return true once the fetch is done and the refresh interval is over.
+     */
+    boolean isStale() {
+      return wavelet.isDone() && System.nanoTime() - expiresNanos > 0;
+    }
+  }
 }
@@ -16,8 +16,10 @@
  */
 package com.google.wave.splash.rpc.json;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
@@ -100,14 +102,35 @@ public class RpcBundle {
    * Send the operations synchronously.
    */
   public void send() {
-    String responseString = RpcUtil.getSafely(sendAsync());
+    checkResponse(RpcUtil.getSafely(sendAsync()));
+  }
+
+  /**
+   * Sends the operations asynchronously, and logs those that failed once the
+   * reply is in.
+   * @return the future of whether all operations succeeded.
+   */
+  public ListenableFuture<Boolean> applyAsync() {
+    return Futures.compose(sendAsync(), new Function<String, Boolean>() {
+      @Override
+      public Boolean apply(String responseString) {
+        return checkResponse(responseString);
+      }
+    });
+  }
+
+  /**
+   * Logs the operations that failed.
+   * @return true if all succeeded.
+   */
+  private boolean checkResponse(String responseString) {
     if (LOG.isLoggable(Level.FINE)) {
       LOG.fine("responseString from RpcBundle.send: " + responseString);
     }
 
     if (null == responseString) {
       LOG.severe("send() RPC appears to have failed--no JSON reply.");
-      return;
+      return false;
     }
 
     List<JsonRpcResponse> responses;
@@ -116,13 +139,15 @@ public class RpcBundle {
     } else {
       responses = ImmutableList.of(gson.fromJson(responseString, JsonRpcResponse.class));
     }
+    boolean succeeded = true;
     for (JsonRpcResponse response : responses) {
       if (response.isError()) {
         LOG.severe("RpcBundle.send got an error response for operation " + response.getId() + ": "
             + response.getErrorMessage() );
-
+        succeeded = false;
       }
     }
+    return succeeded;
   }
 
   /**
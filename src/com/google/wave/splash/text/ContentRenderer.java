@@ -16,21 +16,24 @@
  */
 package com.google.wave.splash.text;
 
+import com.google.common.collect.MapMaker;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.wave.splash.web.stats.Stat;
+import com.google.wave.splash.web.stats.Stats;
 import com.google.wave.splash.web.stats.Timed;
+import com.google.wave.splash.web.template.RenderMode;
 import com.google.wave.splash.web.template.WaveRenderer;
-import com.google.wave.api.Annotation;
 import com.google.wave.api.Annotations;
 import com.google.wave.api.Attachment;
+import com.google.wave.api.Blip;
 import com.google.wave.api.Element;
 import com.google.wave.api.ElementType;
 import com.google.wave.api.Gadget;
 
 import java.util.List;
-import java.util.Map;
 import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A utility class that converts blip content into html.
@@ -38,64 +41,35 @@ import java.util.TreeSet;
  * @author David Byttow
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
+@Singleton
 public class ContentRenderer {
+  // Largest output buffer kept between renders, in chars.
+  private static final int MAX_RETAINED_CONTENT_CHARS = 64 * 1024;
 
-  /**
-   * Represents a marker in content that is either the start or end of
-   * an annotation or a single element.
-   */
-  static class Marker implements Comparable<Marker> {
-    static Marker fromAnnotation(Annotation annotation, int index, boolean isEnd) {
-      return new Marker(annotation, index, isEnd);
-    }
-
-    static Marker fromElement(Element element, int index) {
-      return new Marker(element, index);
-    }
-
-    private final int index;
-    private final Annotation annotation;
-    private final Element element;
-    private boolean isEnd;
+  @Stat(name = "render-index-builds",
+      help = "Number of blip renders that had to index annotations and elements first.")
+  private static volatile int indexBuilds;
 
-    private Marker(Annotation annotation, int index, boolean isEnd) {
-      this.annotation = annotation;
-      this.element = null;
-      this.index = index;
-      this.isEnd = isEnd;
-    }
+  @Stat(name = "render-index-hits",
+      help = "Number of blip renders that reused the index of an earlier render.")
+  private static volatile int indexHits;
 
-    private Marker(Element element, int index) {
-      this.element = element;
-      this.annotation = null;
-      this.index = index;
-    }
-
-    boolean isElement() {
-      return this.element != null;
-    }
-
-    boolean isAnnotation() {
-      return this.annotation != null;
-    }
-
-    @Override
-    public int compareTo(Marker that) {
-      int value = Integer.signum(this.index - that.index);
-      if (value == 0) {
-        if (this.isElement() != that.isElement()) {
-          // At boundaries, annotations should wrap elements.
-          Marker annotation = this.isAnnotation() ? this : that;
-          return annotation.isEnd ? -1 : 1;
-        }
-      }
-      return value;
-    }
+  static {
+    Stats.trackClass(ContentRenderer.class);
   }
 
   private final GadgetRenderer gadgetRenderer;
   private final WaveRenderer waveRenderer;
 
+  // Output buffer, reused by all renders on a thread.
+  private final RenderBuffer contentBuffer = new RenderBuffer(MAX_RETAINED_CONTENT_CHARS);
+
+  // Render index of every blip snapshot we have in memory. Keyed weakly by
+  // identity, so that each fetched version of a blip gets its own.
+  private final ConcurrentMap<Blip, RenderIndex> indexes = new MapMaker()
+      .weakKeys()
+      .makeMap();
+
   @Inject
   public ContentRenderer(GadgetRenderer gadgetRenderer, WaveRenderer waveRenderer) {
     this.gadgetRenderer = gadgetRenderer;
@@ -106,74 +80,112 @@ public class ContentRenderer {
    * Takes content and applies style and formatting to it based on its
    * annotations and elements.
    *
+   * Only one annotation boundary is kept per content index (the first found),
+   * and at an element's index annotations wrap the element: a starting
+   * annotation is emitted before it and an ending one after it.
+   *
    * Timing:
    *  Current time on dhanji's MBP appears to be ~50-60ms for a 400 blip wave.
    *  Not too bad. We should start worrying about paging when this number exceeds 100ms.
    */
-  @Timed
   public String renderHtml(String content, Annotations annotations,
       SortedMap<Integer, Element> elements, List<String> contributors) {
-    StringBuilder builder = new StringBuilder();
-
-    // NOTE(dhanji): This step is enormously important!
-    char[] raw = content.toCharArray();
-
-    SortedSet<Marker> markers = new TreeSet<Marker>();
-
-    // First add annotations sorted by range.
-    for (Annotation annotation : annotations.asList()) {
-      // Ignore anything but style or title annotations.
-      String annotationName = annotation.getName();
-      if (annotationName.startsWith("style")) {
-        markers.add(Marker.fromAnnotation(annotation, annotation.getRange().getStart(), false));
-        markers.add(Marker.fromAnnotation(annotation, annotation.getRange().getEnd(), true));
-      } else if ("conv/title".equals(annotationName)) {
-        // Find the first newline and make sure the annotation only gets to that
-        // point.
-        int start = annotation.getRange().getStart();
-        int from = raw[0] == '\n' ? 1 : 0;
-        int end = content.indexOf('\n', from);
-        if (end > start && start < end) {
-          Annotation title = new Annotation(Annotation.FONT_WEIGHT, "bold", start, end);
-          markers.add(Marker.fromAnnotation(title, start, false));
-          markers.add(Marker.fromAnnotation(title, end, true));
-        }
-      }
+    return renderHtml(content, annotations, elements, contributors, RenderMode.FULL);
+  }
+
+  /**
+   * As {@link #renderHtml(String, Annotations, SortedMap, List)}, but compact
+   * renders get a placeholder for each gadget instead of its iframe.
+   */
+  @Timed
+  public String renderHtml(String content, Annotations annotations,
+      SortedMap<Integer, Element> elements, List<String> contributors, RenderMode mode) {
+    RenderIndex index = RenderIndex.build(content, annotations.asList(), elements);
+    return render(content, index, contributors, mode);
+  }
+
+  /**
+   * Renders the content of a blip. Its annotations and elements are indexed
+   * on first render and the index is kept for as long as the blip, so that
+   * rendering the same version again skips straight to emitting html.
+   */
+  @Timed
+  public String renderHtml(Blip blip, RenderMode mode) {
+    String content = blip.getContent();
+    RenderIndex index = indexes.get(blip);
+    // Edits are applied to cached blips in place, which replaces their content.
+    if (index == null || !index.isFor(content)) {
+      index = RenderIndex.build(content, blip.getAnnotations().asList(), blip.getElements());
+      indexes.put(blip, index);
+      indexBuilds++;
+    } else {
+      indexHits++;
     }
+    return render(content, index, blip.getContributors(), mode);
+  }
 
-    // Now add elements sorted by index.
-    for (Map.Entry<Integer, Element> entry : elements.entrySet()) {
-      markers.add(Marker.fromElement(entry.getValue(), entry.getKey()));
+  private String render(String content, RenderIndex index, List<String> contributors,
+      RenderMode mode) {
+    StringBuilder builder = contentBuffer.acquire(content.length() + index.size() * 16);
+    try {
+      render(content, index, contributors, mode, builder);
+      return builder.toString();
+    } finally {
+      contentBuffer.release(builder);
     }
+  }
 
+  private void render(String content, RenderIndex index, List<String> contributors,
+      RenderMode mode, StringBuilder builder) {
     builder.append("<p>");
-    int cursor = 0;
-    for (Marker marker : markers) {
-      if (marker.index > cursor) {
-        int to = Math.min(raw.length, marker.index);
-        builder.append(Markup.sanitize(new String(raw, cursor, to - cursor)));
-      }
-
-      cursor = marker.index;
-
-      if (marker.isElement()) {
-        renderElement(marker.element, marker.index, contributors, builder);
+    RenderState state = new RenderState(builder.length());
+
+    for (int entry = 0; entry < index.size(); entry++) {
+      int position = index.position(entry);
+      emitText(content, state, position, builder);
+      Element element = index.element(entry);
+      if (element != null) {
+        renderElement(element, position, contributors, mode, builder, state);
       } else {
-        emitStyleAnnotation(marker, builder);
+        builder.append(index.tag(entry));
       }
     }
 
     // add any tail bits
-    if (cursor < raw.length - 1) {
-      builder.append(Markup.sanitize(new String(raw, cursor, raw.length - cursor)));
+    if (state.cursor < content.length() - 1) {
+      Markup.appendSanitized(builder, content, state.cursor, content.length());
+    }
+  }
+
+  /**
+   * Where we are in the content, and where the html of the current paragraph
+   * starts in the output.
+   */
+  private static class RenderState {
+    private int cursor;
+    private int paragraphStart;
+
+    RenderState(int paragraphStart) {
+      this.paragraphStart = paragraphStart;
     }
+  }
 
-    // Replace empty paragraphs. (TODO expensive and silly)
-    return builder.toString().replace("<p>\n</p>", "<p><br/></p>");
+  /**
+   * Emits the content between the cursor and the given marker index.
+   */
+  private static void emitText(String content, RenderState state, int index,
+      StringBuilder builder) {
+    if (index > state.cursor) {
+      int to = Math.min(content.length(), index);
+      if (to > state.cursor) {
+        Markup.appendSanitized(builder, content, state.cursor, to);
+      }
+    }
+    state.cursor = index;
   }
 
   private void renderElement(Element element, int index, List<String> contributors,
-      StringBuilder builder) {
+      RenderMode mode, StringBuilder builder, RenderState state) {
     ElementType type = element.getType();
     switch (type) {
       case LINE:
@@ -182,26 +194,33 @@ public class ContentRenderer {
         // Special case: If this is the first LINE element at position 0,
         // ignore it because we've already appended the first <p> tag.
         if (index > 0) {
+          // Give empty paragraphs a line break, so they keep their height.
+          if (builder.length() == state.paragraphStart + 1
+              && builder.charAt(state.paragraphStart) == '\n') {
+            builder.setLength(state.paragraphStart);
+            builder.append("<br/>");
+          }
           builder.append("</p><p>");
+          state.paragraphStart = builder.length();
         }
         break;
       case ATTACHMENT:
         Attachment attachment = (Attachment) element;
         String url = Markup.sanitizeAndEncode(attachment.getAttachmentUrl());
-        String caption = Markup.sanitize(element.getProperty("caption"));
+        String caption = element.getProperty("caption");
         if (caption == null) {
           caption = "";
         }
         // TODO: Revisit this questionable html.
         builder.append("<table class=\"attachment-element\"><tr><td>")
-            .append("<a class=\"lightbox\" title=\"")
-            .append(caption)
+            .append("<a class=\"lightbox\" title=\"");
+        Markup.appendSanitized(builder, caption)
             .append("\" href=\"")
             .append(url)
             .append("\"><img src=\"")
             .append(url)
-            .append("\"/></a></td></tr></td></tr><tr><td><div class=\"caption\">")
-            .append(caption)
+            .append("\"/></a></td></tr></td></tr><tr><td><div class=\"caption\">");
+        Markup.appendSanitized(builder, caption)
             .append("</div></td></tr></table>");
         break;
       case IMAGE:
@@ -213,7 +232,11 @@ public class ContentRenderer {
         }
         break;
       case GADGET:
-        gadgetRenderer.render((Gadget) element, contributors, builder);
+        if (mode == RenderMode.COMPACT) {
+          gadgetRenderer.renderPlaceholder((Gadget) element, builder);
+        } else {
+          gadgetRenderer.render((Gadget) element, contributors, builder);
+        }
         break;
       case INLINE_BLIP:
         waveRenderer.renderInlineReply(element, index, builder);
@@ -223,24 +246,4 @@ public class ContentRenderer {
         // Ignore all others.
     }
   }
-
-  private void emitStyleAnnotation(Marker marker, StringBuilder builder) {
-    if (marker.isEnd) {
-      builder.append("</span>");
-    } else {
-      // Transform name into dash-separated css property rather than lower camel case.
-      String name = Markup.sanitize(marker.annotation.getName());
-      String value = Markup.sanitize(marker.annotation.getValue());
-
-      // Title annotations are translated as bold.
-      name = name.substring(marker.annotation.getName().indexOf("/") + 1);
-      name = Markup.toDashedStyle(name);
-
-      builder.append("<span style='");
-      builder.append(name);
-      builder.append(':');
-      builder.append(value);
-      builder.append("'>");
-    }
-  }
 }
@@ -16,9 +16,11 @@
  */
 package com.google.wave.splash.text;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.name.Named;
 import com.google.wave.api.Gadget;
 
 import java.util.List;
@@ -26,9 +28,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.servlet.http.HttpServletRequest;
-
-
 /**
  * Render gadget iframes from Elements.
  *
@@ -36,17 +35,17 @@ import javax.servlet.http.HttpServletRequest;
  */
 public class GadgetRenderer {
   private static final Set<String> NON_STATE_PROPERTIES = ImmutableSet.of("author", "url");
-  private final Provider<HttpServletRequest> requestProvider;
+  private final Provider<String> requestUrl;
   private final AtomicInteger nextId = new AtomicInteger(0);
 
   @Inject
-  public GadgetRenderer(Provider<HttpServletRequest> requestProvider) {
-    this.requestProvider = requestProvider;
+  public GadgetRenderer(@Named("requestUrl") Provider<String> requestUrl) {
+    this.requestUrl = requestUrl;
   }
 
   void render(Gadget gadget, List<String> contributors, StringBuilder builder) {
     String id = "g" + nextId.incrementAndGet();
-    String parentUrl = requestProvider.get().getRequestURL().toString();
+    String parentUrl = requestUrl.get();
 
     appendState(gadget, id, contributors, builder);
     builder.append("<iframe class=\"gadget\" "
@@ -62,6 +61,15 @@ public class GadgetRenderer {
         .append("\"/>");
   }
 
+  /**
+   * Renders a stand-in for a gadget, for clients that don't load gadgets.
+   */
+  void renderPlaceholder(Gadget gadget, StringBuilder builder) {
+    builder.append("<div class=\"gadget-placeholder\" title=\"");
+    Markup.appendSanitized(builder, Strings.nullToEmpty(gadget.getUrl()))
+        .append("\">Gadget</div>");
+  }
+
   private void appendState(Gadget gadget, String id, List<String> contributors,
       StringBuilder builder) {
     String output = "";
@@ -90,13 +98,13 @@ public class GadgetRenderer {
         .append(className)
         .append("\"");
     if (key != null) {
-      builder.append(" hiddenKey=\"")
-          .append(Markup.sanitize(key))
+      builder.append(" hiddenKey=\"");
+      Markup.appendSanitized(builder, key)
           .append('"');
     }
     builder.append(">");
     if (value != null) {
-      builder.append(Markup.sanitize(value));
+      Markup.appendSanitized(builder, value);
     }
     builder.append("</span>");
   }
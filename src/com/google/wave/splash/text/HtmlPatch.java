@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.text;
+
+import java.util.LinkedList;
+
+/**
+ * Computes compact patches between two renderings of the same blip, so that a
+ * small edit to a long blip can be sent to the client as a few characters
+ * rather than all of its html. A patch is a run of operations over the old
+ * html, each a single character followed by a length:
+ * <pre>
+ *   =12       keep the next 12 characters
+ *   -3        drop the next 3 characters
+ *   +5:hello  insert the 5 characters following the colon
+ * </pre>
+ * The client applies patches in {@code wave.Rpc.applyPatch_} (rpc.js), which
+ * must stay in step with {@link #apply}.
+ */
+public class HtmlPatch {
+  private static final DiffMatchPatch diffMatchPatch = new DiffMatchPatch();
+
+  static {
+    // We diff on the request path, so settle for a less minimal diff rather
+    // than a slow one. Oversized patches are sent as full html anyway.
+    diffMatchPatch.Diff_Timeout = 0.1f;
+  }
+
+  private HtmlPatch() {
+  }
+
+  /**
+   * @return a patch that turns {@code from} into {@code to}.
+   */
+  public static String diff(String from, String to) {
+    LinkedList<DiffMatchPatch.Diff> diffs = diffMatchPatch.diff_main(from, to, false);
+    diffMatchPatch.diff_cleanupEfficiency(diffs);
+
+    StringBuilder patch = new StringBuilder();
+    for (DiffMatchPatch.Diff diff : diffs) {
+      int length = diff.text.length();
+      switch (diff.operation) {
+        case EQUAL:
+          patch.append('=').append(length);
+          break;
+        case DELETE:
+          patch.append('-').append(length);
+          break;
+        case INSERT:
+          patch.append('+').append(length).append(':').append(diff.text);
+          break;
+      }
+    }
+    return patch.toString();
+  }
+
+  /**
+   * Applies a patch produced by {@link #diff} to the text it was made from.
+   *
+   * @throws IllegalArgumentException if the patch is malformed or does not
+   *     fit the given text.
+   */
+  public static String apply(String from, String patch) {
+    StringBuilder to = new StringBuilder(from.length());
+    int cursor = 0;
+    int i = 0;
+    while (i < patch.length()) {
+      char op = patch.charAt(i++);
+      int start = i;
+      while (i < patch.length() && Character.isDigit(patch.charAt(i))) {
+        i++;
+      }
+      if (start == i) {
+        throw new IllegalArgumentException("Missing length at " + start + " in patch");
+      }
+      int length = Integer.parseInt(patch.substring(start, i));
+
+      switch (op) {
+        case '=':
+          if (cursor + length > from.length()) {
+            throw new IllegalArgumentException("Patch runs past the end of the text");
+          }
+          to.append(from, cursor, cursor + length);
+          cursor += length;
+          break;
+        case '-':
+          cursor += length;
+          break;
+        case '+':
+          // Skip the colon.
+          i++;
+          if (i + length > patch.length()) {
+            throw new IllegalArgumentException("Insert runs past the end of the patch");
+          }
+          to.append(patch, i, i + length);
+          i += length;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown patch operation: " + op);
+      }
+    }
+    if (cursor != from.length()) {
+      throw new IllegalArgumentException("Patch does not cover the whole text");
+    }
+    return to.toString();
+  }
+}
@@ -22,11 +22,9 @@ import com.google.inject.Singleton;
 import com.google.wave.splash.data.ProfileStore;
 import com.google.wave.splash.rpc.ClientAction;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 /**
  * A utility class that converts raw wave documents into html.
@@ -35,10 +33,7 @@ import java.util.Date;
  */
 @Singleton
 public class Markup {
-  private static final DateFormat TIME_MILLIS_FORMATTER = new SimpleDateFormat("s.SSS");
-  private static final DateFormat TIME_FORMATTER = new SimpleDateFormat("h:mm a");
-  private static final DateFormat MONTH_DAY_FORMATTER = new SimpleDateFormat("MMM dd");
-  private static final DateFormat MONTH_DAY_YEAR_FORMATTER = new SimpleDateFormat("MMM dd, yyyy");
+  private static final TimestampFormatter TIMESTAMPS = new TimestampFormatter();
 
   private final ProfileStore profileStore;
 
@@ -77,24 +72,18 @@ public class Markup {
    * same day as "now", then it will only display the time (12:30 PM). If it's
    * in the same year, then it will display the month and day (Jun 01) otherwise
    * it will return the month, day and year (Jun 01, 2009).
+   * <p>
+   * Safe to call from concurrent renders, and cheap for repeated timestamps.
    *
    * @param timestamp
    * @return the formatted date time string.
    */
   public static String formatDateTime(long timestamp) {
-    Date date = new Date(timestamp);
-    Date now = new Date();
-    if (now.getDay() == date.getDay()) {
-      return TIME_FORMATTER.format(date);
-    } else if (now.getYear() == date.getYear()) {
-      return MONTH_DAY_FORMATTER.format(date);
-    } else {
-      return MONTH_DAY_YEAR_FORMATTER.format(date);
-    }
+    return TIMESTAMPS.format(timestamp);
   }
 
   public static String formatMillis(long millis) {
-    return TIME_MILLIS_FORMATTER.format(new Date(millis)) + "s";
+    return TimestampFormatter.formatMillis(millis);
   }
 
   public static String toDomId(String id) {
@@ -136,35 +125,106 @@ public class Markup {
    * @return Escaped text that can safely be rendered in a web page.
    */
   public static String sanitize(String text) {
-    StringBuilder out = new StringBuilder(text.length());
+    int first = firstUnsafe(text, 0, text.length());
+    if (first == text.length()) {
+      // Nothing to escape, which is the common case.
+      return text;
+    }
+
+    StringBuilder out = new StringBuilder(text.length() + 16);
+    out.append(text, 0, first);
+    appendSanitized(out, text, first, text.length());
+    return out.toString();
+  }
 
-    char[] chars = text.toCharArray();
-    for (char c : chars) {
-      switch (c) {
-        case '&':
-          out.append("&amp;");
-          break;
-        case '\'':
-          out.append("&#39;");
-          break;
-        case '"':
-          out.append("&quot;");
-          break;
-        case '<':
-          out.append("&lt;");
-          break;
-        case '>':
-          out.append("&gt;");
-          break;
-        default:
-          // allow all other characters.
-          out.append(c);
+  /**
+   * Appends untrusted text to the given builder, escaped as by
+   * {@link #sanitize}, without any intermediate copies.
+   *
+   * @return the builder.
+   */
+  public static StringBuilder appendSanitized(StringBuilder out, CharSequence text) {
+    return appendSanitized(out, text, 0, text.length());
+  }
+
+  /**
+   * Appends the characters of {@code text} from {@code start} (inclusive) to
+   * {@code end} (exclusive) to the given builder, escaped as by
+   * {@link #sanitize}. Runs of safe characters are appended in bulk.
+   *
+   * @return the builder.
+   */
+  public static StringBuilder appendSanitized(StringBuilder out, CharSequence text,
+      int start, int end) {
+    int run = start;
+    for (int i = firstUnsafe(text, start, end); i < end; i++) {
+      String entity = entityFor(text.charAt(i));
+      if (entity != null) {
+        out.append(text, run, i);
+        out.append(entity);
+        run = i + 1;
       }
     }
+    return out.append(text, run, end);
+  }
 
-    return out.toString();
+  /**
+   * Appends untrusted text to any kind of output, escaped as by
+   * {@link #sanitize}.
+   *
+   * @return the output.
+   */
+  public static Appendable appendSanitized(Appendable out, CharSequence text)
+      throws IOException {
+    int end = text.length();
+    int run = 0;
+    for (int i = firstUnsafe(text, 0, end); i < end; i++) {
+      String entity = entityFor(text.charAt(i));
+      if (entity != null) {
+        out.append(text, run, i);
+        out.append(entity);
+        run = i + 1;
+      }
+    }
+    return out.append(text, run, end);
   }
-  
+
+  /**
+   * @return the index of the first character in the given range that needs
+   *     escaping, or {@code end} if there is none.
+   */
+  private static int firstUnsafe(CharSequence text, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      // All the escaped characters are below '?', skip the rest quickly.
+      if (c < '?' && entityFor(c) != null) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * @return the escape code {@link #sanitize} replaces the given character
+   *     with, or null if the character is emitted as is.
+   */
+  static String entityFor(char c) {
+    switch (c) {
+      case '&':
+        return "&amp;";
+      case '\'':
+        return "&#39;";
+      case '"':
+        return "&quot;";
+      case '<':
+        return "&lt;";
+      case '>':
+        return "&gt;";
+      default:
+        return null;
+    }
+  }
+
   /**
    * Checks if the scheme is one of four simple types (see #isSafeUri), if not
    * disallows the URI by reducing it to '#'
@@ -209,9 +269,7 @@ public class Markup {
    * <pre>
    *   fontWeight -> font-weight
    * </pre>
-   * TODO: perhaps we should intern all these strings to save memory
-   * and remove the overhead of string allocation, they could also
-   * be perfectly hashed.
+   * Style annotation names are only converted once, see {@link RenderIndex}.
    */
   static String toDashedStyle(String name) {
     char[] nameChars = name.toCharArray();
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.text;
+
+import com.google.wave.splash.web.stats.Stat;
+import com.google.wave.splash.web.stats.Stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reusable, per-thread {@link StringBuilder} for one kind of render output.
+ * Rendering a large wave otherwise grows a fresh builder by repeated doubling
+ * on every request. A builder that grew past the retention cap is dropped
+ * after use, so that one huge wave does not pin its size on every thread.
+ * <p>
+ * Each {@link #acquire} must be paired with a {@link #release} on the same
+ * thread, once the contents have been copied out. A nested acquire on the
+ * same thread, as when blips render their inline replies, gets a fresh
+ * builder.
+ */
+public class RenderBuffer {
+  @Stat(name = "render-buffer-reuses",
+      help = "Number of renders that reused a thread's render buffer.")
+  private static volatile int reuses;
+
+  @Stat(name = "render-buffer-growths",
+      help = "Number of renders that outgrew the capacity their buffer started with.")
+  private static volatile int growths;
+
+  @Stat(name = "render-buffer-retained-chars",
+      help = "Capacity, in chars, of the render buffers held by idle threads.")
+  private static final AtomicLong retainedChars = new AtomicLong();
+
+  static {
+    Stats.trackClass(RenderBuffer.class);
+  }
+
+  private final int maxRetainedChars;
+  private final ThreadLocal<Slot> slots = new ThreadLocal<Slot>() {
+    @Override
+    protected Slot initialValue() {
+      return new Slot();
+    }
+  };
+
+  private static class Slot {
+    private StringBuilder builder;
+    private int acquiredCapacity;
+    private boolean inUse;
+  }
+
+  /**
+   * @param maxRetainedChars the largest capacity a buffer may keep between
+   *     renders.
+   */
+  public RenderBuffer(int maxRetainedChars) {
+    this.maxRetainedChars = maxRetainedChars;
+  }
+
+  /**
+   * @return an empty builder with at least the expected capacity.
+   */
+  public StringBuilder acquire(int expectedLength) {
+    Slot slot = slots.get();
+    if (slot.inUse) {
+      return new StringBuilder(expectedLength);
+    }
+    slot.inUse = true;
+
+    StringBuilder builder = slot.builder;
+    if (builder == null) {
+      builder = new StringBuilder(expectedLength);
+      slot.builder = builder;
+    } else {
+      ++reuses;
+      retainedChars.addAndGet(-builder.capacity());
+      builder.ensureCapacity(expectedLength);
+    }
+    slot.acquiredCapacity = builder.capacity();
+    return builder;
+  }
+
+  /**
+   * Returns a builder from {@link #acquire} for reuse. The builder must not
+   * be used afterwards.
+   */
+  public void release(StringBuilder builder) {
+    Slot slot = slots.get();
+    if (builder != slot.builder || !slot.inUse) {
+      // A nested acquire's builder, just let it go.
+      return;
+    }
+    slot.inUse = false;
+
+    int capacity = builder.capacity();
+    if (capacity > slot.acquiredCapacity) {
+      ++growths;
+    }
+    if (capacity > maxRetainedChars) {
+      slot.builder = null;
+    } else {
+      builder.setLength(0);
+      retainedChars.addAndGet(capacity);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.text;
+
+import com.google.common.collect.MapMaker;
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Element;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Everything {@link ContentRenderer} needs to know about a blip's annotations
+ * and elements, merged into one flat list in the order they are emitted. Each
+ * entry is a content position with either the html of a span boundary, with
+ * its css already worked out, or an element to render. Built once per blip
+ * version, so that rendering it again is a single pass over the content.
+ */
+final class RenderIndex {
+  private static final String TITLE_ANNOTATION = "conv/title";
+  private static final String TITLE_SPAN = "<span style='font-weight:bold'>";
+  private static final String CLOSE_SPAN = "</span>";
+
+  /**
+   * Annotation boundaries are encoded as longs, with the content index in the
+   * high word and the order in which they were found in the low word (twice the
+   * annotation's position in the list, plus one for the end). Sorting these
+   * puts them in content order, first-found first.
+   */
+  private static final int INDEX_SHIFT = 32;
+  private static final long SEQUENCE_MASK = 0xFFFFFFFFL;
+
+  // Css property of each style annotation name we've seen, shared by all
+  // indexes. There are only a handful of these in practice.
+  private static final ConcurrentMap<String, String> cssProperties = new MapMaker()
+      .softValues()
+      .makeMap();
+
+  private final String content;
+  private final int[] positions;
+  private final String[] tags;
+  private final Element[] elements;
+  private int size;
+
+  private RenderIndex(String content, int capacity) {
+    this.content = content;
+    this.positions = new int[capacity];
+    this.tags = new String[capacity];
+    this.elements = new Element[capacity];
+  }
+
+  /**
+   * Merges the style and title annotations of a blip with its elements.
+   *
+   * Only one annotation boundary is kept per content index (the first found),
+   * and at an element's index annotations wrap the element: a starting
+   * annotation comes before it and an ending one after it.
+   */
+  static RenderIndex build(String content, List<Annotation> annotationList,
+      SortedMap<Integer, Element> elements) {
+    long[] markers = new long[annotationList.size() * 2];
+    int count = collectMarkers(content, annotationList, markers);
+    RenderIndex index = new RenderIndex(content, count + elements.size());
+
+    Iterator<Map.Entry<Integer, Element>> elementIterator = elements.entrySet().iterator();
+    Map.Entry<Integer, Element> element = elementIterator.hasNext() ? elementIterator.next() : null;
+    int next = 0;
+    int lastAnnotationIndex = -1;
+    while (true) {
+      while (next < count && (int) (markers[next] >>> INDEX_SHIFT) == lastAnnotationIndex) {
+        next++;
+      }
+      boolean hasAnnotation = next < count;
+      if (element == null && !hasAnnotation) {
+        break;
+      }
+
+      int annotationIndex = hasAnnotation ? (int) (markers[next] >>> INDEX_SHIFT) : 0;
+      boolean annotationIsEnd = hasAnnotation && (markers[next] & 1) == 1;
+      if (element != null && (!hasAnnotation || element.getKey() < annotationIndex
+          || (element.getKey() == annotationIndex && annotationIsEnd))) {
+        index.add(element.getKey(), null, element.getValue());
+        element = elementIterator.hasNext() ? elementIterator.next() : null;
+      } else {
+        if (annotationIsEnd) {
+          index.add(annotationIndex, CLOSE_SPAN, null);
+        } else {
+          int sequence = (int) (markers[next] & SEQUENCE_MASK);
+          index.add(annotationIndex, openTag(annotationList.get(sequence >> 1)), null);
+        }
+        lastAnnotationIndex = annotationIndex;
+        next++;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Collects the boundaries of style and title annotations into the given
+   * marker buffer, sorted.
+   *
+   * @return the number of markers collected.
+   */
+  private static int collectMarkers(String content, List<Annotation> annotationList,
+      long[] markers) {
+    int count = 0;
+    for (int i = 0; i < annotationList.size(); i++) {
+      Annotation annotation = annotationList.get(i);
+      String annotationName = annotation.getName();
+      int start;
+      int end;
+      if (annotationName.startsWith("style")) {
+        start = annotation.getRange().getStart();
+        end = annotation.getRange().getEnd();
+      } else if (TITLE_ANNOTATION.equals(annotationName)) {
+        // Find the first newline and make sure the annotation only gets to that
+        // point.
+        start = annotation.getRange().getStart();
+        int from = (content.length() > 0 && content.charAt(0) == '\n') ? 1 : 0;
+        end = content.indexOf('\n', from);
+        if (end <= start) {
+          continue;
+        }
+      } else {
+        // Ignore anything but style or title annotations.
+        continue;
+      }
+      markers[count++] = ((long) start << INDEX_SHIFT) | (i << 1);
+      markers[count++] = ((long) end << INDEX_SHIFT) | (i << 1) | 1;
+    }
+    Arrays.sort(markers, 0, count);
+    return count;
+  }
+
+  private void add(int position, String tag, Element element) {
+    positions[size] = position;
+    tags[size] = tag;
+    elements[size] = element;
+    size++;
+  }
+
+  private static String openTag(Annotation annotation) {
+    String name = annotation.getName();
+    if (TITLE_ANNOTATION.equals(name)) {
+      // Title annotations are translated as bold.
+      return TITLE_SPAN;
+    }
+
+    String property = cssProperties.get(name);
+    if (property == null) {
+      property = cssProperty(name);
+      cssProperties.put(name, property);
+    }
+    StringBuilder tag = new StringBuilder("<span style='").append(property).append(':');
+    Markup.appendSanitized(tag, annotation.getValue());
+    return tag.append("'>").toString();
+  }
+
+  /**
+   * Transforms a style annotation name into a dash-separated css property,
+   * rather than lower camel case.
+   */
+  private static String cssProperty(String name) {
+    int from = name.indexOf('/') + 1;
+    for (int i = 0; i < from; i++) {
+      if (Markup.entityFor(name.charAt(i)) != null) {
+        // Escaping shifts the namespace, so do it the long way.
+        return Markup.toDashedStyle(Markup.sanitize(name).substring(from));
+      }
+    }
+    return Markup.sanitize(Markup.toDashedStyle(name.substring(from)));
+  }
+
+  /**
+   * @return true if this index was built from the given content. Blips edited
+   *     in place get new content, and so a new index.
+   */
+  boolean isFor(String content) {
+    return this.content == content;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return the content position of the given entry.
+   */
+  int position(int entry) {
+    return positions[entry];
+  }
+
+  /**
+   * @return the html of the span boundary at the given entry, or null if the
+   *     entry is an element.
+   */
+  String tag(int entry) {
+    return tags[entry];
+  }
+
+  /**
+   * @return the element at the given entry, or null if the entry is a span
+   *     boundary.
+   */
+  Element element(int entry) {
+    return elements[entry];
+  }
+}
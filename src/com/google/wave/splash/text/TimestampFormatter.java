@@ -0,0 +1,136 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.text;
+
+import com.google.common.collect.MapMaker;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe, caching formatter for the friendly timestamps shown on blips and
+ * in the search feed. Formatted strings are cached per minute for timestamps
+ * of the current day, and per day for older ones, so rendering a wave formats
+ * each distinct time only once. The caches are dropped when the day changes,
+ * since what "today" and "this year" mean changes with it.
+ */
+class TimestampFormatter {
+  private static final long MINUTE_MILLIS = 60 * 1000L;
+  private static final long DAY_MILLIS = 24 * 60 * MINUTE_MILLIS;
+
+  // SimpleDateFormat is not thread-safe, so each thread gets its own.
+  private static final ThreadLocal<DateFormat> TIME_FORMATTER = formatter("h:mm a");
+  private static final ThreadLocal<DateFormat> MONTH_DAY_FORMATTER = formatter("MMM dd");
+  private static final ThreadLocal<DateFormat> MONTH_DAY_YEAR_FORMATTER =
+      formatter("MMM dd, yyyy");
+
+  /**
+   * The current day and everything we have formatted relative to it.
+   */
+  private static class Today {
+    private final long start;
+    private final long end;
+    private final int year;
+    private final ConcurrentMap<Long, String> minutes = new MapMaker().makeMap();
+    private final ConcurrentMap<Long, String> days = new MapMaker().makeMap();
+
+    Today(long now) {
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTimeInMillis(now);
+      year = calendar.get(Calendar.YEAR);
+      calendar.set(Calendar.HOUR_OF_DAY, 0);
+      calendar.set(Calendar.MINUTE, 0);
+      calendar.set(Calendar.SECOND, 0);
+      calendar.set(Calendar.MILLISECOND, 0);
+      start = calendar.getTimeInMillis();
+      calendar.add(Calendar.DATE, 1);
+      end = calendar.getTimeInMillis();
+    }
+  }
+
+  private volatile Today today = new Today(System.currentTimeMillis());
+
+  /**
+   * Formats the given timestamp relative to the current time, see
+   * {@link Markup#formatDateTime}.
+   */
+  String format(long timestamp) {
+    return format(timestamp, System.currentTimeMillis());
+  }
+
+  String format(long timestamp, long now) {
+    Today today = this.today;
+    if (now < today.start || now >= today.end) {
+      today = new Today(now);
+      this.today = today;
+    }
+
+    if (timestamp >= today.start && timestamp < today.end) {
+      Long minute = timestamp / MINUTE_MILLIS;
+      String formatted = today.minutes.get(minute);
+      if (formatted == null) {
+        formatted = TIME_FORMATTER.get().format(new Date(timestamp));
+        today.minutes.put(minute, formatted);
+      }
+      return formatted;
+    }
+
+    TimeZone timeZone = TIME_FORMATTER.get().getTimeZone();
+    long local = timestamp + timeZone.getOffset(timestamp);
+    Long day = (local >= 0) ? local / DAY_MILLIS : (local + 1) / DAY_MILLIS - 1;
+    String formatted = today.days.get(day);
+    if (formatted == null) {
+      Date date = new Date(timestamp);
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTime(date);
+      formatted = (calendar.get(Calendar.YEAR) == today.year)
+          ? MONTH_DAY_FORMATTER.get().format(date)
+          : MONTH_DAY_YEAR_FORMATTER.get().format(date);
+      today.days.put(day, formatted);
+    }
+    return formatted;
+  }
+
+  /**
+   * Formats a duration as seconds and milliseconds, e.g. "2.045s".
+   */
+  static String formatMillis(long millis) {
+    long seconds = (millis / 1000) % 60;
+    long remainder = millis % 1000;
+    StringBuilder out = new StringBuilder(8).append(seconds).append('.');
+    if (remainder < 100) {
+      out.append('0');
+    }
+    if (remainder < 10) {
+      out.append('0');
+    }
+    return out.append(remainder).append('s').toString();
+  }
+
+  private static ThreadLocal<DateFormat> formatter(final String pattern) {
+    return new ThreadLocal<DateFormat>() {
+      @Override
+      protected DateFormat initialValue() {
+        return new SimpleDateFormat(pattern);
+      }
+    };
+  }
+}
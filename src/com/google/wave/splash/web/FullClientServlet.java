@@ -56,6 +56,8 @@ public class FullClientServlet extends HttpServlet {
     context.put("email", "nobody@googlewave.com");
     context.put("displayName", "unknown");
     context.put("enableHeaderButtons", options.enableHeaderButtons());
+    context.put("eventStreams",
+        options.enableEventStreams() && !options.enableAppengineMode());
     String html = templates.process(Templates.CLIENT_TEMPLATE, context);
     WebUtil.writeHtmlResponse(resp, html);
   }
@@ -18,6 +18,7 @@ package com.google.wave.splash.web;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
 import com.google.wave.splash.web.template.Templates;
 
 import java.io.IOException;
@@ -38,10 +39,12 @@ import javax.servlet.http.HttpServletResponse;
 @Singleton
 public class MobileClientServlet extends HttpServlet {
   private final Templates templates;
+  private final Options options;
 
   @Inject
-  public MobileClientServlet(Templates templates) {
+  public MobileClientServlet(Templates templates, Options options) {
     this.templates = templates;
+    this.options = options;
   }
 
   @Override
@@ -52,6 +55,8 @@ public class MobileClientServlet extends HttpServlet {
     Map<String, String> context = new HashMap<String, String>();
     context.put("email", "nobody@googlewave.com");
     context.put("displayName", "unknown");
+    context.put("eventStreams",
+        String.valueOf(options.enableEventStreams() && !options.enableAppengineMode()));
     String html = templates.process(Templates.MOBILE_TEMPLATE, context);
     WebUtil.writeHtmlResponse(resp, html);
   }
@@ -21,15 +21,16 @@ import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.wave.splash.Options;
-import com.google.wave.splash.rpc.ClientAction;
 import com.google.wave.splash.rpc.FeedRpc;
 import com.google.wave.splash.rpc.WaveletUpdateRpc;
 import com.google.wave.splash.text.Markup;
 import com.google.wave.splash.text.Styler;
+import com.google.wave.splash.web.PermalinkSnapshots.Snapshot;
 import com.google.wave.splash.web.async.RequestWrapper;
 import com.google.wave.splash.web.async.RpcHandler;
 import com.google.wave.splash.web.template.Templates;
 import com.google.wave.splash.web.template.WaveRenderer;
+import com.google.wave.api.Wavelet;
 import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.waveref.InvalidWaveRefException;
 import org.waveprotocol.wave.model.waveref.WaveRef;
@@ -39,7 +40,6 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -60,14 +60,19 @@ public class PermalinkClientServlet extends HttpServlet {
   private final Options options;
   private final WaverefEncoder waverefEncoder;
   private final WaveletUpdateRpc waveletUpdateRpc;
+  private final WaveRenderer waveRenderer;
+  private final PermalinkSnapshots snapshots;
 
   @Inject
   public PermalinkClientServlet(Templates templates, Options options,
-      WaverefEncoder waverefEncoder, WaveletUpdateRpc waveletUpdateRpc) {
+      WaverefEncoder waverefEncoder, WaveletUpdateRpc waveletUpdateRpc,
+      WaveRenderer waveRenderer, PermalinkSnapshots snapshots) {
     this.templates = templates;
     this.options = options;
     this.waverefEncoder = waverefEncoder;
     this.waveletUpdateRpc = waveletUpdateRpc;
+    this.waveRenderer = waveRenderer;
+    this.snapshots = snapshots;
   }
 
   @Override
@@ -128,11 +133,11 @@ public class PermalinkClientServlet extends HttpServlet {
     }
 
     if (isCrawler(req) && waveRef != null) {
-      addRenderedWave(waveRef.getWaveId(), context);
-    } else {
-      context.put("content", "");
+      serveSnapshot(req, resp, waveRef.getWaveId(), context);
+      return;
     }
 
+    context.put("content", "");
     String page = templates.process(Templates.PERMALINK_WAVE_TEMPLATE, context);
     WebUtil.writeHtmlResponse(resp, page);
   }
@@ -145,25 +150,55 @@ public class PermalinkClientServlet extends HttpServlet {
    * @return True if the user-agent is a known crawling robot
    */
   private static boolean isCrawler(HttpServletRequest req) {
-    return CRAWLER_UA.matcher(req.getHeader("User-Agent")).matches();
+    String userAgent = req.getHeader("User-Agent");
+    return null != userAgent && CRAWLER_UA.matcher(userAgent).find();
   }
 
   /**
-   * Alternate method renders the entire wave at once with no javascript.
+   * Alternate method serves the entire wave rendered at once with no javascript.
+   * Pages are rendered once per wave version and kept as snapshots, crawlers
+   * that already have the current snapshot get a 304.
    */
-  private void addRenderedWave(WaveId waveId, Map<String, Object> context) {
-    Collection<ClientAction> actions = waveletUpdateRpc.smartFetch(waveId,
-        FeedRpc.getConversationWaveletId(waveId.getDomain()), WaveRenderer.ALL_PAGES
-    );
-
-    String html = null;
-    for (ClientAction action : actions) {
-      if ("update-wave".equals(action.getAction())) {
-        html = action.getHtml();
-        break;
+  private void serveSnapshot(HttpServletRequest req, HttpServletResponse resp, WaveId waveId,
+      Map<String, Object> context) throws IOException {
+    String waveIdAsString = waveId.serialise();
+    // The query string carries the embed style options.
+    String variant = Strings.nullToEmpty(req.getQueryString());
+
+    // Only go to the wave backend if we have neither the wave nor a recent
+    // snapshot of it.
+    Wavelet wavelet = waveletUpdateRpc.cachedSnapshot(waveId);
+    Snapshot snapshot = (null != wavelet)
+        ? snapshots.get(waveIdAsString, wavelet.getLastModifiedTime(), variant)
+        : snapshots.getFromDisk(waveIdAsString, variant);
+
+    if (null == snapshot) {
+      if (null == wavelet) {
+        wavelet = waveletUpdateRpc.fetchSnapshot(waveId,
+            FeedRpc.getConversationWaveletId(waveId.getDomain()));
+      }
+      if (null == wavelet) {
+        context.put("content", waveRenderer.renderNotFound().getHtml());
+        WebUtil.writeHtmlResponse(resp,
+            templates.process(Templates.PERMALINK_WAVE_TEMPLATE, context));
+        return;
+      }
+
+      long version = wavelet.getLastModifiedTime();
+      snapshot = snapshots.get(waveIdAsString, version, variant);
+      if (null == snapshot) {
+        context.put("content", waveRenderer.renderAll(wavelet).getHtml());
+        snapshot = snapshots.put(waveIdAsString, version, variant,
+            templates.process(Templates.PERMALINK_WAVE_TEMPLATE, context));
       }
     }
-    context.put("content", html);
+
+    if (snapshot.isNotModified(req)) {
+      WebUtil.writeNotModified(resp, snapshot.getEtag(), snapshot.getVersion());
+    } else {
+      WebUtil.writeCacheableHtmlResponse(resp, snapshot.getHtml(), snapshot.getEtag(),
+          snapshot.getVersion());
+    }
   }
 
   private WaveRef getWaveRef(HttpServletRequest req) {
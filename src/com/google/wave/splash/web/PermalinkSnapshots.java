@@ -0,0 +1,210 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.MapMaker;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fully rendered permalink pages, as served to crawlers, keyed by wave id,
+ * wave version and the request's query string (which carries the embed style
+ * options). Crawlers fetch the same waves over and over, so we render each
+ * version once and let them revalidate with conditional GETs.
+ * <p>
+ * If a snapshot directory is configured, the latest snapshot of each page is
+ * also kept on disk, so that crawlers can be served without going to the
+ * wave backend at all. File names are not unique to a page, so each file
+ * starts with a line naming the page it holds, which is checked on read.
+ */
+@Singleton
+class PermalinkSnapshots {
+  private static final Logger log = Logger.getLogger(PermalinkSnapshots.class.getName());
+
+  /**
+   * How long a snapshot on disk is served without checking for a newer
+   * version of the wave.
+   */
+  static final long DISK_SNAPSHOT_TTL_MILLIS = 60 * 60 * 1000L;
+
+  private final ConcurrentMap<String, Snapshot> snapshots = new MapMaker()
+      .softValues()
+      .makeMap();
+  private final File directory;
+
+  @Inject
+  PermalinkSnapshots(Options options) {
+    String directoryName = options.crawlerSnapshotDirectory();
+    this.directory = options.enableAppengineMode() || Strings.isNullOrEmpty(directoryName)
+        ? null
+        : new File(directoryName);
+  }
+
+  /**
+   * A rendered page, and the version of the wave it was rendered from.
+   */
+  static class Snapshot {
+    private final String html;
+    private final long version;
+    private final String etag;
+
+    Snapshot(String html, long version, String variant) {
+      this.html = html;
+      this.version = version;
+      this.etag = "\"" + Long.toHexString(version) + '-' + Integer.toHexString(variant.hashCode())
+          + "\"";
+    }
+
+    public String getHtml() {
+      return html;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    /**
+     * @return true if the request's validators show the client already has
+     *     this snapshot.
+     */
+    public boolean isNotModified(HttpServletRequest request) {
+      String ifNoneMatch = request.getHeader("If-None-Match");
+      if (ifNoneMatch != null) {
+        return "*".equals(ifNoneMatch.trim()) || ifNoneMatch.contains(etag);
+      }
+      long ifModifiedSince;
+      try {
+        ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+      // Http dates only go down to the second.
+      return ifModifiedSince != -1 && ifModifiedSince >= version / 1000 * 1000;
+    }
+  }
+
+  /**
+   * @return the snapshot of the given wave version, or null if there is none.
+   */
+  public Snapshot get(String waveId, long version, String variant) {
+    return snapshots.get(key(waveId, version, variant));
+  }
+
+  /**
+   * @return the latest snapshot of the given wave on disk, if it is recent
+   *     enough to serve without checking for a newer version, or null.
+   */
+  public Snapshot getFromDisk(String waveId, String variant) {
+    if (null == directory) {
+      return null;
+    }
+    File file = fileFor(waveId, variant);
+    if (file.lastModified() < System.currentTimeMillis() - DISK_SNAPSHOT_TTL_MILLIS) {
+      return null;
+    }
+
+    try {
+      String contents = Files.toString(file, Charsets.UTF_8);
+      int newline = contents.indexOf('\n');
+      if (newline == -1) {
+        return null;
+      }
+
+      // The file may hold another page whose name maps to the same file.
+      String[] header = contents.substring(0, newline).split(" ", -1);
+      if (header.length != 3 || !header[1].equals(encode(waveId))
+          || !header[2].equals(encode(variant))) {
+        return null;
+      }
+      return new Snapshot(contents.substring(newline + 1), Long.parseLong(header[0]), variant);
+    } catch (IOException e) {
+      // The file may have expired and been cleaned up in the meantime.
+      return null;
+    } catch (NumberFormatException e) {
+      log.warning("Corrupt permalink snapshot: " + file);
+      return null;
+    }
+  }
+
+  /**
+   * Stores a newly rendered page.
+   */
+  public Snapshot put(String waveId, long version, String variant, String html) {
+    Snapshot snapshot = new Snapshot(html, version, variant);
+    snapshots.put(key(waveId, version, variant), snapshot);
+    if (null != directory) {
+      writeToDisk(fileFor(waveId, variant),
+          version + " " + encode(waveId) + " " + encode(variant), snapshot);
+    }
+    return snapshot;
+  }
+
+  private void writeToDisk(File file, String header, Snapshot snapshot) {
+    // Write to the side and move into place, so readers never see half a page.
+    File temp = new File(file.getPath() + ".tmp" + Thread.currentThread().getId());
+    try {
+      Files.createParentDirs(file);
+      Files.write(header + "\n" + snapshot.html, temp, Charsets.UTF_8);
+      if (!temp.renameTo(file)) {
+        file.delete();
+        if (!temp.renameTo(file)) {
+          temp.delete();
+        }
+      }
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Could not write permalink snapshot " + file, e);
+      temp.delete();
+    }
+  }
+
+  private File fileFor(String waveId, String variant) {
+    return new File(directory, waveId.replaceAll("[^A-Za-z0-9.]", "_") + '-'
+        + Integer.toHexString(variant.hashCode()) + ".html");
+  }
+
+  /**
+   * @return the given string with no spaces or line breaks in it.
+   */
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String key(String waveId, long version, String variant) {
+    return waveId + '/' + version + '?' + variant;
+  }
+}
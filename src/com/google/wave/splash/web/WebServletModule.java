@@ -27,15 +27,20 @@ import com.google.inject.name.Named;
 import com.google.inject.servlet.ServletModule;
 import com.google.wave.splash.Options;
 import com.google.wave.splash.PortableRequestScope;
+import com.google.wave.splash.PortableRequestScoped;
 import com.google.wave.splash.RequestScopeExecutor;
 import com.google.wave.splash.auth.PortableRequestScopeExecutor;
 import com.google.wave.splash.rpc.Rpc;
 import com.google.wave.splash.web.async.EditHandler;
+import com.google.wave.splash.web.async.EventStreamServlet;
+import com.google.wave.splash.web.async.InlineReplyHandler;
+import com.google.wave.splash.web.async.LongPollServlet;
 import com.google.wave.splash.web.async.RpcHandler;
 import com.google.wave.splash.web.async.RpcServlet;
 import com.google.wave.splash.web.async.SearchHandler;
 import com.google.wave.splash.web.async.WaveOpenHandler;
 import com.google.wave.splash.web.async.WaveUpdateHandler;
+import com.google.wave.splash.web.async.WaveWindowHandler;
 import com.google.wave.splash.web.template.ResourceServlet;
 
 import org.waveprotocol.wave.model.waveref.WaverefEncoder;
@@ -139,6 +144,14 @@ public class WebServletModule extends ServletModule {
   protected void configureServlets() {
     filter("/*").through(PortableRequestScopeFilter.class);
     filter("/*").through(ProtocolVersionFilter.class);
+    if (!options.enableAppengineMode()) {
+      // Without threads to watch waves, polls fall through to be answered
+      // right away.
+      serve("/async/poll").with(LongPollServlet.class);
+      if (options.enableEventStreams()) {
+        serve("/async/events").with(EventStreamServlet.class);
+      }
+    }
     serve("/async/*").with(RpcServlet.class);
     serve("/w/*").with(PermalinkClientServlet.class);
 
@@ -158,16 +171,29 @@ public class WebServletModule extends ServletModule {
       SearchHandler searchHandler,
       WaveUpdateHandler waveUpdateHandler,
       WaveOpenHandler waveHandler,
-      EditHandler editHandler) {
+      EditHandler editHandler,
+      InlineReplyHandler inlineReplyHandler,
+      WaveWindowHandler waveWindowHandler) {
 
     Map<String, RpcHandler> map = Maps.newHashMap();
     map.put("open_wave", waveHandler);
     map.put("search", searchHandler);
     map.put("update_wave", waveUpdateHandler);
     map.put("edit_wave", editHandler);
+    map.put("inline_reply", inlineReplyHandler);
+    map.put("wave_window", waveWindowHandler);
     return map;
   }
 
+  /**
+   * The url of the current request. Request-scoped work that moves to other
+   * threads should seed this, since the servlet request is not available there.
+   */
+  @Provides @PortableRequestScoped @Named("requestUrl")
+  String provideRequestUrl(HttpServletRequest request) {
+    return request.getRequestURL().toString();
+  }
+
   @Provides @Singleton
   WaverefEncoder provideWaverefEncoder() {
     return new WaverefEncoder(new PercentEncoderDecoder() {
@@ -44,4 +44,42 @@ class WebUtil {
     response.getWriter().flush();
     response.getWriter().close();
   }
+
+  /**
+   * Writes an html-based response that clients may keep and revalidate with
+   * the given validators.
+   *
+   * @param response the response to write to.
+   * @param html the content html.
+   * @param etag the entity tag of the content, quoted.
+   * @param lastModified the time the content last changed, in millis.
+   * @throws IOException
+   */
+  public static void writeCacheableHtmlResponse(HttpServletResponse response, String html,
+      String etag, long lastModified) throws IOException {
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("text/html; charset=utf-8");
+    setValidators(response, etag, lastModified);
+    response.setHeader("X-Frame-Options", "ALLOWALL");
+    response.getWriter().write(html);
+    response.getWriter().flush();
+    response.getWriter().close();
+  }
+
+  /**
+   * Tells the client that the content it has, as identified by its
+   * validators, is still current.
+   */
+  public static void writeNotModified(HttpServletResponse response, String etag,
+      long lastModified) {
+    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    setValidators(response, etag, lastModified);
+  }
+
+  private static void setValidators(HttpServletResponse response, String etag,
+      long lastModified) {
+    response.setHeader("Cache-Control", "public, max-age=0, must-revalidate");
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", lastModified);
+  }
 }
@@ -0,0 +1,351 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.base.Function;
+import com.google.common.base.Strings;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.auth.SessionContext;
+import com.google.wave.splash.web.stats.Stat;
+import com.google.wave.splash.web.stats.Stats;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Decides which rpc requests the {@link RpcServlet} takes on, so that a burst
+ * of one kind of rpc cannot take all of the server's threads. There are three
+ * lanes:
+ * <ul>
+ *   <li>Requests the user waits on are admitted while there are fewer than
+ *   {@link Options#rpcCapacity()} requests in flight and their rpcs are under
+ *   their concurrency limits. Otherwise they wait their turn for a while, and
+ *   are rejected if it does not come.
+ *   <li>{@link Background} requests are admitted only while nobody is waiting
+ *   and there are fewer than {@link Options#backgroundRpcCapacity()} requests
+ *   in flight, so there is always room left for the others. Otherwise they
+ *   are shed at once; the client polls again soon enough anyway.
+ *   <li>Event streams, which each hold a thread for as long as they are open,
+ *   are admitted while there are fewer than {@link Options#eventStreamCapacity()}
+ *   of them. Otherwise they are shed at once, and the client long-polls instead.
+ * </ul>
+ * Each signed in session also gets a token bucket that limits the rate at
+ * which it may send requests. Anonymous users all share one session and may
+ * share an address behind a proxy, so there is nothing to tell them apart by;
+ * they are only held to the capacities above. Limits of 0 mean no limit.
+ */
+@Singleton
+public class AdmissionController {
+  private static final Logger log = Logger.getLogger(AdmissionController.class.getName());
+
+  @Stat(name = "rpc-queue-depth",
+      help = "Number of rpc requests waiting to be admitted right now.")
+  private static volatile int queueDepth;
+
+  @Stat(name = "rpc-requests-in-flight",
+      help = "Number of admitted rpc requests that are not finished yet.")
+  private static volatile int requestsInFlight;
+
+  @Stat(name = "rpc-requests-delayed",
+      help = "Number of rpc requests that had to wait to be admitted.")
+  private static volatile int delayedRequests;
+
+  @Stat(name = "rpc-requests-rejected",
+      help = "Number of rpc requests turned away after waiting too long to be admitted.")
+  private static volatile int rejectedRequests;
+
+  @Stat(name = "rpc-requests-shed",
+      help = "Number of background rpc requests turned away while the server was busy, by rpc.")
+  private static final ConcurrentMap<String, AtomicInteger> shedRequests = new MapMaker()
+      .makeComputingMap(new Function<String, AtomicInteger>() {
+        @Override
+        public AtomicInteger apply(String rpc) {
+          return new AtomicInteger();
+        }
+      });
+
+  @Stat(name = "rpc-requests-throttled",
+      help = "Number of rpc requests turned away for coming too fast from one session.")
+  private static final AtomicInteger throttledRequests = new AtomicInteger();
+
+  @Stat(name = "event-streams-open",
+      help = "Number of admitted event streams that are still open.")
+  private static volatile int streamsOpen;
+
+  @Stat(name = "event-streams-shed",
+      help = "Number of event streams turned away because too many were open.")
+  private static final AtomicInteger shedStreams = new AtomicInteger();
+
+  static {
+    Stats.trackClass(AdmissionController.class);
+  }
+
+  private final Provider<SessionContext> sessionProvider;
+  private final int capacity;
+  private final int backgroundCapacity;
+  private final int defaultLimit;
+  private final Map<String, Integer> limits = Maps.newHashMap();
+  private final long waitMillis;
+  private final int requestsPerSecond;
+  private final int burst;
+  private final int streamCapacity;
+
+  // Token buckets by session key, dropped when memory is tight.
+  private final ConcurrentMap<String, TokenBucket> buckets = new MapMaker()
+      .softValues()
+      .makeComputingMap(new Function<String, TokenBucket>() {
+        @Override
+        public TokenBucket apply(String client) {
+          return new TokenBucket();
+        }
+      });
+
+  // Guarded by this.
+  private final Map<String, Integer> running = Maps.newHashMap();
+  private int inFlight;
+  private int waiting;
+  private int streams;
+
+  @Inject
+  public AdmissionController(Options options, Provider<SessionContext> sessionProvider) {
+    this.sessionProvider = sessionProvider;
+    this.capacity = options.rpcCapacity();
+    this.backgroundCapacity = options.backgroundRpcCapacity();
+    this.defaultLimit = options.rpcConcurrency();
+    this.waitMillis = options.rpcAdmissionWaitMillis();
+    this.requestsPerSecond = options.sessionRpcsPerSecond();
+    this.burst = Math.max(1, options.sessionRpcBurst());
+    this.streamCapacity = options.eventStreamCapacity();
+
+    String limits = options.rpcConcurrencyLimits();
+    if (!Strings.isNullOrEmpty(limits)) {
+      for (String limit : limits.split("[,]+")) {
+        parseLimit(limit);
+      }
+    }
+  }
+
+  /**
+   * Adds a limit given as 'rpc:limit'. A malformed one is logged and skipped,
+   * so the rpc falls back to the default limit rather than every rpc failing.
+   */
+  private void parseLimit(String limit) {
+    String[] nameAndLimit = limit.split(":");
+    if (nameAndLimit.length == 2 && !Strings.isNullOrEmpty(nameAndLimit[0].trim())) {
+      try {
+        limits.put(nameAndLimit[0].trim(), Integer.parseInt(nameAndLimit[1].trim()));
+        return;
+      } catch (NumberFormatException e) {
+        // Logged below.
+      }
+    }
+    log.warning("Ignoring malformed rpc concurrency limit: " + limit);
+  }
+
+  /**
+   * Takes a token from the bucket of the current session. Requests for the
+   * pages after the first of a wave are free: the client asks for them back to
+   * back, as the continuation of the open that was already charged.
+   *
+   * @return false if the session is sending requests faster than allowed.
+   */
+  public boolean withinRate(HttpServletRequest request) {
+    if (requestsPerSecond <= 0 || isContinuation(request)) {
+      return true;
+    }
+    SessionContext session = sessionProvider.get();
+    if (!session.isAuthenticated()) {
+      return true;
+    }
+    if (buckets.get(session.getSessionKey()).take(System.nanoTime())) {
+      return true;
+    }
+    throttledRequests.incrementAndGet();
+    return false;
+  }
+
+  private static boolean isContinuation(HttpServletRequest request) {
+    String page = request.getParameter("page");
+    try {
+      return !Strings.isNullOrEmpty(page) && Integer.parseInt(page) > 0;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Admits a request for the given rpcs, waiting for room if need be.
+   *
+   * @return the ticket to release when the request is finished, or null if the
+   *     request is turned away.
+   */
+  public Ticket admit(List<String> rpcs, boolean background) {
+    synchronized (this) {
+      if (background) {
+        if (waiting == 0 && hasRoom(rpcs, backgroundCapacity)) {
+          return take(rpcs);
+        }
+      } else if (hasRoom(rpcs, capacity)) {
+        return take(rpcs);
+      } else {
+        return await(rpcs);
+      }
+    }
+
+    for (String rpc : rpcs) {
+      shedRequests.get(rpc).incrementAndGet();
+    }
+    return null;
+  }
+
+  /**
+   * Admits an event stream if there is room for one.
+   *
+   * @return the ticket to release when the stream is closed, or null if the
+   *     stream is turned away.
+   */
+  public Ticket admitStream() {
+    synchronized (this) {
+      if (streamCapacity <= 0 || streams < streamCapacity) {
+        streamsOpen = ++streams;
+        return new Ticket(Collections.<String>emptyList(), true);
+      }
+    }
+    shedStreams.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Waits until there is room for the given rpcs, or until we give up on them.
+   */
+  private Ticket await(List<String> rpcs) {
+    ++delayedRequests;
+    queueDepth = ++waiting;
+    long deadline = System.currentTimeMillis() + waitMillis;
+    try {
+      while (!hasRoom(rpcs, capacity)) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          ++rejectedRequests;
+          return null;
+        }
+        wait(remaining);
+      }
+      return take(rpcs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      ++rejectedRequests;
+      return null;
+    } finally {
+      queueDepth = --waiting;
+    }
+  }
+
+  private boolean hasRoom(List<String> rpcs, int capacity) {
+    if (capacity > 0 && inFlight >= capacity) {
+      return false;
+    }
+    for (String rpc : rpcs) {
+      int limit = limitOf(rpc);
+      if (limit > 0 && runningCount(rpc) >= limit) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int limitOf(String rpc) {
+    Integer limit = limits.get(rpc);
+    return null != limit ? limit : defaultLimit;
+  }
+
+  private int runningCount(String rpc) {
+    Integer count = running.get(rpc);
+    return null != count ? count : 0;
+  }
+
+  private Ticket take(List<String> rpcs) {
+    requestsInFlight = ++inFlight;
+    for (String rpc : rpcs) {
+      running.put(rpc, runningCount(rpc) + 1);
+    }
+    return new Ticket(rpcs, false);
+  }
+
+  /**
+   * Makes room for other requests once an admitted one is finished. Does
+   * nothing for a null or already released ticket.
+   */
+  public synchronized void release(Ticket ticket) {
+    if (null == ticket || ticket.released) {
+      return;
+    }
+    ticket.released = true;
+    if (ticket.stream) {
+      streamsOpen = --streams;
+      return;
+    }
+    requestsInFlight = --inFlight;
+    for (String rpc : ticket.rpcs) {
+      running.put(rpc, runningCount(rpc) - 1);
+    }
+    notifyAll();
+  }
+
+  /**
+   * The admission of a request, which holds its place until released.
+   */
+  public static class Ticket {
+    private final List<String> rpcs;
+    private final boolean stream;
+    private boolean released;
+
+    private Ticket(List<String> rpcs, boolean stream) {
+      this.rpcs = rpcs;
+      this.stream = stream;
+    }
+  }
+
+  /**
+   * Allows a steady number of requests per second, and short bursts of more.
+   */
+  private class TokenBucket {
+    private double tokens = burst;
+    private long lastNanos = System.nanoTime();
+
+    synchronized boolean take(long nanos) {
+      tokens = Math.min(burst, tokens + (nanos - lastNanos) * requestsPerSecond / 1e9);
+      lastNanos = nanos;
+      if (tokens < 1) {
+        return false;
+      }
+      tokens--;
+      return true;
+    }
+  }
+}
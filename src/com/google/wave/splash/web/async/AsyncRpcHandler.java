@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.wave.splash.rpc.ClientAction;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link RpcHandler} that does not hold the request thread while it waits
+ * on the wave backend. The {@link RpcServlet} suspends the request until the
+ * handler's responses are ready. Called as a plain {@link RpcHandler}, it
+ * waits in place.
+ */
+public abstract class AsyncRpcHandler implements RpcHandler {
+  /**
+   * Starts servicing a request with the specified parameters. Work that needs
+   * the answer of a backend call should be continued on the given executor,
+   * which runs it back on the request thread, in the scope of the request.
+   *
+   * @param params the parameters passed with the rpc.
+   * @param executor runs continuations on the request thread.
+   * @return the pending responses for the client.
+   */
+  public abstract ListenableFuture<List<ClientAction>> callAsync(Params params,
+      Executor executor);
+
+  @Override
+  public final void call(Params params, List<ClientAction> responses) {
+    RequestThreadExecutor executor = new RequestThreadExecutor();
+    responses.addAll(executor.runUntilDone(callAsync(params, executor)));
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.wave.splash.rpc.ClientAction;
+
+import java.util.List;
+
+/**
+ * An {@link RpcHandler} whose responses carry an entity tag, and which can
+ * sometimes tell the tag of its response without running. A GET request for
+ * this rpc alone is answered with 304 Not Modified when the client names the
+ * tag the rpc knows to be current, and run and sent with its tag otherwise.
+ */
+public interface ConditionalRpcHandler extends RpcHandler {
+  /**
+   * @return the entity tag of the response the rpc would send to the given
+   *     parameters now, quoted, or null unless that is known for sure without
+   *     running the rpc.
+   */
+  String currentEntityTag(Params params);
+
+  /**
+   * @return the entity tag of the given response to the given parameters,
+   *     quoted, or null if it has none.
+   */
+  String entityTag(Params params, List<ClientAction> response);
+}
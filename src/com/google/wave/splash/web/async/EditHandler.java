@@ -31,7 +31,8 @@ import java.util.logging.Logger;
 
 /**
  * Handles any client side edits of a wave, including new replies, new waves, etc., if
- * there are any.
+ * there are any. Edits are queued to be sent to the backend without waiting on it,
+ * and the client gets acknowledgements of edits sent earlier.
  *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  * @author David Byttow
@@ -58,10 +59,17 @@ public class EditHandler implements RpcHandler  {
     }
 
     WaveId waveId = WaveId.deserialise(waveIdAsString);
-    checkForEdits(params, waveId);
+    if (checkForEdits(params, waveId)) {
+      blipUpdateRpc.submit(waveId);
+    }
+    responses.addAll(blipUpdateRpc.takeAcks(waveId));
   }
 
-  private void checkForEdits(Params params, WaveId waveId) {
+  /**
+   * @return true if there were any edits.
+   */
+  private boolean checkForEdits(Params params, WaveId waveId) {
+    boolean edited = false;
     // Check for edits.
     for (String name : params.nameSet()) {
       // TODO: Add helpers to parse and pull out blip ids for
@@ -74,6 +82,7 @@ public class EditHandler implements RpcHandler  {
         }
         long blipUpdateTime = System.currentTimeMillis();
         blipUpdateRpc.applyEdit(waveId, blipId, content);
+        edited = true;
         timing.record("blip.applyEdit", System.currentTimeMillis() - blipUpdateTime);
 
       } else if (name.startsWith("newblip_")) {
@@ -84,8 +93,10 @@ public class EditHandler implements RpcHandler  {
         }
         long blipReplyTime = System.currentTimeMillis();
         blipUpdateRpc.newReply(waveId, parentId, content);
+        edited = true;
         timing.record("blip.newReply", System.currentTimeMillis() - blipReplyTime);
       }
     }
+    return edited;
   }
 }
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.data.serialize.ClientActionWriter;
+import com.google.wave.splash.rpc.ClientAction;
+import com.google.wave.splash.rpc.WaveletUpdateRpc;
+import com.google.wave.splash.web.stats.Stat;
+import com.google.wave.splash.web.stats.Stats;
+
+import org.mortbay.util.ajax.WaitingContinuation;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Pushes updates to the open wave down a Server-Sent Events stream, as they
+ * happen. Each event is the batch of client actions a poll would have
+ * returned, with the wave version it brings the client to as its event id.
+ * Browsers reconnect on their own and send that id back, so a stream picks
+ * up where the last one left off.
+ * <p>
+ * The stream keeps the state a client would send with each poll, its wave
+ * and header versions and the blips it can patch, up to date from the
+ * actions it sends. Servlets can't write across Jetty continuations, so a
+ * stream holds its thread; streams are closed after a while for the browser
+ * to reconnect, and only so many are let in at once. The rest are turned away
+ * with a 503, which makes the client fall back to long polling.
+ */
+@Singleton
+public class EventStreamServlet extends HttpServlet {
+  @Stat(name = "event-streams-opened",
+      help = "Number of Server-Sent Events streams opened by clients.")
+  private static volatile int eventStreamsOpened;
+
+  @Stat(name = "event-stream-batches",
+      help = "Number of batches of client actions pushed down event streams.")
+  private static volatile int eventStreamBatches;
+
+  static {
+    Stats.trackClass(EventStreamServlet.class);
+  }
+
+  private final WaveUpdateHandler waveUpdateHandler;
+  private final WaveWatcher waveWatcher;
+  private final ClientActionWriter actionWriter;
+  private final AdmissionController admission;
+  private final long streamMillis;
+  private final long heartbeatMillis;
+
+  @Inject
+  public EventStreamServlet(WaveUpdateHandler waveUpdateHandler, WaveWatcher waveWatcher,
+      ClientActionWriter actionWriter, AdmissionController admission, Options options) {
+    this.waveUpdateHandler = waveUpdateHandler;
+    this.waveWatcher = waveWatcher;
+    this.actionWriter = actionWriter;
+    this.admission = admission;
+    this.streamMillis = options.eventStreamMillis();
+    this.heartbeatMillis = options.longPollTimeoutMillis();
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    StreamParams params = new StreamParams(new RequestWrapper(request));
+    String waveIdAsString = params.get("waveId");
+    if (Strings.isNullOrEmpty(waveIdAsString)) {
+      response.sendError(400, "Event stream needs a wave id");
+      return;
+    }
+    WaveId waveId = WaveId.deserialise(waveIdAsString);
+
+    AdmissionController.Ticket ticket = admission.withinRate(request)
+        ? admission.admitStream()
+        : null;
+    if (null == ticket) {
+      response.setHeader("Retry-After", "1");
+      response.sendError(503, "Too many event streams");
+      return;
+    }
+    try {
+      stream(request, response, params, waveId);
+    } finally {
+      admission.release(ticket);
+    }
+  }
+
+  private void stream(HttpServletRequest request, HttpServletResponse response,
+      StreamParams params, WaveId waveId) throws IOException {
+    // Resuming after a reconnect.
+    String lastEventId = request.getHeader("Last-Event-ID");
+    if (!Strings.isNullOrEmpty(lastEventId)) {
+      params.put("waveVersion", lastEventId);
+    }
+
+    ++eventStreamsOpened;
+    response.setContentType("text/event-stream");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    PrintWriter writer = response.getWriter();
+
+    long deadline = System.currentTimeMillis() + streamMillis;
+    boolean waiting = !params.needsUpdate();
+    while (!writer.checkError()) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        break;
+      }
+      if (waiting) {
+        await(waveId, params.version(), Math.min(remaining, heartbeatMillis));
+      }
+      waiting = true;
+
+      List<ClientAction> actions = Lists.newArrayList();
+      waveUpdateHandler.call(params, actions);
+      if (actions.isEmpty()) {
+        // Keeps the connection alive, and tells us if the client went away.
+        writer.write(":\n\n");
+      } else {
+        ++eventStreamBatches;
+        params.update(actions);
+        writer.write("id: " + params.version() + "\ndata: ");
+        actionWriter.write(actions, writer);
+        writer.write("\n\n");
+      }
+      writer.flush();
+    }
+  }
+
+  private void await(WaveId waveId, long version, long timeoutMillis) {
+    WaitingContinuation continuation = new WaitingContinuation();
+    if (waveWatcher.watch(waveId, version, continuation)) {
+      try {
+        continuation.suspend(timeoutMillis);
+      } finally {
+        waveWatcher.unwatch(waveId, continuation);
+      }
+    }
+  }
+
+  /**
+   * The parameters of the stream request, kept current as if the client had
+   * sent them with each poll.
+   */
+  private static class StreamParams implements RpcHandler.Params {
+    private final Map<String, String> values = Maps.newHashMap();
+
+    StreamParams(RpcHandler.Params request) {
+      for (String name : request.nameSet()) {
+        values.put(name, request.get(name));
+      }
+    }
+
+    @Override
+    public String get(String name) {
+      return values.get(name);
+    }
+
+    @Override
+    public Set<String> nameSet() {
+      return values.keySet();
+    }
+
+    void put(String name, String value) {
+      values.put(name, value);
+    }
+
+    long version() {
+      String version = values.get("waveVersion");
+      return Strings.isNullOrEmpty(version)
+          ? WaveletUpdateRpc.LATEST_VERSION
+          : Long.valueOf(version);
+    }
+
+    /**
+     * @return true if the client is owed an update without waiting for the
+     *     wave to change: it has no version yet, or wants blips resent.
+     */
+    boolean needsUpdate() {
+      if (version() == WaveletUpdateRpc.LATEST_VERSION) {
+        return true;
+      }
+      for (String name : values.keySet()) {
+        if (name.startsWith("resendblip_")) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Records what the client has once it applies the given actions.
+     */
+    void update(List<ClientAction> actions) {
+      removeAll("resendblip_");
+      for (ClientAction action : actions) {
+        String name = action.getAction();
+        if ("update-wave".equals(name)) {
+          // The client starts over with the whole wave.
+          removeAll("patchbase_");
+          values.put("waveVersion", Long.toString(action.getVersion()));
+        } else if ("update-wave-version".equals(name)) {
+          values.put("waveVersion", Long.toString(action.getVersion()));
+        } else if ("update-header".equals(name)) {
+          values.put("headerVersion", Long.toString(action.getVersion()));
+        } else if ("add-blip".equals(name) || "patch-blip".equals(name)) {
+          values.put("patchbase_" + action.getBlipId(), Long.toString(action.getVersion()));
+        } else if ("delete-blip".equals(name)) {
+          // Deletes are addressed by selector.
+          values.remove("patchbase_" + action.getBlipId().substring(1));
+        }
+      }
+    }
+
+    private void removeAll(String prefix) {
+      for (Iterator<String> iterator = values.keySet().iterator(); iterator.hasNext(); ) {
+        if (iterator.next().startsWith(prefix)) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.base.Strings;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.wave.splash.rpc.ClientAction;
+import com.google.wave.splash.rpc.FeedRpc;
+import com.google.wave.splash.rpc.WaveletUpdateRpc;
+import com.google.wave.splash.text.Markup;
+import com.google.wave.splash.web.template.RenderMode;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Serves the content of an inline reply thread when the client expands it.
+ * Waves are rendered with only the reply counts of their inline reply
+ * threads, so that long inline discussions don't slow down opening a wave.
+ */
+@Concurrent
+@Singleton
+public class InlineReplyHandler implements RpcHandler {
+  private final WaveletUpdateRpc waveletUpdateRpc;
+
+  private final Logger log = Logger.getLogger(InlineReplyHandler.class.getName());
+
+  @Inject
+  public InlineReplyHandler(WaveletUpdateRpc waveletUpdateRpc) {
+    this.waveletUpdateRpc = waveletUpdateRpc;
+  }
+
+  @Override
+  public void call(Params params, List<ClientAction> actions) {
+    String waveIdAsString = params.get("waveId");
+    String inlineReplyId = params.get("inlineReplyId");
+    if (Strings.isNullOrEmpty(waveIdAsString) || Strings.isNullOrEmpty(inlineReplyId)) {
+      log.fine("Inline reply RPC: client did not provide a wave id or inline reply id.");
+      return;
+    }
+
+    WaveId waveId = WaveId.deserialise(waveIdAsString);
+    ClientAction action = waveletUpdateRpc.fetchInlineReply(waveId,
+        FeedRpc.getConversationWaveletId(waveId.getDomain()), Markup.toBlipId(inlineReplyId),
+        RenderMode.forClient(params.get("client.type")));
+    if (action != null) {
+      actions.add(action);
+    }
+  }
+}
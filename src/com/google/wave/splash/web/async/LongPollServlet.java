@@ -0,0 +1,104 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.base.Strings;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.rpc.WaveletUpdateRpc;
+
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Long-poll flavor of the background update rpcs. The request is held until
+ * the open wave moves past the client's version, or a timeout passes, and is
+ * then answered by the {@link RpcServlet} exactly like a short poll.
+ * <p>
+ * Requests are parked with a Jetty continuation, which holds no thread while
+ * waiting when served by Jetty's nio connector. Other containers block the
+ * request thread instead. Polls carrying edits are never held, nor are polls
+ * from clients that have no version of the wave yet.
+ */
+@Singleton
+public class LongPollServlet extends HttpServlet {
+  private final RpcServlet rpcServlet;
+  private final WaveWatcher waveWatcher;
+  private final long timeoutMillis;
+
+  @Inject
+  public LongPollServlet(RpcServlet rpcServlet, WaveWatcher waveWatcher, Options options) {
+    this.rpcServlet = rpcServlet;
+    this.waveWatcher = waveWatcher;
+    this.timeoutMillis = options.longPollTimeoutMillis();
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    RpcHandler.Params params = new RequestWrapper(request);
+    String waveIdAsString = params.get("waveId");
+    String waveVersionAsString = params.get("waveVersion");
+    // Once the rpcs are under way, replays are theirs and not ours.
+    if (!Strings.isNullOrEmpty(waveIdAsString) && !Strings.isNullOrEmpty(waveVersionAsString)
+        && !hasEdits(params) && !RpcServlet.isResumed(request)) {
+      long clientWaveVersion = Long.valueOf(waveVersionAsString);
+      if (clientWaveVersion != WaveletUpdateRpc.LATEST_VERSION) {
+        await(request, WaveId.deserialise(waveIdAsString), clientWaveVersion);
+      }
+    }
+
+    rpcServlet.doPost(request, response);
+  }
+
+  /**
+   * Waits for the wave to move past the client's version. Under Jetty the
+   * first call gives up the thread by throwing, and the request is replayed
+   * from the top once woken or timed out, when the suspend returns at once.
+   */
+  private void await(HttpServletRequest request, WaveId waveId, long clientWaveVersion) {
+    Continuation continuation = ContinuationSupport.getContinuation(request, null);
+    if (continuation.isNew() && !waveWatcher.watch(waveId, clientWaveVersion, continuation)) {
+      return;
+    }
+    try {
+      continuation.suspend(timeoutMillis);
+    } finally {
+      // Still parked if suspend threw, and the watcher will wake us.
+      if (!continuation.isPending()) {
+        waveWatcher.unwatch(waveId, continuation);
+      }
+    }
+  }
+
+  private static boolean hasEdits(RpcHandler.Params params) {
+    for (String name : params.nameSet()) {
+      if (name.startsWith("editblip_") || name.startsWith("newblip_")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the request thread, rather than on whichever thread completes
+ * the future they wait on, which for backend calls is one of the http
+ * client's. That way they run in the scope of the request. Tasks queue up
+ * until the request thread gets to them, and the given wakeup is run each
+ * time one is queued.
+ */
+class RequestThreadExecutor implements Executor {
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  private final Runnable wakeup;
+
+  RequestThreadExecutor() {
+    this(null);
+  }
+
+  RequestThreadExecutor(Runnable wakeup) {
+    this.wakeup = wakeup;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    synchronized (this) {
+      tasks.add(task);
+      notifyAll();
+    }
+    if (null != wakeup) {
+      wakeup.run();
+    }
+  }
+
+  /**
+   * Runs the queued tasks on this thread, including any they queue in turn.
+   */
+  void runQueued() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  boolean hasQueued() {
+    return !tasks.isEmpty();
+  }
+
+  /**
+   * Runs queued tasks on this thread until the given future is done, waiting
+   * for more in between.
+   *
+   * @return the value of the future, whose failure is rethrown.
+   */
+  <T> T runUntilDone(ListenableFuture<T> future) {
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (RequestThreadExecutor.this) {
+          RequestThreadExecutor.this.notifyAll();
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+
+    try {
+      while (true) {
+        runQueued();
+        synchronized (this) {
+          if (tasks.isEmpty()) {
+            if (future.isDone()) {
+              break;
+            }
+            wait();
+          }
+        }
+      }
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+}
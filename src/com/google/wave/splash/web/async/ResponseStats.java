@@ -0,0 +1,96 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.MapMaker;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes and writing cost of rpc responses, by rpc name, for the stats page.
+ * Plain and gzipped responses are kept apart, so the bytes compression saves
+ * can be weighed against the cpu time it costs.
+ */
+class ResponseStats {
+  private static class Sizes {
+    final AtomicLong responses = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong compressedBytes = new AtomicLong();
+    final AtomicLong nanos = new AtomicLong();
+
+    void add(long responseBytes, long responseCompressedBytes, long responseNanos) {
+      responses.incrementAndGet();
+      bytes.addAndGet(responseBytes);
+      compressedBytes.addAndGet(responseCompressedBytes);
+      nanos.addAndGet(responseNanos);
+    }
+  }
+
+  private static final Function<String, Sizes> NEW_SIZES = new Function<String, Sizes>() {
+    @Override
+    public Sizes apply(String rpc) {
+      return new Sizes();
+    }
+  };
+
+  private final ConcurrentMap<String, Sizes> plain = new MapMaker().makeComputingMap(NEW_SIZES);
+  private final ConcurrentMap<String, Sizes> gzipped = new MapMaker().makeComputingMap(NEW_SIZES);
+
+  /**
+   * Records a response written as is.
+   */
+  void recordPlain(String rpc, long bytes, long nanos) {
+    plain.get(rpc).add(bytes, bytes, nanos);
+  }
+
+  /**
+   * Records a gzipped response, of the given size before and after.
+   */
+  void recordGzipped(String rpc, long bytes, long compressedBytes, long nanos) {
+    gzipped.get(rpc).add(bytes, compressedBytes, nanos);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder();
+    append(out, "plain", plain);
+    append(out, "gzipped", gzipped);
+    return out.toString();
+  }
+
+  private static void append(StringBuilder out, String kind, Map<String, Sizes> sizes) {
+    for (Map.Entry<String, Sizes> entry : ImmutableSortedMap.copyOf(sizes).entrySet()) {
+      Sizes size = entry.getValue();
+      long responses = Math.max(1, size.responses.get());
+      long bytes = size.bytes.get();
+      long compressedBytes = size.compressedBytes.get();
+      out.append("<br/>&nbsp;&nbsp;").append(entry.getKey()).append(' ').append(kind)
+          .append(": ").append(size.responses.get()).append(" responses, ")
+          .append(bytes / responses).append(" bytes");
+      if (compressedBytes != bytes) {
+        out.append(" to ").append(compressedBytes / responses).append(" bytes (")
+            .append(bytes > 0 ? compressedBytes * 100 / bytes : 100).append("%)");
+      }
+      out.append(" and ").append(size.nanos.get() / responses / 1000).append("us cpu")
+          .append(" on average");
+    }
+  }
+}
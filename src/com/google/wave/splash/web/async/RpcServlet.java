@@ -16,19 +16,39 @@
  */
 package com.google.wave.splash.web.async;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
-import com.google.gson.Gson;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.RequestScopeExecutor;
+import com.google.wave.splash.data.serialize.ClientActionWriter;
 import com.google.wave.splash.rpc.ClientAction;
 import com.google.wave.splash.rpc.Rpc;
-import com.google.wave.splash.web.Browser;
+import com.google.wave.splash.web.stats.Stat;
+import com.google.wave.splash.web.stats.Stats;
 import com.google.wave.splash.web.stats.Timing;
 
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -36,59 +56,471 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * This is an ajax responder that handles rpcs by handing them off to an
- * internal list of {@link RpcHandler}s.
+ * internal list of {@link RpcHandler}s. Consecutive {@link Concurrent} rpcs
+ * run side by side, other rpcs run on their own in between. Either way the
+ * responses come back in the order the rpcs were called.
+ * <p>
+ * While {@link AsyncRpcHandler}s wait on the wave backend the request is
+ * suspended with a Jetty continuation, which holds no thread when served by
+ * Jetty's nio connector. The request is then replayed from the top and picks
+ * up where it left off. Other containers block the request thread instead.
+ * <p>
+ * Larger responses are gzipped for clients that accept it. A response to a
+ * single {@link ConditionalRpcHandler} rpc carries an entity tag. Such rpcs
+ * may also be fetched with GET, and are then answered with 304 Not Modified
+ * if the client has the current response; other rpcs must be posted.
+ * <p>
+ * Requests are let in by the {@link AdmissionController}, and turned away
+ * with 429 Too Many Requests or 503 Service Unavailable when it says no.
  *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  * @author David Byttow
  */
 @Singleton
 public class RpcServlet extends HttpServlet {
+  private static final String MULTIPLEX = RpcServlet.class.getName() + ".multiplex";
+
+  @Stat(name = "rpc-responses",
+      help = "Sizes and cpu time of writing rpc responses, plain and gzipped, by rpc.")
+  private static final ResponseStats responseStats = new ResponseStats();
+
+  @Stat(name = "rpc-not-modified",
+      help = "Number of rpc requests answered with 304 Not Modified.")
+  private static volatile int notModifiedResponses;
+
+  static {
+    Stats.trackClass(RpcServlet.class);
+  }
+
   private final Map<String, RpcHandler> handlers;
-  private final Gson gson;
+  private final ClientActionWriter actionWriter;
   private final Timing timing;
+  private final RequestScopeExecutor executor;
+  private final AdmissionController admission;
+  private final boolean concurrentRpcs;
+  private final boolean suspendRpcs;
+  private final long suspendMillis;
+  private final int gzipThreshold;
+  private final boolean cpuTimes;
   private final Logger log = Logger.getLogger(RpcServlet.class.getName());
 
   @Inject
-  public RpcServlet(@Rpc Map<String, RpcHandler> handlers, @Browser Gson gson, Timing timing) {
+  public RpcServlet(@Rpc Map<String, RpcHandler> handlers, ClientActionWriter actionWriter,
+      Timing timing, RequestScopeExecutor executor, AdmissionController admission,
+      Options options) {
     this.handlers = handlers;
-    this.gson = gson;
+    this.actionWriter = actionWriter;
     this.timing = timing;
+    this.executor = executor;
+    this.admission = admission;
+    this.concurrentRpcs = !options.enableAppengineMode();
+    this.suspendRpcs = !options.enableAppengineMode();
+    this.suspendMillis = options.rpcSuspendMillis();
+    this.gzipThreshold = options.rpcGzipThreshold();
+
+    // Appengine does not let us near the thread's cpu time.
+    this.cpuTimes = !options.enableAppengineMode()
+        && ManagementFactory.getThreadMXBean().isCurrentThreadCpuTimeSupported();
+  }
+
+  /**
+   * @return true if the given request is being replayed after it was
+   *     suspended, with its rpcs already under way.
+   */
+  static boolean isResumed(HttpServletRequest request) {
+    return request.getAttribute(MULTIPLEX) != null;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    doPost(request, response);
   }
 
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    List<ClientAction> actions = Lists.newArrayList();
-    RpcHandler.Params params = new RequestWrapper(request);
-    String rpcs[] = params.get("rpc").split("[,]+");
+    Multiplex multiplex = (Multiplex) request.getAttribute(MULTIPLEX);
+    if (null == multiplex) {
+      RpcHandler.Params params = new RequestWrapper(request);
+      String rpcs[] = params.get("rpc").split("[,]+");
+
+      if (rpcs.length == 0) {
+        String message = "Invalid rpc argument" + params.get("rpc");
+        response.sendError(400, message);
+        log.info(message);
+      }
 
-    if (rpcs.length == 0) {
-      String message = "Invalid rpc argument" + params.get("rpc");
-      response.sendError(400, message);
-      log.info(message);
+      List<RpcCall> calls = Lists.newArrayList();
+      for (String rpc : rpcs) {
+        RpcHandler handler = handlers.get(rpc);
+        if (handler == null) {
+          log.warning("Unknown RPC: " + rpc);
+          continue;
+        }
+        calls.add(new RpcCall(rpc, handler, params));
+      }
+
+      if ("GET".equals(request.getMethod())) {
+        ConditionalRpcHandler conditionalHandler = conditionalHandler(calls);
+        if (null == conditionalHandler) {
+          response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+              "Only a conditional rpc may be fetched with GET");
+          return;
+        }
+        String entityTag = conditionalHandler.currentEntityTag(calls.get(0).params);
+        if (null != entityTag && entityTag.equals(request.getHeader("If-None-Match"))) {
+          ++notModifiedResponses;
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+      }
+
+      if (!admission.withinRate(request)) {
+        response.setHeader("Retry-After", "1");
+        response.sendError(429, "Too many requests");
+        return;
+      }
+      AdmissionController.Ticket ticket = admission.admit(namesOf(calls), isBackground(calls));
+      if (null == ticket) {
+        response.setHeader("Retry-After", "1");
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server busy");
+        return;
+      }
+      multiplex = new Multiplex(params.get("rpc"), calls, request);
+      multiplex.ticket = ticket;
+      request.setAttribute(MULTIPLEX, multiplex);
     }
 
-    // Multiplex the called rpcs.
-    for (String rpc : rpcs) {
-      RpcHandler handler = handlers.get(rpc);
-      if (handler == null) {
-        log.warning("Unknown RPC: " + rpc);
-        continue;
+    // A suspended request keeps its place until it is replayed and finished.
+    try {
+      run(multiplex, request, response);
+    } finally {
+      if (!multiplex.continuation.isPending()) {
+        admission.release(multiplex.ticket);
       }
+    }
+  }
 
-      // Time taken for each RPC.
-      long start = System.currentTimeMillis();
-      handler.call(params, actions);
-      timing.record(rpc, System.currentTimeMillis() - start);
+  /**
+   * Runs the rpcs of an admitted request, picking up where it left off, and
+   * writes the response.
+   */
+  private void run(Multiplex multiplex, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    // Multiplex the called rpcs, a group at a time.
+    List<RpcCall> calls = multiplex.calls;
+    List<ClientAction> actions = multiplex.actions;
+    while (multiplex.next < calls.size()) {
+      if (multiplex.end == multiplex.next) {
+        multiplex.end = groupEnd(calls, multiplex.next);
+        multiplex.deadline = System.currentTimeMillis() + suspendMillis;
+        start(calls.subList(multiplex.next, multiplex.end), multiplex.executor);
+      }
+      List<RpcCall> group = calls.subList(multiplex.next, multiplex.end);
+      await(group, multiplex);
+      for (RpcCall call : group) {
+        call.finish(actions);
+      }
+      multiplex.next = multiplex.end;
+    }
+
+    // Tagged by what was actually sent, which may be newer than what the
+    // handler knew of before it ran.
+    ConditionalRpcHandler conditionalHandler = conditionalHandler(calls);
+    if (null != conditionalHandler) {
+      String entityTag = conditionalHandler.entityTag(calls.get(0).params, actions);
+      if (null != entityTag) {
+        response.setHeader("ETag", entityTag);
+      }
     }
 
     long start = System.currentTimeMillis();
-    String json = gson.toJson(actions);
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
-    response.getWriter().write(json);
-    timing.record("gson.toJson", System.currentTimeMillis() - start);
+    write(multiplex.rpc, actions, request, response);
+    timing.record("json.write", System.currentTimeMillis() - start);
+  }
+
+  private static List<String> namesOf(List<RpcCall> calls) {
+    List<String> names = Lists.newArrayList();
+    for (RpcCall call : calls) {
+      names.add(call.rpc);
+    }
+    return names;
+  }
+
+  /**
+   * @return true if all the given rpcs are {@link Background} rpcs.
+   */
+  private static boolean isBackground(List<RpcCall> calls) {
+    for (RpcCall call : calls) {
+      if (!call.handler.getClass().isAnnotationPresent(Background.class)) {
+        return false;
+      }
+    }
+    return !calls.isEmpty();
+  }
+
+  /**
+   * @return the handler of the given rpcs if there is just the one and it is
+   *     a {@link ConditionalRpcHandler}, or null.
+   */
+  private static ConditionalRpcHandler conditionalHandler(List<RpcCall> calls) {
+    if (calls.size() == 1 && calls.get(0).handler instanceof ConditionalRpcHandler) {
+      return (ConditionalRpcHandler) calls.get(0).handler;
+    }
+    return null;
+  }
+
+  /**
+   * Writes the response, gzipped if the client accepts it and it is large
+   * enough to be worth it.
+   */
+  private void write(String rpc, List<ClientAction> actions, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    response.setHeader("Vary", "Accept-Encoding");
+    boolean gzip = acceptsGzip(request) && estimateSize(actions) >= gzipThreshold;
+    long startNanos = threadNanos();
+
+    OutputStream out = response.getOutputStream();
+    CountingOutputStream compressed = null;
+    if (gzip) {
+      response.setHeader("Content-Encoding", "gzip");
+      compressed = new CountingOutputStream(out);
+      out = new GZIPOutputStream(compressed);
+    }
+    CountingOutputStream plain = new CountingOutputStream(out);
+    Writer writer = new OutputStreamWriter(plain, Charsets.UTF_8);
+    actionWriter.write(actions, writer);
+    writer.close();
+
+    long nanos = threadNanos() - startNanos;
+    if (gzip) {
+      responseStats.recordGzipped(rpc, plain.getCount(), compressed.getCount(), nanos);
+    } else {
+      responseStats.recordPlain(rpc, plain.getCount(), nanos);
+    }
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    return !Strings.isNullOrEmpty(acceptEncoding) && acceptEncoding.contains("gzip");
+  }
+
+  /**
+   * @return roughly the number of characters of json the given actions make,
+   *     nearly all of which is their html.
+   */
+  private static int estimateSize(List<ClientAction> actions) {
+    int size = 0;
+    for (ClientAction action : actions) {
+      String html = action.getHtml();
+      size += 100 + (null != html ? html.length() : 0);
+    }
+    return size;
+  }
+
+  /**
+   * @return the cpu time of this thread where we can tell, wall clock time
+   *     otherwise, in nanoseconds.
+   */
+  private long threadNanos() {
+    return cpuTimes
+        ? ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime()
+        : System.nanoTime();
+  }
 
-    response.getWriter().flush();
-    response.getWriter().close();
+  /**
+   * @return the end of the group of rpcs starting at the given one, which is
+   *     either a run of {@link Concurrent} rpcs or a single other rpc.
+   */
+  private static int groupEnd(List<RpcCall> calls, int start) {
+    int end = start + 1;
+    if (calls.get(start).isConcurrent()) {
+      while (end < calls.size() && calls.get(end).isConcurrent()) {
+        end++;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Sends off the async rpcs of a group, then runs the others.
+   */
+  private void start(List<RpcCall> group, Executor executor) {
+    List<RpcCall> calls = Lists.newArrayList();
+    for (RpcCall call : group) {
+      if (call.isAsync()) {
+        call.start(executor);
+      } else {
+        calls.add(call);
+      }
+    }
+    runAll(calls);
+  }
+
+  /**
+   * Waits for the async rpcs of a group to finish, running their
+   * continuations as they come in. Under Jetty the first suspend gives up
+   * the thread by throwing, and later ones return at once when the request
+   * is replayed.
+   */
+  private void await(List<RpcCall> group, Multiplex multiplex) {
+    RequestThreadExecutor executor = multiplex.executor;
+    while (suspendRpcs) {
+      executor.runQueued();
+      long remaining = multiplex.deadline - System.currentTimeMillis();
+      if (isDone(group) || remaining <= 0) {
+        break;
+      }
+
+      // Continuations queued after the check resume the continuation only
+      // once it is suspended, as they need the lock we hold until then.
+      synchronized (multiplex) {
+        if (!executor.hasQueued() && !isDone(group)) {
+          multiplex.continuation.suspend(remaining);
+        }
+      }
+    }
+
+    // No suspending, or the backend is late, so wait right here.
+    for (RpcCall call : group) {
+      call.await(executor);
+    }
+  }
+
+  private static boolean isDone(List<RpcCall> group) {
+    for (RpcCall call : group) {
+      if (!call.isDone()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs the given rpcs side by side, this thread taking the first. Without
+   * threads (appengine) they run in turn.
+   */
+  private void runAll(List<RpcCall> calls) {
+    if (!concurrentRpcs || calls.size() < 2) {
+      for (RpcCall call : calls) {
+        call.call();
+      }
+    } else {
+      List<Future<RpcCall>> others = Lists.newArrayList();
+      for (RpcCall call : calls.subList(1, calls.size())) {
+        others.add(executor.submit(call));
+      }
+      calls.get(0).call();
+      try {
+        for (Future<RpcCall> other : others) {
+          other.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * The rpcs of a request, and how far along they are. Kept with the request
+   * across suspensions.
+   */
+  private static class Multiplex implements Runnable {
+    private final String rpc;
+    private final List<RpcCall> calls;
+    private final List<ClientAction> actions = Lists.newArrayList();
+    private final RequestThreadExecutor executor = new RequestThreadExecutor(this);
+    private final Continuation continuation;
+
+    // The group of rpcs under way, which is not yet started when both are the same.
+    private int next;
+    private int end;
+    private long deadline;
+    private AdmissionController.Ticket ticket;
+
+    Multiplex(String rpc, List<RpcCall> calls, HttpServletRequest request) {
+      this.rpc = rpc;
+      this.calls = calls;
+      this.continuation = ContinuationSupport.getContinuation(request, this);
+    }
+
+    /**
+     * Wakes up the request to run a queued continuation.
+     */
+    @Override
+    public synchronized void run() {
+      continuation.resume();
+    }
+  }
+
+  /**
+   * One rpc of a request, with its own responses and running time.
+   */
+  private class RpcCall implements Callable<RpcCall> {
+    private final String rpc;
+    private final RpcHandler handler;
+    private final RpcHandler.Params params;
+    private final List<ClientAction> actions = Lists.newArrayList();
+    private ListenableFuture<List<ClientAction>> pending;
+    private long start;
+    private long duration;
+
+    RpcCall(String rpc, RpcHandler handler, RpcHandler.Params params) {
+      this.rpc = rpc;
+      this.handler = handler;
+      this.params = params;
+    }
+
+    boolean isConcurrent() {
+      return handler.getClass().isAnnotationPresent(Concurrent.class);
+    }
+
+    boolean isAsync() {
+      return handler instanceof AsyncRpcHandler;
+    }
+
+    @Override
+    public RpcCall call() {
+      long start = System.currentTimeMillis();
+      handler.call(params, actions);
+      duration = System.currentTimeMillis() - start;
+      return this;
+    }
+
+    /**
+     * Sends off this async rpc, its continuations run on the given executor.
+     */
+    void start(Executor executor) {
+      start = System.currentTimeMillis();
+      pending = ((AsyncRpcHandler) handler).callAsync(params, executor);
+    }
+
+    boolean isDone() {
+      return null == pending || pending.isDone();
+    }
+
+    /**
+     * Waits for this rpc to finish if it is async, running continuations on
+     * this thread in the meantime.
+     */
+    void await(RequestThreadExecutor executor) {
+      if (null != pending) {
+        actions.addAll(executor.runUntilDone(pending));
+        duration = System.currentTimeMillis() - start;
+        pending = null;
+      }
+    }
+
+    /**
+     * Adds the responses of this rpc to the given list, and records its time.
+     */
+    void finish(List<ClientAction> responses) {
+      responses.addAll(actions);
+      timing.record(rpc, duration);
+    }
   }
 }
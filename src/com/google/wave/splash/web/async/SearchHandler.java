@@ -16,7 +16,11 @@
  */
 package com.google.wave.splash.web.async;
 
+import com.google.common.base.Function;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.wave.splash.rpc.ClientAction;
@@ -25,8 +29,8 @@ import com.google.wave.splash.text.Markup;
 import com.google.wave.splash.web.stats.Timing;
 import com.google.wave.splash.wprime.Index;
 
-import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 /**
@@ -39,7 +43,7 @@ import java.util.logging.Logger;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 @Singleton
-public class SearchHandler implements RpcHandler {
+public class SearchHandler extends AsyncRpcHandler {
   private final FeedRpc feedRpc;
   private final Timing timing;
 
@@ -52,7 +56,7 @@ public class SearchHandler implements RpcHandler {
   }
 
   @Override
-  public void call(Params params, List<ClientAction> actions) {
+  public ListenableFuture<List<ClientAction>> callAsync(Params params, Executor executor) {
     // If no query was specified, use the default.
     String query = params.get("query");
     if (Strings.isNullOrEmpty(query)) {
@@ -63,25 +67,33 @@ public class SearchHandler implements RpcHandler {
     int numResults = Integer.parseInt(params.get("numResults"));
     long currentFeedTime = Long.parseLong(params.get("currentFeedTime"));
 
-    loadFeedInto(actions, query, startAt, numResults, currentFeedTime);
+    return loadFeed(query, startAt, numResults, currentFeedTime, executor);
   }
 
-  private void loadFeedInto(Collection<ClientAction> actions, String query, int startAt,
-                            int numResults, long currentFeedTime) {
+  private ListenableFuture<List<ClientAction>> loadFeed(String query, int startAt,
+      int numResults, long currentFeedTime, Executor executor) {
     log.info("Performing feed search..."  + query);
-    long searchTime = System.currentTimeMillis();
-    ClientAction feedAction = feedRpc.updateFeedPage(currentFeedTime, query, startAt, numResults);
-    searchTime = System.currentTimeMillis() - searchTime;
+    final long searchStart = System.currentTimeMillis();
+    ListenableFuture<ClientAction> feed =
+        feedRpc.updateFeedPage(currentFeedTime, query, startAt, numResults, executor);
 
-    if (searchTime > 0) {
-      actions.add(Markup.measure("Search", searchTime));
-      timing.record("Search", searchTime);
-    }
+    return Futures.compose(feed, new Function<ClientAction, List<ClientAction>>() {
+      @Override
+      public List<ClientAction> apply(ClientAction feedAction) {
+        List<ClientAction> actions = Lists.newArrayList();
+        long searchTime = System.currentTimeMillis() - searchStart;
+        if (searchTime > 0) {
+          actions.add(Markup.measure("Search", searchTime));
+          timing.record("Search", searchTime);
+        }
 
-    // Null feed action means there were no new additions to the feed.
-    if (null != feedAction) {
-      actions.add(feedAction);
-    }
+        // Null feed action means there were no new additions to the feed.
+        if (null != feedAction) {
+          actions.add(feedAction);
+        }
+        return actions;
+      }
+    });
   }
 
 }
@@ -16,20 +16,27 @@
  */
 package com.google.wave.splash.web.async;
 
+import com.google.common.base.Function;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.wave.splash.rpc.ClientAction;
 import com.google.wave.splash.rpc.FeedRpc;
 import com.google.wave.splash.rpc.WaveletUpdateRpc;
 import com.google.wave.splash.text.Markup;
-import com.google.wave.splash.web.stats.Timed;
 import com.google.wave.splash.web.stats.Timing;
+import com.google.wave.splash.web.template.RenderMode;
+import com.google.wave.api.Wavelet;
 
 import org.waveprotocol.wave.model.id.WaveId;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 /**
@@ -37,8 +44,9 @@ import java.util.logging.Logger;
  *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
+@Concurrent
 @Singleton
-public class WaveOpenHandler implements RpcHandler  {
+public class WaveOpenHandler extends AsyncRpcHandler implements ConditionalRpcHandler {
   private final WaveletUpdateRpc waveletUpdateRpc;
   private final Timing timing;
 
@@ -50,37 +58,96 @@ public class WaveOpenHandler implements RpcHandler  {
     this.timing = timing;
   }
 
+  /**
+   * A wave renders the same at the same version and with the same header, so
+   * a re-open of a wave we know to be current, and the client has seen, needs
+   * nothing sent.
+   */
   @Override
-  public void call(Params params, List<ClientAction> actions) {
+  public String currentEntityTag(Params params) {
     String waveIdAsString = params.get("waveId");
-    int page = Integer.parseInt(params.get("page"));
+    if (Strings.isNullOrEmpty(waveIdAsString)) {
+      return null;
+    }
+    Wavelet snapshot = waveletUpdateRpc.currentSnapshot(WaveId.deserialise(waveIdAsString));
+    if (null == snapshot) {
+      return null;
+    }
+    RenderMode mode = RenderMode.forClient(params.get("client.type"));
+    return entityTag(params, snapshot.getLastModifiedTime(),
+        waveletUpdateRpc.headerVersion(snapshot, mode));
+  }
 
-    // TODO(dhanji): When we support more options, turn this into an "options" object.
+  /**
+   * Tags an opened wave by the versions of the wave and header we sent. A wave
+   * we could not find is not tagged.
+   */
+  @Override
+  public String entityTag(Params params, List<ClientAction> response) {
+    long version = WaveletUpdateRpc.LATEST_VERSION;
+    long headerVersion = WaveletUpdateRpc.NO_HEADER;
+    for (ClientAction action : response) {
+      if ("update-wave".equals(action.getAction()) && action.getVersion() > 0) {
+        version = action.getVersion();
+      } else if ("update-header".equals(action.getAction())) {
+        headerVersion = action.getVersion();
+      }
+    }
+    return version != WaveletUpdateRpc.LATEST_VERSION
+        ? entityTag(params, version, headerVersion)
+        : null;
+  }
+
+  private static String entityTag(Params params, long version, long headerVersion) {
+    return "\"" + params.get("waveId") + "/" + version + "/"
+        + Integer.parseInt(params.get("page")) + "/"
+        + RenderMode.forClient(params.get("client.type")) + "/"
+        + showHeader(params) + "/" + headerVersion + "\"";
+  }
+
+  private static boolean showHeader(Params params) {
     String showHeaderAsString = params.get("showHeader");
-    boolean showHeader = Strings.isNullOrEmpty(showHeaderAsString)
+    return Strings.isNullOrEmpty(showHeaderAsString)
         ? true : Boolean.valueOf(showHeaderAsString);
+  }
+
+  @Override
+  public ListenableFuture<List<ClientAction>> callAsync(Params params, Executor executor) {
+    String waveIdAsString = params.get("waveId");
+    int page = Integer.parseInt(params.get("page"));
+
+    // TODO(dhanji): When we support more options, turn this into an "options" object.
+    boolean showHeader = showHeader(params);
+
+    RenderMode mode = RenderMode.forClient(params.get("client.type"));
 
     // Timed fetch of wavelet from backends.
-    long waveFetchTime = System.currentTimeMillis();
+    final long waveFetchStart = System.currentTimeMillis();
     // There is a security hole here -- as we do no ACL checking on the wave
     // itself, it should be cached by user as well.
-    loadWaveletInto(waveIdAsString, page, actions, showHeader);
-    waveFetchTime = System.currentTimeMillis() - waveFetchTime;
+    ListenableFuture<Collection<ClientAction>> wave =
+        loadWavelet(waveIdAsString, page, mode, showHeader, executor);
 
-    actions.add(Markup.measure("Wave Open", waveFetchTime));
-    timing.record("Wave Open", waveFetchTime);
+    return Futures.compose(wave, new Function<Collection<ClientAction>, List<ClientAction>>() {
+      @Override
+      public List<ClientAction> apply(Collection<ClientAction> waveActions) {
+        List<ClientAction> actions = Lists.newArrayList(waveActions);
+        long waveFetchTime = System.currentTimeMillis() - waveFetchStart;
+        actions.add(Markup.measure("Wave Open", waveFetchTime));
+        timing.record("Wave Open", waveFetchTime);
+        return actions;
+      }
+    });
   }
 
-  @Timed
-  void loadWaveletInto(String waveIdAsString, int page, Collection<ClientAction> actions,
-      boolean showHeader) {
+  ListenableFuture<Collection<ClientAction>> loadWavelet(String waveIdAsString, int page,
+      RenderMode mode, boolean showHeader, Executor executor) {
     if (Strings.isNullOrEmpty(waveIdAsString)) {
       log.fine("wave-open RPC: Client did not provide a wave id. No waves are open.");
-    } else {
-      WaveId waveId = WaveId.deserialise(waveIdAsString);
-      actions.addAll(waveletUpdateRpc.smartFetch(waveId,
-          FeedRpc.getConversationWaveletId(waveId.getDomain()), page
-      ));
+      return Futures.<Collection<ClientAction>>immediateFuture(ImmutableList.<ClientAction>of());
     }
+    WaveId waveId = WaveId.deserialise(waveIdAsString);
+    return waveletUpdateRpc.smartFetch(waveId,
+        FeedRpc.getConversationWaveletId(waveId.getDomain()), page, mode, executor);
   }
 }
@@ -16,19 +16,27 @@
  */
 package com.google.wave.splash.web.async;
 
+import com.google.common.base.Function;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.wave.splash.rpc.BlipBases;
+import com.google.wave.splash.rpc.BlipEditRpc;
 import com.google.wave.splash.rpc.ClientAction;
 import com.google.wave.splash.rpc.FeedRpc;
 import com.google.wave.splash.rpc.WaveletUpdateRpc;
-import com.google.wave.splash.web.stats.Timed;
 import com.google.wave.splash.web.stats.Timing;
+import com.google.wave.splash.web.template.RenderMode;
 
 import org.waveprotocol.wave.model.id.WaveId;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 /**
@@ -36,29 +44,36 @@ import java.util.logging.Logger;
  * return a batch of responses (not necessarily 1:1). For example, the client may tell
  * us add a blip, and we tell it delete a blip, in reply. This also loads new items
  * for the feed. Note that this is a slower responding servlet as it always tries to
- * get fresh data, rather than respond immediately.
+ * get fresh data, rather than respond immediately. Fresh means no older than
+ * the wave's last backend fetch, which all its viewers share. Acknowledgements of
+ * the client's edits to the wave ride along with its updates.
  *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
+@Background
+@Concurrent
 @Singleton
-public class WaveUpdateHandler implements RpcHandler  {
+public class WaveUpdateHandler extends AsyncRpcHandler {
   private final WaveletUpdateRpc waveletUpdateRpc;
+  private final BlipEditRpc blipEditRpc;
   private final Timing timing;
 
   private final Logger log = Logger.getLogger(WaveUpdateHandler.class.getName());
 
   @Inject
-  public WaveUpdateHandler(WaveletUpdateRpc waveletUpdateRpc, Timing timing) {
+  public WaveUpdateHandler(WaveletUpdateRpc waveletUpdateRpc, BlipEditRpc blipEditRpc,
+      Timing timing) {
     this.waveletUpdateRpc = waveletUpdateRpc;
+    this.blipEditRpc = blipEditRpc;
     this.timing = timing;
   }
 
   @Override
-  public void call(Params params, List<ClientAction> actions) {
+  public ListenableFuture<List<ClientAction>> callAsync(Params params, Executor executor) {
     String waveIdAsString = params.get("waveId");
     if (Strings.isNullOrEmpty(waveIdAsString)) {
       log.fine("Update RPC: client did not provide a wave id. No waves are open.");
-      return;
+      return Futures.<List<ClientAction>>immediateFuture(ImmutableList.<ClientAction>of());
     }
     WaveId waveId = WaveId.deserialise(waveIdAsString);
 
@@ -70,13 +85,54 @@ public class WaveUpdateHandler implements RpcHandler  {
       clientWaveVersion = Long.valueOf(waveVersionAsString);
     }
 
-    // Timed fetch of wavelet from backends.
-    diffWaveletInto(waveId, clientWaveVersion, actions);
+    // The version of the header the client has, so we don't send it again.
+    long clientHeaderVersion = WaveletUpdateRpc.NO_HEADER;
+    String headerVersionAsString = params.get("headerVersion");
+    if (!Strings.isNullOrEmpty(headerVersionAsString)) {
+      clientHeaderVersion = Long.valueOf(headerVersionAsString);
+    }
+
+    // Fetch of wavelet from backends, diffed once it arrives.
+    ListenableFuture<Collection<ClientAction>> diff = diffWavelet(waveId, clientWaveVersion,
+        clientHeaderVersion, readBlipBases(params),
+        RenderMode.forClient(params.get("client.type")), executor);
+
+    // Taken now, while we know whose edits they are.
+    final List<ClientAction> acks = blipEditRpc.takeAcks(waveId);
+    return Futures.compose(diff, new Function<Collection<ClientAction>, List<ClientAction>>() {
+      @Override
+      public List<ClientAction> apply(Collection<ClientAction> actions) {
+        List<ClientAction> result = Lists.newArrayList(actions);
+        result.addAll(acks);
+        return result;
+      }
+    });
+  }
+
+  /**
+   * Reads the blips the client can apply patches to, and the blips it failed
+   * to patch and wants resent in full.
+   */
+  private static BlipBases readBlipBases(Params params) {
+    BlipBases blipBases = new BlipBases();
+    for (String name : params.nameSet()) {
+      if (name.startsWith("patchbase_")) {
+        String version = params.get(name);
+        if (!Strings.isNullOrEmpty(version)) {
+          blipBases.put(name.substring(10), Long.valueOf(version));
+        }
+      } else if (name.startsWith("resendblip_")) {
+        blipBases.resend(name.substring(11));
+      }
+    }
+    return blipBases;
   }
 
-  @Timed
-  void diffWaveletInto(WaveId waveId, long clientWaveVersion, Collection<ClientAction> actions) {
-    actions.addAll(waveletUpdateRpc.fetchDiff(waveId,
-        FeedRpc.getConversationWaveletId(waveId.getDomain()), clientWaveVersion));
+  ListenableFuture<Collection<ClientAction>> diffWavelet(WaveId waveId,
+      long clientWaveVersion, long clientHeaderVersion, BlipBases blipBases, RenderMode mode,
+      Executor executor) {
+    return waveletUpdateRpc.fetchDiff(waveId,
+        FeedRpc.getConversationWaveletId(waveId.getDomain()), clientWaveVersion,
+        clientHeaderVersion, blipBases, mode, executor);
   }
 }
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.PortableRequestScope;
+import com.google.wave.splash.auth.SessionContext;
+import com.google.wave.splash.rpc.FeedRpc;
+import com.google.wave.splash.rpc.WaveletUpdateRpc;
+import com.google.wave.splash.web.stats.Stat;
+import com.google.wave.splash.web.stats.Stats;
+
+import org.mortbay.util.ajax.Continuation;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the waves that clients are long-polling for changes. Each watched
+ * wave has a single check that fetches it every so often, on behalf of all
+ * the clients waiting on it, and wakes those whose version it has passed. A
+ * wave is no longer watched once a check finds nobody waiting on it.
+ * <p>
+ * Checks only learn the latest version of a wave, and run with the session of
+ * a client waiting on it. Each client woken then fetches its own update.
+ */
+@Singleton
+public class WaveWatcher {
+  private static final Logger log = Logger.getLogger(WaveWatcher.class.getName());
+
+  @Stat(name = "long-polls-parked",
+      help = "Number of update polls held open until their wave changed or they timed out.")
+  private static volatile int longPollsParked;
+
+  @Stat(name = "long-polls-woken",
+      help = "Number of parked update polls woken by a change to their wave.")
+  private static volatile int longPollsWoken;
+
+  @Stat(name = "wave-watch-checks",
+      help = "Number of times a watched wave was fetched to check for changes.")
+  private static volatile int waveWatchChecks;
+
+  static {
+    Stats.trackClass(WaveWatcher.class);
+  }
+
+  private final ConcurrentMap<WaveId, Watch> watches = new MapMaker().makeMap();
+
+  private final WaveletUpdateRpc waveletUpdateRpc;
+  private final ScheduledExecutorService executor;
+  private final PortableRequestScope requestScope;
+  private final Provider<SessionContext> sessionProvider;
+  private final long checkMillis;
+
+  @Inject
+  public WaveWatcher(WaveletUpdateRpc waveletUpdateRpc, ScheduledExecutorService executor,
+      PortableRequestScope requestScope, Provider<SessionContext> sessionProvider,
+      Options options) {
+    this.waveletUpdateRpc = waveletUpdateRpc;
+    this.executor = executor;
+    this.requestScope = requestScope;
+    this.sessionProvider = sessionProvider;
+    this.checkMillis = options.longPollCheckMillis();
+  }
+
+  /**
+   * Parks the given continuation until the wave moves past the client's
+   * version. Must be called from the client's request.
+   *
+   * @return false if the wave is already known to be past the client's
+   *     version, in which case there is nothing to wait for.
+   */
+  public boolean watch(WaveId waveId, long clientVersion, Continuation continuation) {
+    SessionContext session = sessionProvider.get();
+    while (true) {
+      Watch watch = watches.get(waveId);
+      boolean started = false;
+      if (watch == null) {
+        Watch fresh = new Watch(waveId);
+        watch = watches.putIfAbsent(waveId, fresh);
+        if (watch == null) {
+          watch = fresh;
+          started = true;
+        }
+      }
+
+      Boolean parked = watch.add(continuation, clientVersion, session);
+      if (started) {
+        executor.execute(watch);
+      }
+
+      // A watch that just retired can't take waiters, so start another.
+      if (parked != null) {
+        if (parked) {
+          ++longPollsParked;
+        }
+        return parked;
+      }
+      watches.remove(waveId, watch);
+    }
+  }
+
+  /**
+   * Stops waking the given continuation, once its poll has been answered.
+   */
+  public void unwatch(WaveId waveId, Continuation continuation) {
+    Watch watch = watches.get(waveId);
+    if (watch != null) {
+      watch.remove(continuation);
+    }
+  }
+
+  /**
+   * The clients waiting on one wave, and the latest version of it we know.
+   */
+  private class Watch implements Runnable {
+    private final WaveId waveId;
+
+    // Guarded by this.
+    private final Map<Continuation, Long> waiters = Maps.newHashMap();
+    private long version = WaveletUpdateRpc.LATEST_VERSION;
+    private SessionContext session;
+    private boolean retired;
+
+    Watch(WaveId waveId) {
+      this.waveId = waveId;
+    }
+
+    /**
+     * @return whether the continuation was parked, or null if this watch has
+     *     retired.
+     */
+    synchronized Boolean add(Continuation continuation, long clientVersion,
+        SessionContext session) {
+      if (retired) {
+        return null;
+      }
+      if (version > clientVersion) {
+        return false;
+      }
+      waiters.put(continuation, clientVersion);
+      this.session = session;
+      return true;
+    }
+
+    synchronized void remove(Continuation continuation) {
+      waiters.remove(continuation);
+    }
+
+    @Override
+    public void run() {
+      SessionContext session;
+      synchronized (this) {
+        if (waiters.isEmpty()) {
+          retired = true;
+          watches.remove(waveId, this);
+          return;
+        }
+        session = this.session;
+      }
+
+      long latest = check(session);
+      synchronized (this) {
+        version = Math.max(version, latest);
+        for (Iterator<Map.Entry<Continuation, Long>> iterator = waiters.entrySet().iterator();
+            iterator.hasNext(); ) {
+          Map.Entry<Continuation, Long> waiter = iterator.next();
+          if (version > waiter.getValue()) {
+            iterator.remove();
+            waiter.getKey().resume();
+            ++longPollsWoken;
+          }
+        }
+      }
+
+      // Check again even if nobody is left, so that clients coming back for
+      // their next poll find the version we know.
+      executor.schedule(this, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private long check(SessionContext session) {
+      ++waveWatchChecks;
+      requestScope.enter();
+      requestScope.seed(SessionContext.class, session);
+      try {
+        return waveletUpdateRpc.fetchVersion(waveId,
+            FeedRpc.getConversationWaveletId(waveId.getDomain()));
+      } catch (RuntimeException e) {
+        log.log(Level.WARNING, "Error checking watched wave " + waveId, e);
+        return WaveletUpdateRpc.LATEST_VERSION;
+      } finally {
+        requestScope.exit();
+      }
+    }
+  }
+}
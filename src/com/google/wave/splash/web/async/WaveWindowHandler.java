@@ -0,0 +1,73 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.base.Strings;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.wave.splash.rpc.ClientAction;
+import com.google.wave.splash.rpc.FeedRpc;
+import com.google.wave.splash.rpc.WaveletUpdateRpc;
+import com.google.wave.splash.web.template.RenderMode;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Serves an arbitrary window of blips of a wave, by position in flattened
+ * thread order, along with the total number of blips. This lets the client
+ * render only the part of a huge wave that is in view, instead of opening it
+ * a page at a time from the top.
+ */
+@Concurrent
+@Singleton
+public class WaveWindowHandler implements RpcHandler {
+  /**
+   * Most blips rendered for one window, however many the client asks for.
+   */
+  static final int MAX_WINDOW_SIZE = 100;
+
+  private final WaveletUpdateRpc waveletUpdateRpc;
+
+  private final Logger log = Logger.getLogger(WaveWindowHandler.class.getName());
+
+  @Inject
+  public WaveWindowHandler(WaveletUpdateRpc waveletUpdateRpc) {
+    this.waveletUpdateRpc = waveletUpdateRpc;
+  }
+
+  @Override
+  public void call(Params params, List<ClientAction> actions) {
+    String waveIdAsString = params.get("waveId");
+    String windowStartAsString = params.get("windowStart");
+    String windowSizeAsString = params.get("windowSize");
+    if (Strings.isNullOrEmpty(waveIdAsString) || Strings.isNullOrEmpty(windowStartAsString)
+        || Strings.isNullOrEmpty(windowSizeAsString)) {
+      log.fine("Wave window RPC: client did not provide a wave id or window.");
+      return;
+    }
+
+    int windowSize = Math.min(MAX_WINDOW_SIZE, Integer.parseInt(windowSizeAsString));
+    WaveId waveId = WaveId.deserialise(waveIdAsString);
+    actions.add(waveletUpdateRpc.fetchWindow(waveId,
+        FeedRpc.getConversationWaveletId(waveId.getDomain()),
+        Integer.parseInt(windowStartAsString), windowSize,
+        RenderMode.forClient(params.get("client.type"))));
+  }
+}
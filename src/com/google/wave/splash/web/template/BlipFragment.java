@@ -0,0 +1,106 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.template;
+
+/**
+ * Typed context of the blip fragments ({@link Templates#BLIP_TEMPLATE} and
+ * {@link Templates#COMPACT_BLIP_TEMPLATE}), along with their compiled renderers.
+ */
+public class BlipFragment {
+  static final FragmentRenderer<BlipFragment> RENDERER = new FragmentRenderer<BlipFragment>() {
+    @Override
+    public void render(BlipFragment blip, StringBuilder out) {
+      out.append("<div class=\"left ").append(blip.authorCountClass).append("\">\n  ")
+          .append(blip.authorString)
+          .append("\n  ");
+      if (!blip.readonly) {
+        out.append("\n  <div class=\"toolbar\">\n"
+            + "    <img src=\"images/cross.png\" alt=\"delete\">\n"
+            + "    <img class=\"edit-button\" src=\"images/pencil.png\" alt=\"edit\">\n"
+            + "    <img class=\"reply-button\" src=\"images/reply.png\" alt=\"reply\">\n"
+            + "  </div>\n  ");
+      }
+      out.append("\n</div>\n<div class=\"right ").append(blip.authorCountClass).append("\">\n"
+          + "  <div class=\"right-inner\">\n"
+          + "    <div class=\"time\">").append(blip.time).append("</div>\n"
+          + "    <div class=\"content styleable\">").append(blip.content).append("</div>\n"
+          + "  </div>\n"
+          + "</div>\n");
+    }
+  };
+
+  static final FragmentRenderer<BlipFragment> COMPACT_RENDERER =
+      new FragmentRenderer<BlipFragment>() {
+        @Override
+        public void render(BlipFragment blip, StringBuilder out) {
+          out.append("<div class=\"right compact\">\n"
+              + "  <div class=\"right-inner\">\n"
+              + "    <div class=\"time\">").append(blip.time).append("</div>\n"
+              + "    <div class=\"authors\">").append(blip.authorString).append("</div>\n"
+              + "    <div class=\"content styleable\">").append(blip.content).append("</div>\n"
+              + "  </div>\n"
+              + "</div>\n");
+        }
+      };
+
+  private final String id;
+  private final String authorCountClass;
+  private final CharSequence authorString;
+  private final String time;
+  private final String title;
+  private final CharSequence content;
+  private final boolean readonly;
+
+  public BlipFragment(String id, String authorCountClass, CharSequence authorString, String time,
+      String title, CharSequence content, boolean readonly) {
+    this.id = id;
+    this.authorCountClass = authorCountClass;
+    this.authorString = authorString;
+    this.time = time;
+    this.title = title;
+    this.content = content;
+    this.readonly = readonly;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getAuthorCountClass() {
+    return authorCountClass;
+  }
+
+  public CharSequence getAuthorString() {
+    return authorString;
+  }
+
+  public String getTime() {
+    return time;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public CharSequence getContent() {
+    return content;
+  }
+
+  public boolean isReadonly() {
+    return readonly;
+  }
+}
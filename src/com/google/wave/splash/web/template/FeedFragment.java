@@ -0,0 +1,81 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.template;
+
+import com.google.wave.splash.text.Markup;
+import com.google.wave.api.SearchResult.Digest;
+
+import java.util.Collection;
+
+/**
+ * Typed context of the search feed fragment ({@link Templates#FEED_TEMPLATE}),
+ * along with its compiled renderer.
+ */
+public class FeedFragment {
+
+  /**
+   * Needs {@link Markup} for participant names and avatars, like the fragment.
+   */
+  static class Renderer implements FragmentRenderer<FeedFragment> {
+    private final Markup markup;
+
+    Renderer(Markup markup) {
+      this.markup = markup;
+    }
+
+    @Override
+    public void render(FeedFragment feed, StringBuilder out) {
+      out.append("<div style=\"display:none\">\n");
+      for (Digest item : feed.feed) {
+        out.append("\n<div class=\"item ");
+        if (item.getUnreadCount() == 0) {
+          out.append("read");
+        }
+        String firstParticipant = item.getParticipants().get(0);
+        String displayName = markup.getDisplayName(firstParticipant);
+        out.append("\" wave_id=\"").append(item.getWaveId()).append("\">\n"
+            + "  <div class=\"time\">\n"
+            + "    <p>").append(Markup.formatDateTime(item.getLastModified())).append("</p>\n"
+            + "    <!-- TODO: i18n -->\n"
+            + "    <p class=\"messages\">").append(item.getBlipCount()).append(" msgs</p>\n"
+            + "  </div>\n"
+            + "  <div class=\"avatar\">\n"
+            + "    <!-- TODO: Kinda hacky. -->\n"
+            + "    <img src=\"").append(markup.getImageUrl(firstParticipant)).append("\"\n"
+            + "        alt=\"").append(displayName).append("\"\n"
+            + "        title=\"").append(displayName).append("\"/>\n"
+            + "  </div>\n"
+            + "  <div class=\"title\">");
+        Markup.appendSanitized(out, item.getTitle()).append("</div>\n"
+            + "  <div class=\"snippet\">");
+        Markup.appendSanitized(out, item.getSnippet()).append("</div>\n"
+            + "</div>\n");
+      }
+      out.append("\n</div>\n");
+    }
+  }
+
+  private final Collection<Digest> feed;
+
+  public FeedFragment(Collection<Digest> feed) {
+    this.feed = feed;
+  }
+
+  public Collection<Digest> getFeed() {
+    return feed;
+  }
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.template;
+
+/**
+ * A template fragment compiled down to java. Rather than evaluating the
+ * fragment's expressions against a map of variables, it writes its markup
+ * straight into the output buffer from a typed context object. Every compiled
+ * fragment must produce exactly what MVEL produces for its fragment file, which
+ * remains the fallback (see {@link Templates#render}).
+ */
+interface FragmentRenderer<T> {
+  void render(T context, StringBuilder out);
+}
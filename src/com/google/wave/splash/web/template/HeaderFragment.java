@@ -0,0 +1,66 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.template;
+
+import com.google.wave.api.ParticipantProfile;
+
+import java.util.List;
+
+/**
+ * Typed context of the wave header fragment ({@link Templates#HEADER_TEMPLATE}),
+ * along with its compiled renderer.
+ */
+public class HeaderFragment {
+  static final FragmentRenderer<HeaderFragment> RENDERER = new FragmentRenderer<HeaderFragment>() {
+    @Override
+    public void render(HeaderFragment header, StringBuilder out) {
+      out.append("<table cellspacing=\"0\" cellpadding=\"0\"><tr>\n"
+          + "  <td width=\"100%\">\n"
+          + "    <div class=\"participants\">\n      ");
+      boolean first = true;
+      for (ParticipantProfile participant : header.participants) {
+        if (!first) {
+          out.append("<span class=\"punctuation\">,</span>");
+        }
+        first = false;
+        out.append("\n      <span class=\"avatar\">\n        <img src=\"")
+            .append(participant.getImageUrl())
+            .append("\" alt=\"")
+            .append(participant.getName())
+            .append("\">\n        <span class=\"name\">")
+            .append(participant.getName())
+            .append("</span>\n      </span>\n      ");
+      }
+      out.append("\n    </div>\n"
+          + "  </td>\n"
+          + "  <td valign=\"top\">\n"
+          + "    <a class=\"detail\" style=\"display:none\" href=\"#\">Show</a>\n"
+          + "  </td>\n"
+          + "</tr></table>\n");
+    }
+  };
+
+  private final List<ParticipantProfile> participants;
+
+  public HeaderFragment(List<ParticipantProfile> participants) {
+    this.participants = participants;
+  }
+
+  public List<ParticipantProfile> getParticipants() {
+    return participants;
+  }
+}
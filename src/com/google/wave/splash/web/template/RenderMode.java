@@ -0,0 +1,50 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.template;
+
+/**
+ * How much of a wave to render, chosen per client type. Desktop clients get
+ * everything; the mobile client gets a compact rendering that is cheaper to
+ * produce and to send over slow links.
+ */
+public enum RenderMode {
+  /**
+   * Avatars, blip toolbars, gadget iframes and inline replies in purgatory.
+   */
+  FULL,
+
+  /**
+   * A slim blip template with author names only, placeholders instead of
+   * gadget iframes, inline replies fetched on demand rather than kept in
+   * purgatory, shorter pages and no wave header.
+   */
+  COMPACT;
+
+  /**
+   * Value of the {@code client.type} request parameter sent by the mobile
+   * client.
+   */
+  public static final String MOBILE_CLIENT = "mobile";
+
+  /**
+   * @return the render mode for the given {@code client.type} request
+   *     parameter, which may be null.
+   */
+  public static RenderMode forClient(String clientType) {
+    return MOBILE_CLIENT.equals(clientType) ? COMPACT : FULL;
+  }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.template;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.web.stats.Stat;
+import com.google.wave.splash.web.stats.Stats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Static resources, as served by the {@link ResourceServlet}, keyed by file
+ * name. Each resource is read once and kept in memory along with a gzipped
+ * copy, if it is text that compresses, and the validators clients revalidate
+ * it with. In development mode a resource is read again when its file on
+ * disk changes.
+ */
+@Singleton
+class ResourceCache {
+  /**
+   * Resource types worth gzipping, the others (images) are compressed already.
+   */
+  static final Set<String> COMPRESSIBLE_TYPES = ImmutableSet.of("css", "js", "html");
+
+  @Stat(name = "static-resource-loads",
+      help = "Number of times a static resource was read into memory.")
+  private static volatile int loads;
+
+  static {
+    Stats.trackClass(ResourceCache.class);
+  }
+
+  private final ConcurrentMap<String, Resource> resources = new MapMaker()
+      .softValues()
+      .makeMap();
+  private final Templates templates;
+  private final boolean checkFiles;
+
+  @Inject
+  ResourceCache(Templates templates, Options options) {
+    this.templates = templates;
+    this.checkFiles = !options.productionMode();
+  }
+
+  /**
+   * A static resource, as it was when read.
+   */
+  static class Resource {
+    private final byte[] bytes;
+    private final byte[] gzipped;
+    private final long fileModified;
+    private final long lastModified;
+    private final String etag;
+    private final String gzippedEtag;
+
+    Resource(byte[] bytes, byte[] gzipped, long fileModified) {
+      this.bytes = bytes;
+      this.gzipped = gzipped;
+      this.fileModified = fileModified;
+
+      // Http dates only go down to the second.
+      long modified = fileModified > 0 ? fileModified : System.currentTimeMillis();
+      this.lastModified = modified / 1000 * 1000;
+
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      String tag = Long.toHexString(crc.getValue()) + '-' + Integer.toHexString(bytes.length);
+      this.etag = "\"" + tag + "\"";
+      this.gzippedEtag = "\"" + tag + "-gz\"";
+    }
+
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return the gzipped bytes, or null if this resource is not worth
+     *     gzipping.
+     */
+    public byte[] getGzipped() {
+      return gzipped;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    /**
+     * @return the entity tag of the plain or the gzipped bytes. The two are
+     *     different representations, so they get different tags.
+     */
+    public String getEtag(boolean gzip) {
+      return gzip ? gzippedEtag : etag;
+    }
+
+    /**
+     * @return true if the request's validators show the client already has
+     *     this resource, plain or gzipped as given.
+     */
+    public boolean isNotModified(HttpServletRequest request, boolean gzip) {
+      String ifNoneMatch = request.getHeader("If-None-Match");
+      if (ifNoneMatch != null) {
+        if ("*".equals(ifNoneMatch.trim())) {
+          return true;
+        }
+        String tag = getEtag(gzip);
+        for (String match : ifNoneMatch.split(",")) {
+          String candidate = match.trim();
+          if (candidate.startsWith("W/")) {
+            candidate = candidate.substring(2);
+          }
+          if (tag.equals(candidate)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      long ifModifiedSince;
+      try {
+        ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+      return ifModifiedSince != -1 && ifModifiedSince >= lastModified;
+    }
+  }
+
+  /**
+   * @return the named resource, reading it if we do not have it yet or its
+   *     file changed since, or null if there is no such resource.
+   */
+  public Resource get(String fileName) throws IOException {
+    Resource resource = resources.get(fileName);
+    if (null != resource
+        && (!checkFiles || resource.fileModified == templates.resourceLastModified(fileName))) {
+      return resource;
+    }
+
+    resource = load(fileName);
+    if (null == resource) {
+      resources.remove(fileName);
+    } else {
+      resources.put(fileName, resource);
+    }
+    return resource;
+  }
+
+  private Resource load(String fileName) throws IOException {
+    // Look at the file first, so that a change while we read it is not missed.
+    long fileModified = templates.resourceLastModified(fileName);
+    InputStream input = templates.openResource(fileName);
+    if (null == input) {
+      return null;
+    }
+
+    byte[] bytes;
+    try {
+      bytes = ByteStreams.toByteArray(input);
+    } finally {
+      input.close();
+    }
+    ++loads;
+
+    int lastDot = fileName.lastIndexOf('.');
+    byte[] gzipped = null;
+    if (lastDot != -1 && COMPRESSIBLE_TYPES.contains(fileName.substring(lastDot + 1))) {
+      gzipped = gzip(bytes);
+      if (gzipped.length >= bytes.length) {
+        gzipped = null;
+      }
+    }
+    return new Resource(bytes, gzipped, fileModified);
+  }
+
+  private static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2);
+    OutputStream out = new GZIPOutputStream(compressed);
+    out.write(bytes);
+    out.close();
+    return compressed.toByteArray();
+  }
+}
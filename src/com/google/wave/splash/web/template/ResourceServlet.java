@@ -18,13 +18,12 @@ package com.google.wave.splash.web.template;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.wave.splash.Options;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
 import java.util.Set;
@@ -35,6 +34,9 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Serves static resources, CSS files, etc., from the ripple Jar directly.
+ * Resources are served from memory by way of the {@link ResourceCache},
+ * gzipped for clients that accept it, and with validators so that clients
+ * can revalidate them with conditional GETs.
  *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
@@ -45,12 +47,6 @@ public class ResourceServlet extends HttpServlet {
 
   private static final Map<String, String> mimeTypes = Maps.newHashMap();
 
-  /**
-   * 64k read buffer, only used for determining a file length the very first
-   * time it is served.
-   */
-  private static final int READ_BUFFER = 65535;
-
   static {
     mimeTypes.put("png", "image/png");
     mimeTypes.put("jpg", "image/jpeg");
@@ -60,12 +56,18 @@ public class ResourceServlet extends HttpServlet {
     mimeTypes.put("js", "text/javascript");
   }
 
-  private final Templates templates;
-  private final Map<String, Integer> fileLengths = new MapMaker().makeMap();
+  private final ResourceCache resources;
+  private final String cacheControl;
 
   @Inject
-  public ResourceServlet(Templates templates) {
-    this.templates = templates;
+  public ResourceServlet(ResourceCache resources, Options options) {
+    this.resources = resources;
+
+    // Resource urls are not versioned, so in development clients must check
+    // back every time to pick up changes.
+    this.cacheControl = options.productionMode()
+        ? "public, max-age=" + options.resourceMaxAgeSeconds()
+        : "public, max-age=0, must-revalidate";
   }
 
   @Override
@@ -83,8 +85,19 @@ public class ResourceServlet extends HttpServlet {
       return;
     }
 
-    // Read the file and pipe it to the output.
-    InputStream resource = templates.openResource(fileName);
+    int lastDot = fileName.lastIndexOf(".");
+    if (lastDot == -1) {
+      resp.sendError(404, "Cannot serve resources without a filename extension");
+      return;
+    }
+
+    String mime = mimeTypes.get(fileName.substring(lastDot + 1));
+    if (null == mime) {
+      resp.sendError(404, "Don't know how to serve that file");
+      return;
+    }
+
+    ResourceCache.Resource resource = resources.get(fileName);
     if (resource == null) {
       resp.sendError(HttpServletResponse.SC_NOT_FOUND,
           "No such resource found: " + req.getRequestURI()
@@ -92,75 +105,35 @@ public class ResourceServlet extends HttpServlet {
       return;
     }
 
-    setContentLength(resp, fileName);
-    setContentType(resp, fileName);
-
-    pipe(resource, resp);
-    resp.getOutputStream().flush();
-    resp.getOutputStream().close();
-  }
-
-  private int determineFileLength(String fileName) throws IOException {
-    InputStream input = templates.openResource(fileName);
-
-    int fileLength = 0;
-    try {
-      byte[] buffer = new byte[READ_BUFFER];
-      int bytesRead;
-      while ((bytesRead = input.read(buffer)) != -1) {
-        fileLength += bytesRead;
-      }
-    } finally {
-      input.close();
-    }
-
-    return fileLength;
-  }
-
-  private void setContentLength(HttpServletResponse resp, String fileName)
-      throws IOException {
-    Integer length = fileLengths.get(fileName);
-
-    // Read length from file system if necessary.
-    if (null == length) {
-      length = determineFileLength(fileName);
-      fileLengths.put(fileName, length);
+    // The plain and gzipped bytes are validated each with their own tag.
+    boolean gzip = null != resource.getGzipped() && acceptsGzip(req);
+    resp.setHeader("Cache-Control", cacheControl);
+    resp.setHeader("ETag", resource.getEtag(gzip));
+    resp.setDateHeader("Last-Modified", resource.getLastModified());
+    if (null != resource.getGzipped()) {
+      resp.setHeader("Vary", "Accept-Encoding");
     }
-
-    resp.setContentLength(length);
-  }
-
-  private static void setContentType(HttpServletResponse resp, String fileName) throws IOException {
-    int lastDot = fileName.lastIndexOf(".");
-
-    if (lastDot == -1) {
-      resp.sendError(404, "Cannot serve resources without a filename extension");
+    if (resource.isNotModified(req, gzip)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
       return;
     }
 
-    String extension = fileName.substring(lastDot + 1);
-    String mime = mimeTypes.get(extension);
-
-    if (null == mime) {
-      resp.sendError(404, "Don't know how to serve that file");
-      return;
+    byte[] body = resource.getBytes();
+    if (gzip) {
+      resp.setHeader("Content-Encoding", "gzip");
+      body = resource.getGzipped();
     }
-
     resp.setContentType(mime);
+    resp.setContentLength(body.length);
+
+    OutputStream output = resp.getOutputStream();
+    output.write(body);
+    output.flush();
+    output.close();
   }
 
-  private static void pipe(InputStream input, HttpServletResponse response)
-      throws IOException {
-    OutputStream output = response.getOutputStream();
-
-    try {
-      byte[] buffer = new byte[response.getBufferSize()];
-      int bytesRead;
-      while ((bytesRead = input.read(buffer)) != -1) {
-        output.write(buffer, 0, bytesRead);
-      }
-    } finally {
-      input.close();
-    }
+  private static boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    return !Strings.isNullOrEmpty(acceptEncoding) && acceptEncoding.contains("gzip");
   }
 }
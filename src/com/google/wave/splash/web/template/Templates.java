@@ -17,6 +17,7 @@
 package com.google.wave.splash.web.template;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -32,6 +33,7 @@ import org.mvel2.templates.TemplateCompiler;
 import org.mvel2.templates.TemplateRuntime;
 import org.mvel2.templates.util.TemplateTools;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
@@ -49,6 +51,7 @@ import javax.servlet.ServletContext;
 public class Templates {
   // Template file names go here.
   public static final String BLIP_TEMPLATE = "blip.html.fragment";
+  public static final String COMPACT_BLIP_TEMPLATE = "compact_blip.html.fragment";
   public static final String HEADER_TEMPLATE = "header.html.fragment";
   public static final String FEED_TEMPLATE = "feed.html.fragment";
   public static final String PERMALINK_WAVE_TEMPLATE = "permalink_client.html";
@@ -69,6 +72,11 @@ public class Templates {
         }
       });
 
+  /**
+   * file name of template -> compiled java renderer, for the hot fragments.
+   */
+  private final Map<String, FragmentRenderer<?>> fragmentRenderers;
+
   private final Options options;
   private final Markup markup;
   private final Provider<ServletContext> servletContext;
@@ -78,6 +86,13 @@ public class Templates {
     this.options = options;
     this.markup = markup;
     this.servletContext = servletContext;
+    this.fragmentRenderers = options.precompiledTemplates()
+        ? ImmutableMap.<String, FragmentRenderer<?>>of(
+            BLIP_TEMPLATE, BlipFragment.RENDERER,
+            COMPACT_BLIP_TEMPLATE, BlipFragment.COMPACT_RENDERER,
+            HEADER_TEMPLATE, HeaderFragment.RENDERER,
+            FEED_TEMPLATE, new FeedFragment.Renderer(markup))
+        : ImmutableMap.<String, FragmentRenderer<?>>of();
   }
 
   private CompiledTemplate loadTemplate(String template) {
@@ -116,6 +131,19 @@ public class Templates {
     return stream;
   }
 
+  /**
+   * @param file The name of the file/resource.
+   * @return the time the named resource last changed on disk, in millis, or
+   *     0 if it is packaged (production mode) or not a file we can see.
+   */
+  public long resourceLastModified(String file) {
+    if (options.productionMode()) {
+      return 0;
+    }
+    String path = servletContext.get().getRealPath("/" + file);
+    return null != path ? new File(path).lastModified() : 0;
+  }
+
   /**
    * Loads templates if necessary.
    *
@@ -134,4 +162,24 @@ public class Templates {
     vars.put("markup", markup);
     return TemplateRuntime.execute(compiledTemplate, context, vars).toString();
   }
+
+  /**
+   * Renders a template into the given buffer. Fragments with a compiled java
+   * renderer are written straight into the buffer, all others (or all of them,
+   * if precompiled templates are turned off) go through {@link #process}.
+   *
+   * @param template Name of the template file.
+   * @param context  the typed context of the fragment, e.g. a
+   *                 {@link BlipFragment} for {@link #BLIP_TEMPLATE}.
+   * @param out      the buffer to render into.
+   */
+  public <T> void render(String template, T context, StringBuilder out) {
+    @SuppressWarnings("unchecked")
+    FragmentRenderer<T> renderer = (FragmentRenderer<T>) fragmentRenderers.get(template);
+    if (renderer != null) {
+      renderer.render(context, out);
+    } else {
+      out.append(process(template, context));
+    }
+  }
 }
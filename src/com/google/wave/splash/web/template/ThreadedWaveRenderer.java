@@ -17,18 +17,31 @@
 package com.google.wave.splash.web.template;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
+import com.google.inject.Key;
+import com.google.inject.OutOfScopeException;
+import com.google.inject.Provider;
+import com.google.inject.ProvisionException;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
 import com.google.wave.splash.Options;
+import com.google.wave.splash.PortableRequestScope;
 import com.google.wave.splash.data.ProfileStore;
+import com.google.wave.splash.data.ThreadIndex;
+import com.google.wave.splash.data.ThreadIndexStore;
 import com.google.wave.splash.rpc.ClientAction;
 import com.google.wave.splash.text.ContentRenderer;
 import com.google.wave.splash.text.Markup;
+import com.google.wave.splash.text.RenderBuffer;
 import com.google.wave.splash.web.stats.Timed;
 import com.google.wave.api.Blip;
 import com.google.wave.api.BlipThread;
@@ -40,6 +53,11 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Does the actual conversion of a wavelet/blipdata tree into html,
@@ -51,34 +69,81 @@ import java.util.Set;
 @Singleton
 class ThreadedWaveRenderer implements WaveRenderer {
   private static final Set<String> HIDDEN_PARTICIPANTS = ImmutableSet.of("public");
+  private static final Key<String> REQUEST_URL = Key.get(String.class, Names.named("requestUrl"));
+  private static final int RENDER_SLICES = Runtime.getRuntime().availableProcessors();
+
+  // Roughly the size of the blip fragment's own markup.
+  private static final int BLIP_TEMPLATE_CHARS = 600;
+
+  // Largest buffers kept between renders, in chars. Pages are bounded by
+  // charsPerPage, so only renderAll() and very long blips go past these.
+  private static final int MAX_RETAINED_PAGE_CHARS = 1 << 20;
+  private static final int MAX_RETAINED_BLIP_CHARS = 64 * 1024;
+  private static final int MAX_RETAINED_AUTHOR_CHARS = 4 * 1024;
 
   private final Templates templates;
   private final boolean isReadOnly;
-  private final int charsPerPage;
   private final ContentRenderer renderer;
   private final ProfileStore profileStore;
+  private final ThreadIndexStore threadIndexes;
+  private final int parallelRenderThreshold;
+  private final boolean lazyInlineReplies;
+  private final ExecutorService renderExecutor;
+  private final PortableRequestScope requestScope;
+  private final Provider<String> requestUrl;
 
   // Ugly, but we do this to avoid polluting all the rendering methods. =(
   private final ThreadLocal<PageTracker> currentPage = new ThreadLocal<PageTracker>();
 
+  private final RenderBuffer pageBuffer = new RenderBuffer(MAX_RETAINED_PAGE_CHARS);
+  private final RenderBuffer blipBuffer = new RenderBuffer(MAX_RETAINED_BLIP_CHARS);
+  private final RenderBuffer authorBuffer = new RenderBuffer(MAX_RETAINED_AUTHOR_CHARS);
+
+  // Length of the html last rendered for each wave and page, so the next
+  // render of it starts with a big enough buffer.
+  private final ConcurrentMap<String, Integer> renderedLengths = new MapMaker()
+      .softValues()
+      .makeMap();
+
   @Inject
   public ThreadedWaveRenderer(Templates templates, Options options, ContentRenderer renderer,
-      ProfileStore profileStore) {
+      ProfileStore profileStore, ThreadIndexStore threadIndexes,
+      @Named("render") ExecutorService renderExecutor, PortableRequestScope requestScope,
+      @Named("requestUrl") Provider<String> requestUrl) {
     this.templates = templates;
     this.profileStore = profileStore;
+    this.threadIndexes = threadIndexes;
+    this.renderExecutor = renderExecutor;
+    this.requestScope = requestScope;
+    this.requestUrl = requestUrl;
     this.isReadOnly = options.readOnly();
-    this.charsPerPage = options.charsPerPage();
+    this.parallelRenderThreshold = options.enableAppengineMode()
+        ? 0
+        : options.parallelRenderThreshold();
+    this.lazyInlineReplies = options.lazyInlineReplies();
     this.renderer = renderer;
   }
 
-  private class PageTracker {
-    // Whether or not we're trying to deliver the first page.
-    private final boolean firstPage;
-    private int counter;
-    private List<Integer> markers = Lists.newArrayList();
+  private static class PageTracker {
+    // Window of blip positions (in render order) that make up this page.
+    private final int start;
+    private final int end;
+    private int position;
+
+    // Inline reply threads are rendered whole, inside the blip that holds them.
+    private int inlineDepth;
 
-    // The wavelet we're trying to render in this page.
+    // Renders inline reply threads even if they are otherwise fetched lazily.
+    private boolean eagerInlineReplies;
+
+    private final RenderMode mode;
+
+    // Blips of this page whose bodies were rendered ahead of time, by blip id.
+    private Map<String, RenderedBlip> prerendered = ImmutableMap.of();
+
+    // The wavelet we're trying to render in this page, and its thread tree.
     private final Wavelet wavelet;
+    private final ThreadIndex threadIndex;
 
     /**
      * This is an alternate output string which will wrap all html content
@@ -87,38 +152,56 @@ class ThreadedWaveRenderer implements WaveRenderer {
      */
     private final StringBuilder purgatory = new StringBuilder();
 
-    public PageTracker(int page, Wavelet wavelet) {
+    /**
+     * Tracks the blips at positions {@code start} (inclusive) to {@code end}
+     * (exclusive) in render order, see {@link #newPageTracker}.
+     */
+    public PageTracker(int start, int end, Wavelet wavelet, ThreadIndex threadIndex,
+        RenderMode mode) {
+      this.start = start;
+      this.end = end;
       this.wavelet = wavelet;
-      firstPage = (page == 0);
+      this.threadIndex = threadIndex;
+      this.mode = mode;
 
       // Start purgatory (will be ended by #render)
       purgatory.append("<div id=\"purgatory\">");
     }
 
     /**
-     * Returns true if a page boundary was crossed.
+     * Returns true if the next blip of the main conversation falls on this page.
+     */
+    public boolean onPage() {
+      return inlineDepth > 0 || position >= start;
+    }
+
+    /**
+     * Called at the end of each blip. Returns true if a page boundary was crossed.
      */
     public boolean track(StringBuilder builder) {
-      int length = builder.length();
-      if (length - counter >= charsPerPage) {
-        markers.add(length);
-        counter = length;
-
-        // If this is the first page, short circuit the rendering
-        // process so we can deliver the page faster.
-        if (firstPage) {
-          return true;
-        }
+      if (inlineDepth > 0) {
+        return false;
       }
-      return false;
+      position++;
+
+      // Everything rendered so far is structure leading up to this page.
+      if (position == start) {
+        builder.setLength(0);
+      }
+      return position == end;
     }
 
-    public boolean hasPages() {
-      return !markers.isEmpty();
+    public boolean hasMorePages() {
+      return end != Integer.MAX_VALUE;
     }
 
-    public int marker(int page) {
-      return markers.get(page);
+    /**
+     * Returns the blips of the main conversation that fall on this page.
+     */
+    public List<Blip> blipsOnPage() {
+      List<Blip> renderOrder = threadIndex.renderOrder();
+      return renderOrder.subList(Math.min(start, renderOrder.size()),
+          Math.min(end, renderOrder.size()));
     }
 
     public String purgatoryElement() {
@@ -126,8 +209,74 @@ class ThreadedWaveRenderer implements WaveRenderer {
     }
   }
 
+  /**
+   * The html of a blip body, and of the inline reply threads it put in
+   * purgatory, rendered off the request thread.
+   */
+  private static class RenderedBlip {
+    private final String html;
+    private final String purgatory;
+
+    RenderedBlip(String html, String purgatory) {
+      this.html = html;
+      this.purgatory = purgatory;
+    }
+  }
+
+  /**
+   * Renders the bodies of a contiguous run of blips on a render thread. Each
+   * slice gets its own request scope (for timers) and its own page tracker, so
+   * that inline replies land in a purgatory fragment we can stitch back in
+   * order afterwards.
+   */
+  private class RenderSlice implements Callable<Map<String, RenderedBlip>> {
+    private final List<Blip> blips;
+    private final Wavelet wavelet;
+    private final ThreadIndex threadIndex;
+    private final String url;
+
+    private final boolean eagerInlineReplies;
+    private final RenderMode mode;
+
+    RenderSlice(List<Blip> blips, Wavelet wavelet, ThreadIndex threadIndex, String url,
+        boolean eagerInlineReplies, RenderMode mode) {
+      this.blips = blips;
+      this.eagerInlineReplies = eagerInlineReplies;
+      this.mode = mode;
+      this.wavelet = wavelet;
+      this.threadIndex = threadIndex;
+      this.url = url;
+    }
+
+    @Override
+    public Map<String, RenderedBlip> call() {
+      Map<String, RenderedBlip> rendered = Maps.newHashMapWithExpectedSize(blips.size());
+      PageTracker pageTracker = new PageTracker(0, Integer.MAX_VALUE, wavelet, threadIndex,
+          mode);
+      pageTracker.eagerInlineReplies = eagerInlineReplies;
+      requestScope.enter();
+      currentPage.set(pageTracker);
+      try {
+        requestScope.seed(REQUEST_URL, url);
+        for (Blip blip : blips) {
+          int mark = pageTracker.purgatory.length();
+          String html = toHtml(blip, "", mode);
+          rendered.put(blip.getBlipId(),
+              new RenderedBlip(html, pageTracker.purgatory.substring(mark)));
+        }
+      } finally {
+        currentPage.remove();
+        requestScope.exit();
+      }
+      return rendered;
+    }
+  }
+
   /**
    * Renders an inline reply thread at the correct offset location inside a blip.
+   * With lazy inline replies, and always in compact renders, only the collapsed
+   * reply count is rendered and the client fetches the thread with
+   * {@link #renderInlineReplyThread}.
    * @param element The element representing the position of the offset inline reply
    * @param index
    * @param builder The current HTML content StringBuilder of the wave so far
@@ -144,35 +293,68 @@ class ThreadedWaveRenderer implements WaveRenderer {
       builder.append(" <span class=\"inline-reply\" ir-id=\"");
       builder.append(Markup.toDomId(inlineReplyThread.getId()));
       builder.append("\"><span class=\"count\" title=\"Click to expand inline replies\"><span class=\"count-inner\">");
-      builder.append(sizeOfThreadTree(inlineReplyThread));
+      builder.append(pageTracker.threadIndex.threadSize(inlineReplyThread));
       builder.append("</span><span class=\"pointer\"></span></span> ");
 
+      if (pageTracker.mode == RenderMode.COMPACT
+          || (lazyInlineReplies && !pageTracker.eagerInlineReplies)) {
+        builder.append("</span>"); // Close inline-reply
+        return;
+      }
+
       // Render this thread into purgatory, it will be transferred to the appropriate
       // spot by the JS code. This is needed to prevent the browser from trying
       // to pre-emptively "correct" our dom structure (and thus ruin it).
-      pageTracker.purgatory.append("<div class=\"inline-reply-content\" id=\"ir-");
-      pageTracker.purgatory.append(Markup.toDomId(inlineReplyThread.getId()));
-      pageTracker.purgatory.append("\"><div class=\"inline-reply-content-inner\">");
-      renderThreads(inlineReplyThread, pageTracker.purgatory, pageTracker);
-      pageTracker.purgatory.append("</div></div>");
+      renderInlineReplyContent(inlineReplyThread, pageTracker.purgatory, pageTracker);
 
       builder.append("</span>"); // Close inline-reply
     }
   }
 
-  // TODO(dhanji): This is expensive, see if we can precompute branch size
-  // when constructing the thread tree.
-  private static int sizeOfThreadTree(BlipThread inlineReplyThread) {
-    List<Blip> blips = inlineReplyThread.getBlips();
-    int size = blips.size();
+  private void renderInlineReplyContent(BlipThread thread, StringBuilder builder,
+      PageTracker pageTracker) {
+    builder.append("<div class=\"inline-reply-content\" id=\"ir-");
+    builder.append(Markup.toDomId(thread.getId()));
+    builder.append("\"><div class=\"inline-reply-content-inner\">");
+    pageTracker.inlineDepth++;
+    try {
+      renderThreads(thread, builder, pageTracker);
+    } finally {
+      pageTracker.inlineDepth--;
+    }
+    builder.append("</div></div>");
+  }
 
-    for (Blip blip : blips) {
-      for (BlipThread thread : blip.getReplyThreads()) {
-        size += thread.getBlipIds().size();
-      }
+  /**
+   * Renders a single inline reply thread, for the client to place when the
+   * reply count is expanded. Inline replies inside the thread are left
+   * collapsed, to be fetched in turn.
+   *
+   * @return the client action, or null if there is no such thread.
+   */
+  @Override
+  @Timed
+  public ClientAction renderInlineReplyThread(Wavelet wavelet, String threadId,
+      RenderMode mode) {
+    BlipThread thread = wavelet.getThread(threadId);
+    if (thread == null || thread.getBlipIds().isEmpty()) {
+      return null;
     }
 
-    return size;
+    Preconditions.checkState(null == currentPage.get(),
+        "A page render is already in progress (this is an algorithm bug)");
+    PageTracker pageTracker = newPageTracker(ALL_PAGES, wavelet, mode);
+    StringBuilder builder = new StringBuilder();
+    currentPage.set(pageTracker);
+    try {
+      renderInlineReplyContent(thread, builder, pageTracker);
+    } finally {
+      currentPage.remove();
+    }
+    return new ClientAction("update-inline-reply")
+        .blipId(Markup.toDomId(thread.getId()))
+        .version(wavelet.getLastModifiedTime())
+        .html(builder.toString());
   }
 
   /**
@@ -180,56 +362,179 @@ class ThreadedWaveRenderer implements WaveRenderer {
    * @param wavelet A wavelet to render as a single html blob.
    * @param page The page number to send back. Use this to implement paging,
    *     if you specify page 1, the client action will only contain the second
-   *     page as computed during the current render.
+   *     page. Page boundaries are computed once per wavelet version, so only
+   *     the blips on the requested page are rendered.
+   * @param mode How much of the wavelet to render. Compact renders have
+   *     shorter pages.
    * @return the client action.
    */
   @Override
   @Timed
-  public ClientAction render(Wavelet wavelet, int page) {
+  public ClientAction render(Wavelet wavelet, int page, RenderMode mode) {
+    return render(wavelet, page, false, mode);
+  }
+
+  @Override
+  @Timed
+  public ClientAction renderAll(Wavelet wavelet) {
+    return render(wavelet, ALL_PAGES, true, RenderMode.FULL);
+  }
+
+  private ClientAction render(Wavelet wavelet, int page, boolean eagerInlineReplies,
+      RenderMode mode) {
     Preconditions.checkState(null == currentPage.get(),
         "A page render is already in progress (this is an algorithm bug)");
-    StringBuilder builder = new StringBuilder();
     Blip rootBlip = wavelet.getRootBlip();
 
     // The pagetracker tracks every page worth of HTML rendered.
-    PageTracker pageTracker = new PageTracker(page, wavelet);
+    PageTracker pageTracker = newPageTracker(page, wavelet, mode);
+    pageTracker.eagerInlineReplies = eagerInlineReplies;
+    prerender(pageTracker);
+
+    String lengthKey = wavelet.getWaveId().serialise() + '/' + mode + '/'
+        + (eagerInlineReplies ? "all" : String.valueOf(page));
+    Integer lastLength = renderedLengths.get(lengthKey);
+    StringBuilder builder = pageBuffer.acquire(lastLength != null ? lastLength : 0);
     currentPage.set(pageTracker);
     try {
-      return renderInternal(wavelet, page, builder, rootBlip, pageTracker);
+      String html = renderInternal(wavelet, builder, rootBlip, pageTracker);
+      renderedLengths.put(lengthKey, html.length());
+      return new ClientAction("update-wave")
+          .version(wavelet.getLastModifiedTime())
+          .html(html);
     } finally {
       currentPage.remove();
+      pageBuffer.release(builder);
     }
   }
 
-  private ClientAction renderInternal(
-      Wavelet wavelet, int page, StringBuilder builder, Blip rootBlip,
-      PageTracker pageTracker) {
-    boolean stopRender = renderThreads(wavelet.getRootThread(), builder, pageTracker);
-    String html;
-    if (page != ALL_PAGES && (stopRender || pageTracker.hasPages())) {
-      if (page == 0) {
-        builder.append("<img id=\"wave-loading\" src=\"images/wave-loading.gif\">");
-        html = builder.toString();
-      } else {
-        // If this is a request for the rest of the wave, start from end of page 0 and get
-        // the rest.
-        int start = pageTracker.marker(0);
-
-        // Append purgatory--which contains all inline reply threads
+  /**
+   * Renders the blips at positions {@code start} to {@code start + count} in
+   * render order, flattened: each blip is wrapped in as many indents as its
+   * depth in the thread tree, rather than nested in its threads. The action
+   * carries the window's start and the total number of blips, so the client
+   * can lay out the blips it didn't ask for.
+   */
+  @Override
+  @Timed
+  public ClientAction renderWindow(Wavelet wavelet, int start, int count, RenderMode mode) {
+    Preconditions.checkState(null == currentPage.get(),
+        "A page render is already in progress (this is an algorithm bug)");
+    ThreadIndex threadIndex = threadIndex(wavelet, mode);
+    int total = threadIndex.size();
+    start = Math.max(0, Math.min(start, total));
+    int end = Math.min(total, start + Math.max(0, count));
+
+    PageTracker pageTracker = new PageTracker(start, end, wavelet, threadIndex, mode);
+    prerender(pageTracker);
+
+    StringBuilder builder = pageBuffer.acquire((end - start) * BLIP_TEMPLATE_CHARS);
+    currentPage.set(pageTracker);
+    try {
+      List<Blip> renderOrder = threadIndex.renderOrder();
+      for (int i = start; i < end; i++) {
+        Blip blip = renderOrder.get(i);
+        int depth = threadIndex.depthOf(blip.getBlipId());
+        for (int j = 0; j < depth; j++) {
+          builder.append("<div class=\"indent\">");
+        }
+        builder.append("<div class='blip' id='");
+        builder.append(Markup.toDomId(blip.getBlipId()));
+        builder.append("'>");
+        appendBlipBody(blip, "", builder, pageTracker);
+        builder.append("</div>");
+        for (int j = 0; j < depth; j++) {
+          builder.append("</div>");
+        }
+      }
+      if (mode != RenderMode.COMPACT) {
         builder.append(pageTracker.purgatoryElement());
-        
-        html = builder.substring(start);
       }
-    } else {
-      // Append purgatory--which contains all inline reply threads
+
+      return new ClientAction("update-wave-window")
+          .version(wavelet.getLastModifiedTime())
+          .window(start, total)
+          .html(builder.toString());
+    } finally {
+      currentPage.remove();
+      pageBuffer.release(builder);
+    }
+  }
+
+  private String renderInternal(
+      Wavelet wavelet, StringBuilder builder, Blip rootBlip, PageTracker pageTracker) {
+    renderThreads(wavelet.getRootThread(), builder, pageTracker);
+
+    // Append purgatory--which contains the inline reply threads of this page.
+    // Compact renders never put anything there.
+    if (pageTracker.mode != RenderMode.COMPACT) {
       builder.append(pageTracker.purgatoryElement());
-      
-      html = builder.toString();
     }
+    if (pageTracker.hasMorePages()) {
+      builder.append("<img id=\"wave-loading\" src=\"images/wave-loading.gif\">");
+    }
+    return builder.toString();
+  }
 
-    return new ClientAction("update-wave")
-        .version(wavelet.getLastModifiedTime())
-        .html(html);
+  private PageTracker newPageTracker(int page, Wavelet wavelet, RenderMode mode) {
+    ThreadIndex threadIndex = threadIndex(wavelet, mode);
+    if (page == ALL_PAGES) {
+      return new PageTracker(0, Integer.MAX_VALUE, wavelet, threadIndex, mode);
+    }
+    int end = (page + 1 < threadIndex.pageCount())
+        ? threadIndex.pageEnd(page)
+        : Integer.MAX_VALUE;
+    return new PageTracker(threadIndex.pageStart(page), end, wavelet, threadIndex, mode);
+  }
+
+  private ThreadIndex threadIndex(Wavelet wavelet, RenderMode mode) {
+    return mode == RenderMode.COMPACT
+        ? threadIndexes.getCompact(wavelet)
+        : threadIndexes.get(wavelet);
+  }
+
+  /**
+   * For pages with many blips, renders the blip bodies in parallel slices
+   * ahead of the (sequential) thread structure walk, which then stitches them
+   * back in thread order. Output is the same as a sequential render.
+   */
+  private void prerender(PageTracker pageTracker) {
+    List<Blip> blips = pageTracker.blipsOnPage();
+    if (parallelRenderThreshold <= 0 || blips.size() < parallelRenderThreshold) {
+      return;
+    }
+
+    // Gadgets need the request url, which is not available on other threads.
+    String url;
+    try {
+      url = requestUrl.get();
+    } catch (OutOfScopeException e) {
+      return;
+    } catch (ProvisionException e) {
+      return;
+    }
+
+    int sliceSize = (blips.size() + RENDER_SLICES - 1) / RENDER_SLICES;
+    List<Future<Map<String, RenderedBlip>>> slices = Lists.newArrayList();
+    for (int i = 0; i < blips.size(); i += sliceSize) {
+      List<Blip> slice = blips.subList(i, Math.min(i + sliceSize, blips.size()));
+      slices.add(renderExecutor.submit(
+          new RenderSlice(slice, pageTracker.wavelet, pageTracker.threadIndex, url,
+              pageTracker.eagerInlineReplies, pageTracker.mode)));
+    }
+
+    Map<String, RenderedBlip> prerendered = Maps.newHashMapWithExpectedSize(blips.size());
+    try {
+      for (Future<Map<String, RenderedBlip>> slice : slices) {
+        prerendered.putAll(slice.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+    pageTracker.prerendered = prerendered;
   }
 
   /**
@@ -244,7 +549,7 @@ class ThreadedWaveRenderer implements WaveRenderer {
     builder.append("<div class=\"thread\" id=\"");
     builder.append(Markup.toDomId(thread.getId()));
     builder.append("\">");
-    List<Blip> blipsInThread = thread.getBlips();
+    List<Blip> blipsInThread = pageTracker.threadIndex.blipsOf(thread);
 
     for (Blip blip : blipsInThread) {
       if (renderBlip(blip, builder, "", pageTracker)) {
@@ -278,7 +583,6 @@ class ThreadedWaveRenderer implements WaveRenderer {
   @Override
   @Timed
   public ClientAction renderHeader(List<ParticipantProfile> profiles) {
-    Map<String, Object> context = Maps.newHashMap();
     int max = Math.min(10, profiles.size());
 
     List<ParticipantProfile> renderedParticipants = Lists.newArrayListWithExpectedSize(max);
@@ -294,42 +598,115 @@ class ThreadedWaveRenderer implements WaveRenderer {
       renderedParticipants.add(p);
     }
 
-    context.put("participants", renderedParticipants);
+    StringBuilder html = new StringBuilder();
+    templates.render(Templates.HEADER_TEMPLATE, new HeaderFragment(renderedParticipants), html);
     return new ClientAction("update-header")
-        .html(templates.process(Templates.HEADER_TEMPLATE, context));
+        .html(html.toString());
   }
 
   @Timed
   private boolean renderBlip(Blip blip, StringBuilder builder, String title,
       PageTracker pageTracker) {
+    // Blips on earlier pages are skipped, along with their inline replies.
+    if (!pageTracker.onPage()) {
+      return pageTracker.track(builder);
+    }
+
     builder.append("<div class='blip' id='");
     builder.append(Markup.toDomId(blip.getBlipId()));
     builder.append("'>");
-    builder.append(toHtml(blip, title));
+    appendBlipBody(blip, title, builder, pageTracker);
     builder.append("</div>");
 
-    // At the end of each blip, see if we've passed a page worth of content.
+    // At the end of each blip, see if we've reached the end of the page.
     return pageTracker.track(builder);
   }
 
+  /**
+   * Appends the html of a blip body, and puts its inline replies in
+   * purgatory, unless it was rendered ahead of time.
+   */
+  private void appendBlipBody(Blip blip, String title, StringBuilder builder,
+      PageTracker pageTracker) {
+    RenderedBlip rendered = pageTracker.prerendered.get(blip.getBlipId());
+    if (rendered != null) {
+      builder.append(rendered.html);
+      pageTracker.purgatory.append(rendered.purgatory);
+    } else {
+      builder.append(toHtml(blip, title, pageTracker.mode));
+    }
+  }
+
   /**
    * Renders the content of a blip as html. If a title is specified, renders
    * that specially as the root blip.
    *
    * @param blipData The blip whose content you want to render
    * @param title    The title string if this is a root blip or null
+   * @param mode     How much of the blip to render
    * @return Rendered HTML string with markup
    */
   @Override
   @Timed
-  public String toHtml(Blip blipData, String title) {
+  public String toHtml(Blip blipData, String title, RenderMode mode) {
+    // Blips rendered on their own, as in wave updates, still need a page
+    // tracker to render their inline reply counts against.
+    Wavelet wavelet = blipData.getWavelet();
+    if (null == currentPage.get() && null != wavelet) {
+      currentPage.set(newPageTracker(ALL_PAGES, wavelet, mode));
+      try {
+        return renderBlipHtml(blipData, title, mode);
+      } finally {
+        currentPage.remove();
+      }
+    }
+    return renderBlipHtml(blipData, title, mode);
+  }
+
+  private String renderBlipHtml(Blip blipData, String title, RenderMode mode) {
     List<String> contributors = blipData.getContributors();
     List<ParticipantProfile> authors = loadProfiles(contributors);
 
-    Map<String, Object> blip = Maps.newHashMap();
-    blip.put("id", Markup.toDomId(blipData.getBlipId()));
+    StringBuilder authorString = authorBuffer.acquire(0);
+    try {
+      if (mode == RenderMode.COMPACT) {
+        return renderCompactBlipHtml(blipData, title, authors, authorString);
+      }
+      return renderBlipHtml(blipData, title, contributors, authors, authorString);
+    } finally {
+      authorBuffer.release(authorString);
+    }
+  }
 
-    StringBuilder authorString = new StringBuilder();
+  /**
+   * Renders a blip for the compact template: author names only, no avatars
+   * or toolbar.
+   */
+  private String renderCompactBlipHtml(Blip blipData, String title,
+      List<ParticipantProfile> authors, StringBuilder authorString) {
+    int numberOfAuthors = authors.size();
+    int len = Math.min(3, numberOfAuthors);
+    for (int i = 0; i < len; i++) {
+      if (i > 0) {
+        authorString.append(", ");
+      }
+      Markup.appendSanitized(authorString, Strings.nullToEmpty(authors.get(i).getName()));
+    }
+    if (numberOfAuthors > 3) {
+      authorString.append(" +").append(numberOfAuthors - 3).append(" others");
+    }
+
+    String content = renderContent(blipData, RenderMode.COMPACT);
+    BlipFragment blip = new BlipFragment(Markup.toDomId(blipData.getBlipId()), null,
+        authorString, Markup.formatDateTime(blipData.getLastModifiedTime()),
+        title != null ? Markup.sanitize(title) : null, content, true);
+
+    return renderBlipTemplate(Templates.COMPACT_BLIP_TEMPLATE, blip,
+        content.length() + authorString.length());
+  }
+
+  private String renderBlipHtml(Blip blipData, String title, List<String> contributors,
+      List<ParticipantProfile> authors, StringBuilder authorString) {
     int numberOfAuthors = authors.size();
     int len = Math.min(3, numberOfAuthors);
     for (int i = 0; i < len; i++) {
@@ -357,24 +734,29 @@ class ThreadedWaveRenderer implements WaveRenderer {
       authorString.append(numberOfAuthors);
       authorString.append(" others</div>");
       authorString.append("</div>");
-
-      blip.put("authorCountClass", "author-count-many");
-    } else {
-      blip.put("authorCountClass", "author-count-" + contributors.size());
     }
+    String authorCountClass = numberOfAuthors > 3
+        ? "author-count-many"
+        : "author-count-" + contributors.size();
 
-    blip.put("authorString", authorString.toString());
-    blip.put("time", Markup.formatDateTime(blipData.getLastModifiedTime()));
-    blip.put("title", Markup.sanitize(title));
-    blip.put("content", renderContent(blipData));
-    blip.put("readonly", isReadOnly);
+    String content = renderContent(blipData, RenderMode.FULL);
+    BlipFragment blip = new BlipFragment(Markup.toDomId(blipData.getBlipId()), authorCountClass,
+        authorString, Markup.formatDateTime(blipData.getLastModifiedTime()),
+        title != null ? Markup.sanitize(title) : null, content, isReadOnly);
 
-    return renderBlipTemplate(blip);
+    return renderBlipTemplate(Templates.BLIP_TEMPLATE, blip,
+        content.length() + authorString.length());
   }
 
   @Timed
-  String renderBlipTemplate(Map<String, Object> blip) {
-    return templates.process(Templates.BLIP_TEMPLATE, blip);
+  String renderBlipTemplate(String template, BlipFragment blip, int estimatedLength) {
+    StringBuilder out = blipBuffer.acquire(estimatedLength + BLIP_TEMPLATE_CHARS);
+    try {
+      templates.render(template, blip, out);
+      return out.toString();
+    } finally {
+      blipBuffer.release(out);
+    }
   }
 
   @Timed
@@ -395,8 +777,7 @@ class ThreadedWaveRenderer implements WaveRenderer {
         .html(templates.process(Templates.WAVE_NOT_FOUND_TEMPLATE, ImmutableMap.of()));
   }
 
-  private String renderContent(Blip blip) {
-    return renderer.renderHtml(blip.getContent(), blip.getAnnotations(), blip.getElements(),
-        blip.getContributors());
+  private String renderContent(Blip blip, RenderMode mode) {
+    return renderer.renderHtml(blip, mode);
   }
 }
@@ -52,9 +52,41 @@ public interface WaveRenderer {
    * @param page The page number to send back. Use this to implement paging,
    *     if you specify page 1, the client action will only contain the second
    *     page as computed during the current render.
+   * @param mode How much of the wavelet to render, depending on the client.
    * @return the client action.
    */
-  ClientAction render(Wavelet wavelet, int page);
+  ClientAction render(Wavelet wavelet, int page, RenderMode mode);
+
+  /**
+   * Renders a window of blips of the main conversation, by position in
+   * render order (the order of a depth-first walk of the thread tree), for
+   * clients that only show the blips in view.
+   * @param wavelet The wavelet to render from.
+   * @param start Position of the first blip to render.
+   * @param count Number of blips to render, fewer if the wave ends first.
+   * @param mode How much of the blips to render, depending on the client.
+   * @return the client action, carrying the start of the window and the total
+   *     number of blips.
+   */
+  ClientAction renderWindow(Wavelet wavelet, int start, int count, RenderMode mode);
+
+  /**
+   * Renders all pages of a wavelet with every inline reply thread included,
+   * for clients that can't fetch any more of it, like crawlers.
+   * @param wavelet A wavelet to render as a single html blob.
+   * @return the client action.
+   */
+  ClientAction renderAll(Wavelet wavelet);
+
+  /**
+   * Renders a single inline reply thread of a wavelet, for the client to show
+   * when its collapsed reply count is expanded.
+   * @param wavelet The wavelet holding the thread.
+   * @param threadId The id of the inline reply thread.
+   * @param mode How much of the thread to render, depending on the client.
+   * @return the client action, or null if there is no such thread.
+   */
+  ClientAction renderInlineReplyThread(Wavelet wavelet, String threadId, RenderMode mode);
 
   /**
    * Renders the header of a wavelet, including participants.
@@ -70,9 +102,10 @@ public interface WaveRenderer {
    *
    * @param blipData The blip whose content you want to render
    * @param title    The title string if this is a root blip or null
+   * @param mode     How much of the blip to render, depending on the client
    * @return Rendered HTML string with markup
    */
-  String toHtml(Blip blipData, String title);
+  String toHtml(Blip blipData, String title, RenderMode mode);
 
   ClientAction renderNotFound();
 }
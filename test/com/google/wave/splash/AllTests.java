@@ -16,7 +16,24 @@
  */
 package com.google.wave.splash;
 
+import com.google.wave.splash.data.ThreadIndexTest;
+import com.google.wave.splash.data.serialize.ClientActionWriterTest;
 import com.google.wave.splash.data.transform.TransformTest;
+import com.google.wave.splash.rpc.BlipEditRpcTest;
+import com.google.wave.splash.rpc.WaveletUpdateRpcTest;
+import com.google.wave.splash.text.ContentRendererTest;
+import com.google.wave.splash.text.HtmlPatchTest;
+import com.google.wave.splash.text.RenderBufferTest;
+import com.google.wave.splash.text.TimestampFormatterTest;
+import com.google.wave.splash.web.PermalinkSnapshotsTest;
+import com.google.wave.splash.web.async.AdmissionControllerTest;
+import com.google.wave.splash.web.async.EventStreamServletTest;
+import com.google.wave.splash.web.async.RpcServletTest;
+import com.google.wave.splash.web.async.WaveWatcherTest;
+import com.google.wave.splash.web.template.FragmentRendererTest;
+import com.google.wave.splash.web.template.ResourceCacheTest;
+import com.google.wave.splash.web.template.ResourceServletTest;
+import com.google.wave.splash.web.template.ThreadedWaveRendererTest;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -29,6 +46,24 @@ public class AllTests {
     TestSuite suite = new TestSuite();
 
     suite.addTestSuite(TransformTest.class);
+    suite.addTestSuite(ContentRendererTest.class);
+    suite.addTestSuite(TimestampFormatterTest.class);
+    suite.addTestSuite(FragmentRendererTest.class);
+    suite.addTestSuite(RenderBufferTest.class);
+    suite.addTestSuite(ThreadIndexTest.class);
+    suite.addTestSuite(ThreadedWaveRendererTest.class);
+    suite.addTestSuite(HtmlPatchTest.class);
+    suite.addTestSuite(PermalinkSnapshotsTest.class);
+    suite.addTestSuite(WaveWatcherTest.class);
+    suite.addTestSuite(RpcServletTest.class);
+    suite.addTestSuite(ClientActionWriterTest.class);
+    suite.addTestSuite(WaveletUpdateRpcTest.class);
+    suite.addTestSuite(BlipEditRpcTest.class);
+    suite.addTestSuite(AdmissionControllerTest.class);
+    suite.addTestSuite(EventStreamServletTest.class);
+    suite.addTestSuite(ResourceCacheTest.class);
+    suite.addTestSuite(ResourceServletTest.class);
+    suite.addTestSuite(SplashModuleTest.class);
 
     return suite;
   }
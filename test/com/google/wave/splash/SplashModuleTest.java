@@ -0,0 +1,81 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Stage;
+import com.google.wave.splash.rpc.BlipEditRpc;
+import com.google.wave.splash.web.async.RpcServlet;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that the server's bindings are complete in both deployment modes.
+ */
+public class SplashModuleTest extends TestCase {
+  private static final String CREDENTIALS = "splash.credentials.properties";
+
+  private File credentials;
+  private String oldCredentials;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    credentials = File.createTempFile("splash", ".properties");
+    Files.write("splash.oauth.key=key\nsplash.oauth.secret=secret\n", credentials,
+        Charsets.UTF_8);
+    oldCredentials = System.setProperty(CREDENTIALS, credentials.getPath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (oldCredentials != null) {
+      System.setProperty(CREDENTIALS, oldCredentials);
+    } else {
+      System.clearProperty(CREDENTIALS);
+    }
+    credentials.delete();
+    super.tearDown();
+  }
+
+  public final void testAppengineModeInjectorIsComplete() {
+    assertRpcsInjectable(true);
+  }
+
+  public final void testServerModeInjectorIsComplete() {
+    assertRpcsInjectable(false);
+  }
+
+  private static void assertRpcsInjectable(boolean appengine) {
+    Options options = mock(Options.class);
+    when(options.enableAppengineMode()).thenReturn(appengine);
+
+    // Fails to create if anything the rpcs need is not bound.
+    Injector injector = Guice.createInjector(Stage.TOOL, new SplashModule(options));
+    assertNotNull(injector.getBinding(Key.get(RpcServlet.class)));
+    assertNotNull(injector.getBinding(Key.get(BlipEditRpc.class)));
+  }
+}
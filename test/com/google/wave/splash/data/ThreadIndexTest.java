@@ -0,0 +1,183 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.data;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.wave.api.Blip;
+import com.google.wave.api.BlipThread;
+import com.google.wave.api.Wavelet;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the render order and the page breaks of {@link ThreadIndex}.
+ */
+public class ThreadIndexTest extends TestCase {
+  // Pages of two empty blips each.
+  private static final int CHARS_PER_PAGE = 2 * ThreadIndex.BLIP_OVERHEAD_CHARS;
+
+  private Map<String, Blip> blips;
+  private Map<String, BlipThread> threads;
+  private Wavelet wavelet;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    blips = Maps.newHashMap();
+    threads = Maps.newHashMap();
+    wavelet = mock(Wavelet.class);
+    when(wavelet.getBlips()).thenReturn(blips);
+    when(wavelet.getThreads()).thenReturn(threads);
+  }
+
+  public final void testRenderOrderIsDepthFirst() {
+    rootThread("b1", "b2", "b3");
+    replies("b1", thread("t1", "b1a", "b1b"));
+    replies("b1a", thread("t2", "b1a1"));
+    replies("b2", thread("t3", "b2a"));
+
+    ThreadIndex index = ThreadIndex.build(wavelet, CHARS_PER_PAGE);
+
+    assertEquals(Arrays.asList("b1", "b1a", "b1a1", "b1b", "b2", "b2a", "b3"),
+        idsOf(index.renderOrder()));
+    assertEquals(7, index.threadSize(wavelet.getRootThread()));
+    assertEquals(3, index.threadSize(threads.get("t1")));
+    assertEquals(2, index.depthOf("b1a1"));
+    assertEquals("b1a", index.parentOf("b1a1"));
+    assertNull(index.parentOf("b2"));
+    assertEquals(4, index.positionOf("b2"));
+  }
+
+  public final void testInlineRepliesAreNotInTheMainConversation() {
+    rootThread("b1", "b2");
+    thread("inline", "b1i");
+
+    ThreadIndex index = ThreadIndex.build(wavelet, CHARS_PER_PAGE);
+
+    assertEquals(Arrays.asList("b1", "b2"), idsOf(index.renderOrder()));
+    assertEquals(1, index.threadSize(threads.get("inline")));
+    assertEquals(-1, index.positionOf("b1i"));
+    assertEquals(-1, index.depthOf("b1i"));
+  }
+
+  public final void testPagesStartAfterTheBlipThatFillsThem() {
+    rootThread("b1", "b2", "b3", "b4", "b5");
+
+    ThreadIndex index = ThreadIndex.build(wavelet, CHARS_PER_PAGE);
+
+    assertEquals(3, index.pageCount());
+    assertEquals(0, index.pageStart(0));
+    assertEquals(2, index.pageStart(1));
+    assertEquals(4, index.pageStart(2));
+    assertEquals(2, index.pageEnd(0));
+  }
+
+  public final void testLongContentFillsAPageSooner() {
+    rootThread("b1", "b2", "b3");
+    when(blips.get("b1").getContent()).thenReturn(
+        new String(new char[ThreadIndex.BLIP_OVERHEAD_CHARS]));
+
+    ThreadIndex index = ThreadIndex.build(wavelet, CHARS_PER_PAGE);
+
+    assertEquals(2, index.pageCount());
+    assertEquals(1, index.pageStart(1));
+  }
+
+  public final void testLastPageRunsToTheEnd() {
+    // The last blip fills its page, but there is nothing left to break for.
+    rootThread("b1", "b2", "b3", "b4");
+
+    ThreadIndex index = ThreadIndex.build(wavelet, CHARS_PER_PAGE);
+
+    assertEquals(2, index.pageCount());
+    assertEquals(4, index.pageEnd(1));
+    assertEquals(4, index.pageStart(2));
+    assertEquals(4, index.pageStart(99));
+  }
+
+  public final void testEmptyWaveHasOneEmptyPage() {
+    ThreadIndex index = ThreadIndex.build(wavelet, CHARS_PER_PAGE);
+
+    assertEquals(0, index.size());
+    assertEquals(1, index.pageCount());
+    assertEquals(0, index.pageStart(0));
+    assertEquals(0, index.pageEnd(0));
+    assertEquals(0, index.pageStart(1));
+  }
+
+  public final void testPagesCoverEveryBlipExactlyOnce() {
+    rootThread("b1", "b2", "b3", "b4", "b5", "b6");
+    replies("b2", thread("t1", "b2a", "b2b", "b2c"));
+    replies("b2b", thread("t2", "b2b1"));
+    replies("b5", thread("t3", "b5a"));
+    when(blips.get("b2b").getContent()).thenReturn("\nA little more text than the rest");
+
+    for (int charsPerPage : new int[] {0, 1000, 2500, 3000, 100000}) {
+      ThreadIndex index = ThreadIndex.build(wavelet, charsPerPage);
+
+      List<Blip> paged = Lists.newArrayList();
+      for (int page = 0; page < index.pageCount(); page++) {
+        int start = index.pageStart(page);
+        int end = index.pageEnd(page);
+        assertTrue("Empty page " + page + " of " + charsPerPage, start < end);
+        paged.addAll(index.renderOrder().subList(start, end));
+      }
+      assertEquals(idsOf(index.renderOrder()), idsOf(paged));
+      assertEquals(blips.size(), paged.size());
+    }
+  }
+
+  private void rootThread(String... blipIds) {
+    BlipThread root = thread("root", blipIds);
+    threads.remove("root");
+    when(wavelet.getRootThread()).thenReturn(root);
+  }
+
+  private BlipThread thread(String id, String... blipIds) {
+    for (String blipId : blipIds) {
+      Blip blip = mock(Blip.class);
+      when(blip.getBlipId()).thenReturn(blipId);
+      when(blip.getContent()).thenReturn("");
+      blips.put(blipId, blip);
+    }
+    BlipThread thread = new BlipThread(id, -1, Arrays.asList(blipIds), blips);
+    threads.put(id, thread);
+    return thread;
+  }
+
+  private void replies(String blipId, BlipThread... replyThreads) {
+    when(blips.get(blipId).getReplyThreads())
+        .thenReturn(ImmutableList.<BlipThread>copyOf(replyThreads));
+  }
+
+  private static List<String> idsOf(List<Blip> blips) {
+    List<String> ids = Lists.newArrayList();
+    for (Blip blip : blips) {
+      ids.add(blip.getBlipId());
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.data.serialize;
+
+import com.google.common.collect.Lists;
+import com.google.gson.Gson;
+import com.google.wave.splash.rpc.ClientAction;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Micro-benchmark for {@link ClientActionWriter}, against the browser Gson it
+ * replaces, over the actions of a wave open of 50 blips. Run it as a main
+ * class; it warms up, then prints the average time and bytes allocated per
+ * response written.
+ */
+public class ClientActionWriterBenchmark {
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int ROUNDS = 10;
+  private static final int WRITES_PER_ROUND = 2000;
+
+  // Stands in for the response writer.
+  private static class NullWriter extends Writer {
+    @Override
+    public void write(char[] chars, int offset, int length) {
+    }
+
+    @Override
+    public void write(String value, int offset, int length) {
+    }
+
+    @Override
+    public void write(int c) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    Gson gson = new SerializeModule().provideBrowserGson();
+    ClientActionWriter actionWriter = new ClientActionWriter();
+    Writer out = new NullWriter();
+
+    // About 2k of html per blip, with some quotes and newlines to escape.
+    StringBuilder html = new StringBuilder();
+    while (html.length() < 2000) {
+      html.append("<p class=\"line\">lorem ipsum <b>dolor</b> sit amet</p>\n");
+    }
+    List<ClientAction> actions = Lists.newArrayList();
+    actions.add(new ClientAction("update-wave").waveId("example.com!w+abc").version(1234L));
+    for (int i = 0; i < 50; i++) {
+      actions.add(new ClientAction("add-blip").blipId("b+" + i).parent("b+" + (i - 1))
+          .version(1234L + i).html(html.toString()));
+    }
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+      long allocated = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < WRITES_PER_ROUND; i++) {
+        out.write(gson.toJson(actions));
+      }
+      long gsonNanos = (System.nanoTime() - start) / WRITES_PER_ROUND;
+      long gsonBytes = (threads.getThreadAllocatedBytes(thread) - allocated) / WRITES_PER_ROUND;
+
+      allocated = threads.getThreadAllocatedBytes(thread);
+      start = System.nanoTime();
+      for (int i = 0; i < WRITES_PER_ROUND; i++) {
+        actionWriter.write(actions, out);
+      }
+      long writerNanos = (System.nanoTime() - start) / WRITES_PER_ROUND;
+      long writerBytes = (threads.getThreadAllocatedBytes(thread) - allocated) / WRITES_PER_ROUND;
+      if (round >= WARMUP_ROUNDS) {
+        System.out.println("round " + (round - WARMUP_ROUNDS) + ": gson " + gsonNanos + " ns, "
+            + gsonBytes + " bytes; writer " + writerNanos + " ns, " + writerBytes + " bytes");
+      }
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.data.serialize;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.google.wave.splash.rpc.ClientAction;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Checks that {@link ClientActionWriter} writes exactly what the browser Gson
+ * used to.
+ */
+public class ClientActionWriterTest extends TestCase {
+  private final Gson gson = new SerializeModule().provideBrowserGson();
+  private final ClientActionWriter writer = new ClientActionWriter();
+
+  public final void testSameJsonAsGson() throws Exception {
+    assertSameJson(ImmutableList.<ClientAction>of());
+    assertSameJson(ImmutableList.of(
+        new ClientAction("update-wave").waveId("example.com!w+abc").version(1234567890123L),
+        new ClientAction("add-blip").blipId("b+1").parent("b+0").indent()
+            .html("<div class='blip' id=\"b+1\">a & b</div>"),
+        new ClientAction("patch-blip").blipId("b+2").base(42L, -17).html("[]"),
+        new ClientAction("update-wave-window").window(20, 300).html(null)));
+  }
+
+  public final void testEscapesLikeGson() throws Exception {
+    assertSameJson(ImmutableList.of(new ClientAction("measure")
+        .html("quote\" backslash\\ slash/ \b\t\n\f\r \u0001\u001f \u007f\u0080\u009f "
+            + "\u2028\u2029 <>&=' \u00e9\u4e2d \ud83d\ude00 end")));
+  }
+
+  private void assertSameJson(List<ClientAction> actions) throws Exception {
+    StringWriter out = new StringWriter();
+    writer.write(actions, out);
+    assertEquals(gson.toJson(actions), out.toString());
+  }
+}
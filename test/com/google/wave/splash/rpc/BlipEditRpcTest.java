@@ -0,0 +1,151 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.rpc;
+
+import com.google.common.util.concurrent.ValueFuture;
+import com.google.inject.Provider;
+import com.google.wave.api.Blip;
+import com.google.wave.api.BlipContentRefs;
+import com.google.wave.api.OperationRequest.Parameter;
+import com.google.wave.api.OperationType;
+import com.google.wave.api.Wavelet;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.PortableRequestScope;
+import com.google.wave.splash.auth.SessionContext;
+import com.google.wave.splash.data.InMemoryMemcache;
+import com.google.wave.splash.data.Memcache;
+import com.google.wave.splash.data.ThreadIndexStore;
+import com.google.wave.splash.rpc.OperationRequestClient.OperationRequestBatch;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that a client's edits to a wave within the window go out in one
+ * batch, with one edit per blip, and are acknowledged once applied.
+ */
+public class BlipEditRpcTest extends TestCase {
+  private static final WaveId WAVE_ID = new WaveId("example.com", "w+edited");
+
+  private OperationRequestClient requestClient;
+  private OperationRequestBatch batch;
+  private WaveletUpdateRpc waveletUpdateRpc;
+  private ScheduledExecutorService executor;
+  private BlipEditRpc rpc;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void setUp() throws Exception {
+    super.setUp();
+    requestClient = mock(OperationRequestClient.class);
+    batch = mock(OperationRequestBatch.class);
+    when(requestClient.newRequestBatch()).thenReturn(batch);
+    waveletUpdateRpc = mock(WaveletUpdateRpc.class);
+    executor = mock(ScheduledExecutorService.class);
+    Provider<ScheduledExecutorService> executorProvider = mock(Provider.class);
+    when(executorProvider.get()).thenReturn(executor);
+    SessionContext session = mock(SessionContext.class);
+    when(session.getSessionKey()).thenReturn("session");
+    Provider<SessionContext> sessionProvider = mock(Provider.class);
+    when(sessionProvider.get()).thenReturn(session);
+    Options options = mock(Options.class);
+    when(options.editCoalesceMillis()).thenReturn(500);
+
+    Memcache memcache = new InMemoryMemcache();
+    Wavelet wavelet = mock(Wavelet.class);
+    for (String blipId : new String[] { "b+1", "b+2" }) {
+      Blip blip = mock(Blip.class);
+      BlipContentRefs content = mock(BlipContentRefs.class);
+      when(blip.all()).thenReturn(content);
+      when(blip.getWaveletId()).thenReturn(new WaveletId("example.com", "conv+root"));
+      when(wavelet.getBlip(blipId)).thenReturn(blip);
+    }
+    memcache.store(WAVE_ID.getId(), wavelet);
+
+    rpc = new BlipEditRpc(requestClient, memcache, new ThreadIndexStore(options),
+        waveletUpdateRpc, executorProvider, new PortableRequestScope(), sessionProvider,
+        options);
+  }
+
+  public final void testEditsWithinTheWindowAreBatchedAndCoalesced() {
+    rpc.applyEdit(WAVE_ID, "b+1", "<p>one");
+    rpc.applyEdit(WAVE_ID, "b+2", "<p>other");
+    rpc.applyEdit(WAVE_ID, "b+1", "<p>two");
+    rpc.submit(WAVE_ID);
+
+    // Nothing goes out until the window is over.
+    ArgumentCaptor<Runnable> send = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).schedule(send.capture(), eq(500L), eq(TimeUnit.MILLISECONDS));
+    verify(requestClient, never()).newRequestBatch();
+
+    ValueFuture<Boolean> applied = ValueFuture.create();
+    when(batch.applyAsync()).thenReturn(applied);
+    send.getValue().run();
+    ArgumentCaptor<String> blipIds = ArgumentCaptor.forClass(String.class);
+    verify(batch, times(2)).addWaveBasedRequest(eq(OperationType.DOCUMENT_MODIFY),
+        eq(WAVE_ID.serialise()), anyString(), blipIds.capture(), (Parameter) anyObject());
+    assertEquals("b+2", blipIds.getAllValues().get(0));
+    assertEquals("b+1", blipIds.getAllValues().get(1));
+
+    // Acknowledged once the backend has them.
+    assertTrue(rpc.takeAcks(WAVE_ID).isEmpty());
+    applied.set(true);
+    List<ClientAction> acks = rpc.takeAcks(WAVE_ID);
+    assertEquals(2, acks.size());
+    assertEquals("ack-edit", acks.get(0).getAction());
+    assertEquals("b-2", acks.get(0).getBlipId());
+    assertEquals("b-1", acks.get(1).getBlipId());
+    assertTrue(rpc.takeAcks(WAVE_ID).isEmpty());
+    verify(waveletUpdateRpc).forgetRefresh(WAVE_ID);
+
+    // Later edits start another batch.
+    rpc.applyEdit(WAVE_ID, "b+1", "<p>three");
+    verify(executor, times(2)).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  public final void testFailedEditsAreToBeRetried() {
+    ValueFuture<Boolean> applied = ValueFuture.create();
+    when(batch.applyAsync()).thenReturn(applied);
+    rpc.applyEdit(WAVE_ID, "b+1", "<p>one");
+    ArgumentCaptor<Runnable> send = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).schedule(send.capture(), eq(500L), eq(TimeUnit.MILLISECONDS));
+    send.getValue().run();
+
+    applied.set(false);
+    List<ClientAction> acks = rpc.takeAcks(WAVE_ID);
+    assertEquals(1, acks.size());
+    assertEquals("retry-edit", acks.get(0).getAction());
+  }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.rpc;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Provider;
+import com.google.wave.api.Blip;
+import com.google.wave.api.ParticipantProfile;
+import com.google.wave.api.Participants;
+import com.google.wave.api.Wavelet;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.data.InMemoryMemcache;
+import com.google.wave.splash.data.Memcache;
+import com.google.wave.splash.data.ProfileStore;
+import com.google.wave.splash.data.ThreadIndexStore;
+import com.google.wave.splash.web.template.RenderMode;
+import com.google.wave.splash.web.template.WaveRenderer;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that all the viewers of a wave share its backend fetches and the
+ * rendering of its changes.
+ */
+public class WaveletUpdateRpcTest extends TestCase {
+  private static final WaveId WAVE_ID = new WaveId("example.com", "w+shared");
+  private static final WaveletId WAVELET_ID = FeedRpc.getConversationWaveletId("example.com");
+
+  private Memcache memcache;
+  private ProfileStore profileStore;
+  private WaveRenderer waveRenderer;
+  private RemoteWaveService waveService;
+  private WaveletUpdateRpc rpc;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void setUp() throws Exception {
+    super.setUp();
+    memcache = new InMemoryMemcache();
+    waveRenderer = mock(WaveRenderer.class);
+    waveService = mock(RemoteWaveService.class);
+    Provider<RemoteWaveService> waveServiceProvider = mock(Provider.class);
+    when(waveServiceProvider.get()).thenReturn(waveService);
+    Options options = mock(Options.class);
+    when(options.charsPerPage()).thenReturn(8000);
+    when(options.waveRefreshMillis()).thenReturn(60000);
+    profileStore = mock(ProfileStore.class);
+    rpc = new WaveletUpdateRpc(memcache, profileStore, waveRenderer,
+        mock(FetchProfilesRpc.class), waveServiceProvider, new ThreadIndexStore(options),
+        options);
+  }
+
+  public final void testViewersShareFetchAndChanges() {
+    memcache.store("w+shared/1", wavelet(1, null));
+    Blip blip = blip(2);
+    when(waveRenderer.toHtml(blip, null, RenderMode.COMPACT)).thenReturn("<p>Hello");
+    Wavelet latest = wavelet(2, blip);
+    when(waveService.fetchWavelet(WAVE_ID, WAVELET_ID))
+        .thenReturn(Futures.immediateFuture(latest));
+
+    List<ClientAction> first = diff(1, new BlipBases());
+    List<ClientAction> second = diff(1, new BlipBases());
+    assertEquals(2, first.size());
+    assertEquals("add-blip", first.get(0).getAction());
+    assertSame(first.get(0), second.get(0));
+    verify(waveService, times(1)).fetchWavelet(WAVE_ID, WAVELET_ID);
+    verify(waveRenderer, times(1)).toHtml(blip, null, RenderMode.COMPACT);
+
+    // Edits make the next poll go to the backend.
+    rpc.forgetRefresh(WAVE_ID);
+    diff(1, new BlipBases());
+    verify(waveService, times(2)).fetchWavelet(WAVE_ID, WAVELET_ID);
+  }
+
+  public final void testPatchesAreNotMadeAgainstAnotherWave() {
+    // Blip ids are only unique within a wave.
+    String html = Strings.repeat("<p>Hello world ", 20);
+    Blip other = blip(1);
+    Blip blip = blip(2);
+    when(waveRenderer.toHtml(other, null, RenderMode.COMPACT)).thenReturn(html);
+    when(waveRenderer.toHtml(blip, null, RenderMode.COMPACT)).thenReturn(html + "!");
+    Wavelet otherWavelet = wavelet(1, other);
+    when(otherWavelet.getWaveId()).thenReturn(new WaveId("example.com", "w+other"));
+    rpc.renderDiff(wavelet(0, null), otherWavelet, WaveletUpdateRpc.NO_HEADER,
+        new BlipBases(), RenderMode.COMPACT);
+
+    BlipBases patchable = new BlipBases();
+    patchable.put("b-1", 1);
+    ClientAction change = Lists.newArrayList(rpc.renderDiff(wavelet(0, null),
+        wavelet(2, blip), WaveletUpdateRpc.NO_HEADER, patchable, RenderMode.COMPACT)).get(0);
+    assertEquals("add-blip", change.getAction());
+    assertEquals(html + "!", change.getHtml());
+  }
+
+  public final void testSnapshotsAreOnlyCurrentWhileFresh() {
+    Wavelet cached = wavelet(1, null);
+    memcache.store("w+shared", cached);
+    assertNull(rpc.currentSnapshot(WAVE_ID));
+
+    // The backend has a newer version than we cached.
+    Wavelet latest = wavelet(2, null);
+    when(waveService.fetchWavelet(WAVE_ID, WAVELET_ID))
+        .thenReturn(Futures.immediateFuture(latest));
+    RpcUtil.getSafely(rpc.refreshWavelet(WAVE_ID, WAVELET_ID));
+    assertNull(rpc.currentSnapshot(WAVE_ID));
+
+    // Once it is cached, it is current until the next refresh is due.
+    assertEquals(2, rpc.fetchVersion(WAVE_ID, WAVELET_ID));
+    assertEquals(2, rpc.currentSnapshot(WAVE_ID).getLastModifiedTime());
+    rpc.forgetRefresh(WAVE_ID);
+    assertNull(rpc.currentSnapshot(WAVE_ID));
+  }
+
+  public final void testPatchesArePickedPerViewer() {
+    String html = Strings.repeat("<p>Hello world ", 20);
+    Blip before = blip(1);
+    Blip after = blip(2);
+    when(waveRenderer.toHtml(before, null, RenderMode.COMPACT)).thenReturn(html);
+    when(waveRenderer.toHtml(after, null, RenderMode.COMPACT)).thenReturn(html + "!");
+    memcache.store("w+shared/0", wavelet(0, null));
+    Wavelet first = wavelet(1, before);
+    Wavelet latest = wavelet(2, after);
+    when(waveService.fetchWavelet(WAVE_ID, WAVELET_ID))
+        .thenReturn(Futures.immediateFuture(first))
+        .thenReturn(Futures.immediateFuture(latest));
+    assertEquals(html, diff(0, new BlipBases()).get(0).getHtml());
+    rpc.forgetRefresh(WAVE_ID);
+
+    BlipBases patchable = new BlipBases();
+    patchable.put("b-1", 1);
+    ClientAction patch = diff(1, patchable).get(0);
+    ClientAction full = diff(1, new BlipBases()).get(0);
+    assertEquals("patch-blip", patch.getAction());
+    assertEquals(Long.valueOf(1), patch.getBaseVersion());
+    assertEquals("add-blip", full.getAction());
+    assertEquals(html + "!", full.getHtml());
+    verify(waveRenderer, times(1)).toHtml(after, null, RenderMode.COMPACT);
+  }
+
+  @SuppressWarnings("unchecked")
+  public final void testHeadersWithCollidingHashesAreNotShared() {
+    // "Aa" and "BB" have the same String hash code.
+    List<ParticipantProfile> aa = ImmutableList.of(new ParticipantProfile("Aa", null, null));
+    List<ParticipantProfile> bb = ImmutableList.of(new ParticipantProfile("BB", null, null));
+    when(profileStore.getProfiles(any(Collection.class)))
+        .thenReturn(ImmutableMap.of("a@example.com", aa.get(0)))
+        .thenReturn(ImmutableMap.of("a@example.com", bb.get(0)));
+    when(waveRenderer.renderHeader(aa)).thenReturn(new ClientAction("header").html("Aa"));
+    when(waveRenderer.renderHeader(bb)).thenReturn(new ClientAction("header").html("BB"));
+
+    Wavelet wavelet = wavelet(1, null);
+    when(wavelet.getParticipants()).thenReturn(new Participants(
+        ImmutableList.of("a@example.com"), Maps.<String, String>newHashMap(), wavelet, null));
+    ClientAction first = rpc.renderHeader(wavelet, WaveletUpdateRpc.NO_HEADER);
+    ClientAction second = rpc.renderHeader(wavelet, WaveletUpdateRpc.NO_HEADER);
+    assertEquals(first.getVersion(), second.getVersion());
+    assertEquals("Aa", first.getHtml());
+    assertEquals("BB", second.getHtml());
+  }
+
+  public final void testSharedChangesDoNotKeepSnapshotsAlive() throws Exception {
+    Blip blip = blip(2);
+    when(waveRenderer.toHtml(blip, null, RenderMode.COMPACT)).thenReturn("<p>Hello");
+    Wavelet oldWavelet = wavelet(1, null);
+    Wavelet wavelet = wavelet(2, blip);
+    List<ClientAction> changes = Lists.newArrayList(rpc.renderDiff(oldWavelet, wavelet,
+        WaveletUpdateRpc.NO_HEADER, new BlipBases(), RenderMode.COMPACT));
+    assertEquals(2, changes.size());
+
+    // Mockito holds on to the last mock used.
+    WeakReference<Wavelet> oldReference = new WeakReference<Wavelet>(oldWavelet);
+    WeakReference<Wavelet> reference = new WeakReference<Wavelet>(wavelet);
+    oldWavelet = null;
+    wavelet = null;
+    when(mock(Blip.class).getBlipId()).thenReturn("b+other");
+
+    for (int i = 0; i < 50 && (null != oldReference.get() || null != reference.get()); i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(oldReference.get());
+    assertNull(reference.get());
+
+    // The changes are still there for the next client at the old version.
+    assertSame(changes.get(0), Lists.newArrayList(rpc.renderDiff(wavelet(1, null),
+        wavelet(2, blip), WaveletUpdateRpc.NO_HEADER, new BlipBases(), RenderMode.COMPACT))
+        .get(0));
+    verify(waveRenderer, times(1)).toHtml(blip, null, RenderMode.COMPACT);
+  }
+
+  private List<ClientAction> diff(long clientVersion, BlipBases blipBases) {
+    return Lists.newArrayList(RpcUtil.getSafely(rpc.fetchDiff(WAVE_ID, WAVELET_ID,
+        clientVersion, WaveletUpdateRpc.NO_HEADER, blipBases, RenderMode.COMPACT,
+        MoreExecutors.sameThreadExecutor())));
+  }
+
+  private static Wavelet wavelet(long version, Blip rootBlip) {
+    Wavelet wavelet = mock(Wavelet.class);
+    when(wavelet.getWaveId()).thenReturn(WAVE_ID);
+    when(wavelet.getLastModifiedTime()).thenReturn(version);
+    when(wavelet.getRootBlip()).thenReturn(rootBlip);
+    return wavelet;
+  }
+
+  private static Blip blip(long version) {
+    Blip blip = mock(Blip.class);
+    when(blip.getBlipId()).thenReturn("b+1");
+    when(blip.getLastModifiedTime()).thenReturn(version);
+    return blip;
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.text;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Annotations;
+import com.google.wave.api.Blip;
+import com.google.wave.api.Element;
+import com.google.wave.api.Line;
+import com.google.wave.splash.web.template.RenderMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Micro-benchmark for {@link ContentRenderer#renderHtml}, over a blip of a few
+ * paragraphs with the kind of style annotations the editor produces. Run it
+ * as a main class; it warms up, then prints the average time per render, of
+ * the raw content and of the same blip rendered again.
+ */
+public class ContentRendererBenchmark {
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int ROUNDS = 10;
+  private static final int RENDERS_PER_ROUND = 20000;
+
+  public static void main(String[] args) {
+    // No gadgets or inline replies, so no renderers needed for those.
+    ContentRenderer renderer = new ContentRenderer(null, null);
+
+    // About 2k chars in 20 lines, some of them empty, with escapable text.
+    Random random = new Random(1);
+    StringBuilder content = new StringBuilder();
+    TreeMap<Integer, Element> elements = new TreeMap<Integer, Element>();
+    for (int line = 0; line < 20; line++) {
+      elements.put(content.length(), new Line());
+      content.append('\n');
+      if (line % 5 != 4) {
+        for (int word = 0; word < 15; word++) {
+          content.append(word % 7 == 3 ? "<b>&amp; " : "lorem ");
+        }
+      }
+    }
+
+    List<Annotation> annotationList = new ArrayList<Annotation>();
+    annotationList.add(new Annotation("conv/title", "", 0, 20));
+    String[] styles = { "style/fontWeight", "style/fontStyle", "style/backgroundColor" };
+    for (int i = 0; i < 30; i++) {
+      int start = random.nextInt(content.length() - 10);
+      annotationList.add(new Annotation(styles[i % styles.length], "value" + i,
+          start, start + 1 + random.nextInt(9)));
+    }
+    Annotations annotations = mock(Annotations.class);
+    when(annotations.asList()).thenReturn(annotationList);
+
+    String text = content.toString();
+    List<String> contributors = new ArrayList<String>();
+    Blip blip = mock(Blip.class);
+    when(blip.getContent()).thenReturn(text);
+    when(blip.getAnnotations()).thenReturn(annotations);
+    when(blip.getElements()).thenReturn(elements);
+    when(blip.getContributors()).thenReturn(contributors);
+    for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+      long start = System.nanoTime();
+      int length = 0;
+      for (int i = 0; i < RENDERS_PER_ROUND; i++) {
+        length += renderer.renderHtml(text, annotations, elements, contributors).length();
+      }
+      long contentNanos = (System.nanoTime() - start) / RENDERS_PER_ROUND;
+
+      start = System.nanoTime();
+      for (int i = 0; i < RENDERS_PER_ROUND; i++) {
+        renderer.renderHtml(blip, RenderMode.FULL);
+      }
+      long blipNanos = (System.nanoTime() - start) / RENDERS_PER_ROUND;
+      if (round >= WARMUP_ROUNDS) {
+        System.out.println("round " + (round - WARMUP_ROUNDS) + ": " + contentNanos
+            + " ns/render, " + blipNanos + " ns/blip render ("
+            + length / RENDERS_PER_ROUND + " chars)");
+      }
+    }
+  }
+}
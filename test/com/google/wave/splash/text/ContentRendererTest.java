@@ -0,0 +1,166 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.text;
+
+import com.google.wave.api.Annotation;
+import com.google.wave.api.Annotations;
+import com.google.wave.api.Blip;
+import com.google.wave.api.Element;
+import com.google.wave.api.ElementType;
+import com.google.wave.api.Gadget;
+import com.google.wave.api.Line;
+import com.google.wave.splash.web.template.RenderMode;
+import com.google.wave.splash.web.template.WaveRenderer;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Pins the html produced by {@link ContentRenderer}, quirks included.
+ */
+public class ContentRendererTest extends TestCase {
+  private ContentRenderer renderer;
+  private TreeMap<Integer, Element> elements;
+  private List<String> contributors;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    renderer = new ContentRenderer(mock(GadgetRenderer.class), mock(WaveRenderer.class));
+    elements = new TreeMap<Integer, Element>();
+    contributors = new ArrayList<String>();
+  }
+
+  public final void testEmptyParagraphsGetLineBreaks() {
+    elements.put(0, new Line());
+    elements.put(6, new Line());
+    elements.put(7, new Line());
+
+    assertEquals("<p>\nHello</p><p><br/></p><p>\nWorld",
+        renderer.renderHtml("\nHello\n\nWorld", annotations(), elements, contributors));
+  }
+
+  public final void testStylesTitleAndEscaping() {
+    elements.put(0, new Line());
+    elements.put(9, new Line());
+
+    assertEquals("<p><span style='font-weight:bold'>\n<span style='font-weight:bold'>Titl"
+        + "<span style='background-color:&lt;red&gt;'>e &amp; </p><p></span>"
+        + "&quot;more&quot;</span>\nBody&#39;s",
+        renderer.renderHtml("\nTitle & \"more\"\nBody's", annotations(
+            new Annotation("conv/title", "", 0, 16),
+            new Annotation("style/backgroundColor", "<red>", 5, 9),
+            new Annotation("style/fontWeight", "bold", 1, 5)),
+            elements, contributors));
+  }
+
+  public final void testOneAnnotationBoundaryPerIndex() {
+    elements.put(0, new Line());
+    elements.put(3, new Line());
+
+    // The italic start and the color start collide with earlier boundaries
+    // and are dropped, the bold end is emitted after the line element.
+    assertEquals("<p>\n<span style='font-weight:bold'>ab</p><p></span>\n</span>c</span>",
+        renderer.renderHtml("\nab\ncd", annotations(
+            new Annotation("style/fontWeight", "bold", 1, 3),
+            new Annotation("style/fontStyle", "italic", 1, 4),
+            new Annotation("style/color", "red", 3, 5)),
+            elements, contributors));
+  }
+
+  public final void testInlineRepliesDoNotDisturbTheirBlip() {
+    final TreeMap<Integer, Element> replyElements = new TreeMap<Integer, Element>();
+    replyElements.put(0, new Line());
+    final Annotations replyAnnotations = annotations(
+        new Annotation("style/fontStyle", "italic", 1, 3),
+        new Annotation("style/color", "red", 2, 5),
+        new Annotation("style/fontWeight", "bold", 3, 6));
+    WaveRenderer waveRenderer = mock(WaveRenderer.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        // Inline replies are rendered right into their blip.
+        StringBuilder builder = (StringBuilder) invocation.getArguments()[2];
+        builder.append("<div>")
+            .append(renderer.renderHtml("\nreply", replyAnnotations, replyElements, contributors))
+            .append("</div>");
+        return null;
+      }
+    }).when(waveRenderer).renderInlineReply(any(Element.class), anyInt(),
+        any(StringBuilder.class));
+    renderer = new ContentRenderer(mock(GadgetRenderer.class), waveRenderer);
+
+    elements.put(0, new Line());
+    elements.put(3, new Element(ElementType.INLINE_BLIP));
+    assertEquals("<p>\n<span style='font-weight:bold'>ab<div><p>\n"
+        + "<span style='font-style:italic'>r<span style='color:red'>e</span>pl</span>y</span>"
+        + "</div> <span style='font-style:italic'>c</span>d</span>",
+        renderer.renderHtml("\nab cde", annotations(
+            new Annotation("style/fontWeight", "bold", 1, 6),
+            new Annotation("style/fontStyle", "italic", 4, 5)),
+            elements, contributors));
+  }
+
+  public final void testCompactRenderHasGadgetPlaceholders() {
+    renderer = new ContentRenderer(new GadgetRenderer(null), mock(WaveRenderer.class));
+    elements.put(0, new Line());
+    elements.put(4, new Gadget("http://example.com/<gadget>.xml"));
+
+    assertEquals("<p>\nHey<div class=\"gadget-placeholder\" "
+        + "title=\"http://example.com/&lt;gadget&gt;.xml\">Gadget</div> you",
+        renderer.renderHtml("\nHey you", annotations(), elements, contributors,
+            RenderMode.COMPACT));
+  }
+
+  public final void testBlipIndexFollowsInPlaceEdits() {
+    elements.put(0, new Line());
+    Annotations annotations = annotations(new Annotation("style/fontStyle", "italic", 1, 3));
+    Blip blip = mock(Blip.class);
+    when(blip.getContent()).thenReturn("\nHello");
+    when(blip.getAnnotations()).thenReturn(annotations);
+    when(blip.getElements()).thenReturn(elements);
+    when(blip.getContributors()).thenReturn(contributors);
+
+    String html = "<p>\n<span style='font-style:italic'>He</span>llo";
+    assertEquals(html, renderer.renderHtml(blip, RenderMode.FULL));
+    assertEquals(html, renderer.renderHtml(blip, RenderMode.FULL));
+
+    // An edit replaces the content of the same blip.
+    when(blip.getContent()).thenReturn("\nHey");
+    when(annotations.asList()).thenReturn(Arrays.<Annotation>asList());
+    assertEquals("<p>\nHey", renderer.renderHtml(blip, RenderMode.FULL));
+  }
+
+  private static Annotations annotations(Annotation... annotations) {
+    Annotations result = mock(Annotations.class);
+    when(result.asList()).thenReturn(Arrays.asList(annotations));
+    return result;
+  }
+}
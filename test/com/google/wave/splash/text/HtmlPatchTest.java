@@ -0,0 +1,59 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.text;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trips html through {@link HtmlPatch}.
+ */
+public class HtmlPatchTest extends TestCase {
+
+  public final void testTypingIntoABlip() {
+    String from = "<p>\nHello world</p><p>\nmore</p>";
+    String to = "<p>\nHello there, world</p><p>\nmore</p>";
+
+    String patch = HtmlPatch.diff(from, to);
+    assertEquals("=10+7:there, =21", patch);
+    assertEquals(to, HtmlPatch.apply(from, patch));
+  }
+
+  public final void testInsertedTextLooksLikeOperations() {
+    String from = "a=1-2b";
+    String to = "a=1+3:xyz-2b-9";
+
+    assertEquals(to, HtmlPatch.apply(from, HtmlPatch.diff(from, to)));
+  }
+
+  public final void testDeleteEverything() {
+    assertEquals("-5", HtmlPatch.diff("hello", ""));
+    assertEquals("", HtmlPatch.apply("hello", "-5"));
+  }
+
+  public final void testPatchMustFitText() {
+    try {
+      HtmlPatch.apply("hi", "=3");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      HtmlPatch.apply("hello", "=2");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
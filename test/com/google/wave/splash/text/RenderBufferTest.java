@@ -0,0 +1,66 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.text;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a {@link RenderBuffer} is only ever handed to one render at a
+ * time, and is reused once that render is done with it.
+ */
+public class RenderBufferTest extends TestCase {
+  public final void testReleasedBufferIsReusedEmpty() {
+    RenderBuffer buffer = new RenderBuffer(1000);
+    StringBuilder first = buffer.acquire(10);
+    first.append("Hello");
+    buffer.release(first);
+
+    StringBuilder second = buffer.acquire(10);
+    assertSame(first, second);
+    assertEquals(0, second.length());
+  }
+
+  public final void testNestedAcquireGetsAFreshBuilder() {
+    RenderBuffer buffer = new RenderBuffer(1000);
+    StringBuilder outer = buffer.acquire(10);
+    outer.append("outer");
+
+    StringBuilder inner = buffer.acquire(10);
+    assertNotSame(outer, inner);
+    inner.append("inner");
+    buffer.release(inner);
+
+    // Releasing the nested builder leaves the outer one alone, and in use.
+    assertEquals("outer", outer.toString());
+    StringBuilder again = buffer.acquire(10);
+    assertNotSame(outer, again);
+    buffer.release(again);
+    assertEquals("outer", outer.toString());
+
+    buffer.release(outer);
+    assertSame(outer, buffer.acquire(10));
+  }
+
+  public final void testOversizedBuilderIsDropped() {
+    RenderBuffer buffer = new RenderBuffer(100);
+    StringBuilder builder = buffer.acquire(10);
+    builder.append(new char[500]);
+    buffer.release(builder);
+
+    assertNotSame(builder, buffer.acquire(10));
+  }
+}
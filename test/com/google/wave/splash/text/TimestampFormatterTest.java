@@ -0,0 +1,78 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.text;
+
+import junit.framework.TestCase;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+public class TimestampFormatterTest extends TestCase {
+  private TimestampFormatter formatter;
+  private long now;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    formatter = new TimestampFormatter();
+
+    Calendar calendar = Calendar.getInstance();
+    calendar.set(2010, Calendar.JUNE, 15, 14, 30, 0);
+    now = calendar.getTimeInMillis();
+  }
+
+  public final void testToday() {
+    long earlier = now - 2 * 60 * 60 * 1000L;
+    assertEquals(format("h:mm a", earlier), formatter.format(earlier, now));
+
+    // Same minute, served from the cache.
+    assertSame(formatter.format(earlier, now), formatter.format(earlier + 1000, now));
+  }
+
+  public final void testSameWeekdayLastWeekIsNotToday() {
+    long lastWeek = now - 7 * 24 * 60 * 60 * 1000L;
+    assertEquals(format("MMM dd", lastWeek), formatter.format(lastWeek, now));
+  }
+
+  public final void testOlderYears() {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(now);
+    calendar.add(Calendar.YEAR, -1);
+    long lastYear = calendar.getTimeInMillis();
+    assertEquals(format("MMM dd, yyyy", lastYear), formatter.format(lastYear, now));
+  }
+
+  public final void testDayChangeDropsCache() {
+    long earlier = now - 60 * 1000L;
+    String time = formatter.format(earlier, now);
+
+    long tomorrow = now + 24 * 60 * 60 * 1000L;
+    assertEquals(format("MMM dd", earlier), formatter.format(earlier, tomorrow));
+    assertFalse(time.equals(formatter.format(earlier, tomorrow)));
+  }
+
+  public final void testFormatMillis() {
+    assertEquals("2.045s", TimestampFormatter.formatMillis(2045));
+    assertEquals("0.005s", TimestampFormatter.formatMillis(60005));
+    assertEquals("12.300s", TimestampFormatter.formatMillis(12300));
+  }
+
+  private static String format(String pattern, long timestamp) {
+    return new SimpleDateFormat(pattern).format(new Date(timestamp));
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web;
+
+import com.google.common.io.Files;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.web.PermalinkSnapshots.Snapshot;
+
+import junit.framework.TestCase;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the crawler snapshot cache and its conditional GET support.
+ */
+public class PermalinkSnapshotsTest extends TestCase {
+  private static final String WAVE_ID = "example.com!w+abc";
+  private static final long VERSION = 1276000000123L;
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Files.deleteRecursively(directory);
+    super.tearDown();
+  }
+
+  public final void testSnapshotsAreKeptPerVersionAndVariant() {
+    PermalinkSnapshots snapshots = new PermalinkSnapshots(options(""));
+    snapshots.put(WAVE_ID, VERSION, "", "<html>");
+
+    assertEquals("<html>", snapshots.get(WAVE_ID, VERSION, "").getHtml());
+    assertNull(snapshots.get(WAVE_ID, VERSION + 1, ""));
+    assertNull(snapshots.get(WAVE_ID, VERSION, "bgcolor=red"));
+    assertNull(snapshots.getFromDisk(WAVE_ID, ""));
+  }
+
+  public final void testSnapshotsSurviveOnDisk() {
+    new PermalinkSnapshots(options(directory.getPath())).put(WAVE_ID, VERSION, "", "<html>\n");
+
+    Snapshot snapshot = new PermalinkSnapshots(options(directory.getPath()))
+        .getFromDisk(WAVE_ID, "");
+    assertEquals("<html>\n", snapshot.getHtml());
+    assertEquals(VERSION, snapshot.getVersion());
+  }
+
+  public final void testFilesOfOtherPagesAreNotServed() {
+    // Both wave ids map to the same file name.
+    new PermalinkSnapshots(options(directory.getPath())).put(WAVE_ID, VERSION, "", "<html>");
+    PermalinkSnapshots snapshots = new PermalinkSnapshots(options(directory.getPath()));
+    assertNull(snapshots.getFromDisk("example.com!w_abc", ""));
+    assertNotNull(snapshots.getFromDisk(WAVE_ID, ""));
+
+    // "Aa" and "BB" have the same hash code.
+    snapshots.put(WAVE_ID, VERSION, "Aa", "<html>");
+    assertNull(snapshots.getFromDisk(WAVE_ID, "BB"));
+    assertEquals("<html>", snapshots.getFromDisk(WAVE_ID, "Aa").getHtml());
+  }
+
+  public final void testConditionalGet() {
+    Snapshot snapshot = new PermalinkSnapshots(options("")).put(WAVE_ID, VERSION, "", "<html>");
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+    assertFalse(snapshot.isNotModified(request));
+
+    when(request.getHeader("If-None-Match")).thenReturn(snapshot.getEtag());
+    assertTrue(snapshot.isNotModified(request));
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\"");
+    assertFalse(snapshot.isNotModified(request));
+
+    // Http dates drop the millis.
+    when(request.getHeader("If-None-Match")).thenReturn(null);
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(VERSION / 1000 * 1000);
+    assertTrue(snapshot.isNotModified(request));
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(VERSION - 5000);
+    assertFalse(snapshot.isNotModified(request));
+  }
+
+  private static Options options(String directory) {
+    Options options = mock(Options.class);
+    when(options.crawlerSnapshotDirectory()).thenReturn(directory);
+    return options;
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Provider;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.auth.SessionContext;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that background rpcs give way to the others, that rpcs wait for
+ * room under their limits, and that sessions are held to their rate.
+ */
+public class AdmissionControllerTest extends TestCase {
+  private static final List<String> OPEN_WAVE = ImmutableList.of("open_wave");
+  private static final List<String> UPDATE_WAVE = ImmutableList.of("update_wave");
+
+  private Options options;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    options = mock(Options.class);
+  }
+
+  public final void testBackgroundRequestsAreShedFirst() {
+    when(options.rpcCapacity()).thenReturn(2);
+    when(options.backgroundRpcCapacity()).thenReturn(1);
+    AdmissionController admission = new AdmissionController(options, null);
+
+    AdmissionController.Ticket poll = admission.admit(UPDATE_WAVE, true);
+    assertNotNull(poll);
+    assertNull(admission.admit(UPDATE_WAVE, true));
+
+    // There is still room for an interactive request, and after that for none.
+    AdmissionController.Ticket open = admission.admit(OPEN_WAVE, false);
+    assertNotNull(open);
+    assertNull(admission.admit(OPEN_WAVE, false));
+
+    admission.release(poll);
+    admission.release(poll);
+    assertNull(admission.admit(UPDATE_WAVE, true));
+    admission.release(open);
+    assertNotNull(admission.admit(UPDATE_WAVE, true));
+  }
+
+  public final void testEventStreamsHaveALaneOfTheirOwn() {
+    when(options.rpcCapacity()).thenReturn(1);
+    when(options.eventStreamCapacity()).thenReturn(1);
+    AdmissionController admission = new AdmissionController(options, null);
+
+    AdmissionController.Ticket stream = admission.admitStream();
+    assertNotNull(stream);
+    assertNull(admission.admitStream());
+
+    // Open streams leave rpcs alone.
+    AdmissionController.Ticket open = admission.admit(OPEN_WAVE, false);
+    assertNotNull(open);
+
+    admission.release(stream);
+    admission.release(stream);
+    assertNotNull(admission.admitStream());
+    assertNull(admission.admitStream());
+  }
+
+  public final void testRequestsWaitForRoomUnderTheirRpcLimit() throws Exception {
+    when(options.rpcConcurrency()).thenReturn(1);
+    when(options.rpcConcurrencyLimits()).thenReturn("search:2");
+    when(options.rpcAdmissionWaitMillis()).thenReturn(5000);
+    final AdmissionController admission = new AdmissionController(options, null);
+
+    AdmissionController.Ticket open = admission.admit(OPEN_WAVE, false);
+    List<String> search = ImmutableList.of("search");
+    assertNotNull(admission.admit(search, false));
+    assertNotNull(admission.admit(search, false));
+
+    ExecutorService threads = Executors.newSingleThreadExecutor();
+    try {
+      Future<AdmissionController.Ticket> waiting = threads.submit(
+          new Callable<AdmissionController.Ticket>() {
+            @Override
+            public AdmissionController.Ticket call() {
+              return admission.admit(OPEN_WAVE, false);
+            }
+          });
+      Thread.sleep(50);
+      assertFalse(waiting.isDone());
+
+      // Polls are shed while somebody waits.
+      assertNull(admission.admit(UPDATE_WAVE, true));
+      admission.release(open);
+      assertNotNull(waiting.get());
+    } finally {
+      threads.shutdownNow();
+    }
+  }
+
+  public final void testMalformedLimitsAreSkipped() {
+    when(options.rpcConcurrency()).thenReturn(1);
+    when(options.rpcConcurrencyLimits()).thenReturn("open_wave,search:x,:3,update_wave:2");
+    AdmissionController admission = new AdmissionController(options, null);
+
+    // The good limit applies, the others fall back to the default.
+    assertNotNull(admission.admit(UPDATE_WAVE, false));
+    assertNotNull(admission.admit(UPDATE_WAVE, false));
+    assertNull(admission.admit(UPDATE_WAVE, false));
+    assertNotNull(admission.admit(OPEN_WAVE, false));
+    assertNull(admission.admit(OPEN_WAVE, false));
+  }
+
+  @SuppressWarnings("unchecked")
+  public final void testSessionsAreHeldToTheirRate() {
+    when(options.sessionRpcsPerSecond()).thenReturn(1);
+    when(options.sessionRpcBurst()).thenReturn(2);
+    SessionContext session = mock(SessionContext.class);
+    when(session.isAuthenticated()).thenReturn(true);
+    when(session.getSessionKey()).thenReturn("session");
+    Provider<SessionContext> sessionProvider = mock(Provider.class);
+    when(sessionProvider.get()).thenReturn(session);
+    AdmissionController admission = new AdmissionController(options, sessionProvider);
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    assertTrue(admission.withinRate(request));
+    assertTrue(admission.withinRate(request));
+    assertFalse(admission.withinRate(request));
+
+    // Later pages of a wave continue a request that was already charged.
+    when(request.getParameter("page")).thenReturn("1");
+    assertTrue(admission.withinRate(request));
+    when(request.getParameter("page")).thenReturn("0");
+    assertFalse(admission.withinRate(request));
+
+    // Another session has its own bucket.
+    when(session.getSessionKey()).thenReturn("other");
+    assertTrue(admission.withinRate(request));
+  }
+
+  @SuppressWarnings("unchecked")
+  public final void testAnonymousUsersAreNotThrottledByAddress() {
+    when(options.sessionRpcsPerSecond()).thenReturn(1);
+    when(options.sessionRpcBurst()).thenReturn(1);
+    SessionContext session = mock(SessionContext.class);
+    Provider<SessionContext> sessionProvider = mock(Provider.class);
+    when(sessionProvider.get()).thenReturn(session);
+    AdmissionController admission = new AdmissionController(options, sessionProvider);
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRemoteAddr()).thenReturn("10.0.0.1");
+    for (int i = 0; i < 10; i++) {
+      assertTrue(admission.withinRate(request));
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.data.serialize.ClientActionWriter;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that event streams are only opened while there is room for them.
+ */
+public class EventStreamServletTest extends TestCase {
+  private static final String WAVE_ID = "example.com!w+abc";
+
+  private WaveUpdateHandler waveUpdateHandler;
+  private AdmissionController admission;
+  private EventStreamServlet servlet;
+  private HttpServletRequest request;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Options options = mock(Options.class);
+    when(options.eventStreamCapacity()).thenReturn(1);
+    waveUpdateHandler = mock(WaveUpdateHandler.class);
+    admission = new AdmissionController(options, null);
+    servlet = new EventStreamServlet(waveUpdateHandler, mock(WaveWatcher.class),
+        mock(ClientActionWriter.class), admission, options);
+
+    request = mock(HttpServletRequest.class);
+    when(request.getParameterMap()).thenReturn(ImmutableMap.of("waveId", WAVE_ID));
+    when(request.getParameter("waveId")).thenReturn(WAVE_ID);
+  }
+
+  public final void testStreamsAreTurnedAwayWhenTheLaneIsFull() throws Exception {
+    AdmissionController.Ticket other = admission.admitStream();
+    HttpServletResponse response = mock(HttpServletResponse.class);
+
+    servlet.doGet(request, response);
+    verify(response).setHeader("Retry-After", "1");
+    verify(response).sendError(503, "Too many event streams");
+    verifyZeroInteractions(waveUpdateHandler);
+
+    admission.release(other);
+  }
+
+  public final void testClosedStreamsMakeRoom() throws Exception {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+
+    // Streams of no length close at once.
+    servlet.doGet(request, response);
+    verify(response).setContentType("text/event-stream");
+
+    AdmissionController.Ticket next = admission.admitStream();
+    assertNotNull(next);
+    admission.release(next);
+  }
+}
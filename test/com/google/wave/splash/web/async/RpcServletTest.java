@@ -0,0 +1,327 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ValueFuture;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.RequestScopeExecutor;
+import com.google.wave.splash.data.serialize.ClientActionWriter;
+import com.google.wave.splash.rpc.ClientAction;
+import com.google.wave.splash.web.stats.Timing;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that multiplexed rpcs run side by side where they may, that async
+ * rpcs continue on the request thread, and that their responses come back in
+ * the order they were called. Also checks gzipping and entity tags.
+ */
+public class RpcServletTest extends TestCase {
+  private ExecutorService threads;
+  private RequestScopeExecutor executor;
+  private Timing timing;
+  private AdmissionController admission;
+
+  // Both concurrent handlers must be running before either can finish.
+  private final CountDownLatch running = new CountDownLatch(2);
+
+  @Concurrent
+  private class ConcurrentHandler implements RpcHandler {
+    private final String name;
+
+    ConcurrentHandler(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void call(Params params, List<ClientAction> responses) {
+      running.countDown();
+      try {
+        assertTrue("handlers ran in turn", running.await(5, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      responses.add(new ClientAction(name));
+    }
+  }
+
+  private static class SerialHandler implements RpcHandler {
+    @Override
+    public void call(Params params, List<ClientAction> responses) {
+      responses.add(new ClientAction("serial"));
+    }
+  }
+
+  private static class BigHandler implements RpcHandler {
+    @Override
+    public void call(Params params, List<ClientAction> responses) {
+      StringBuilder html = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+        html.append("<p>lorem ipsum</p>");
+      }
+      responses.add(new ClientAction("big").html(html.toString()));
+    }
+  }
+
+  private static class TaggedHandler implements ConditionalRpcHandler {
+    private int calls;
+
+    @Override
+    public String currentEntityTag(Params params) {
+      return "\"v1\"";
+    }
+
+    @Override
+    public String entityTag(Params params, List<ClientAction> response) {
+      return "\"v" + calls + "\"";
+    }
+
+    @Override
+    public void call(Params params, List<ClientAction> responses) {
+      calls++;
+      responses.add(new ClientAction("tagged"));
+    }
+  }
+
+  private class BackendHandler extends AsyncRpcHandler {
+    private Thread continuedOn;
+
+    @Override
+    public ListenableFuture<List<ClientAction>> callAsync(Params params, Executor executor) {
+      // The backend answers from one of its own threads.
+      final ValueFuture<String> backend = ValueFuture.create();
+      threads.submit(new Runnable() {
+        @Override
+        public void run() {
+          backend.set("backend");
+        }
+      });
+      return Futures.compose(backend, new Function<String, List<ClientAction>>() {
+        @Override
+        public List<ClientAction> apply(String name) {
+          continuedOn = Thread.currentThread();
+          return ImmutableList.of(new ClientAction(name));
+        }
+      }, executor);
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    threads = Executors.newCachedThreadPool();
+    executor = new RequestScopeExecutor() {
+      @Override
+      public void submit(Runnable runnable) {
+        threads.submit(runnable);
+      }
+
+      @Override
+      public <T> Future<T> submit(Callable<T> task) {
+        return threads.submit(task);
+      }
+    };
+    timing = mock(Timing.class);
+    admission = new AdmissionController(mock(Options.class), null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    threads.shutdownNow();
+    super.tearDown();
+  }
+
+  public final void testConcurrentRpcsRunTogetherAndRespondInOrder() throws Exception {
+    RpcServlet servlet = new RpcServlet(ImmutableMap.<String, RpcHandler>of(
+        "first", new ConcurrentHandler("first"),
+        "second", new ConcurrentHandler("second"),
+        "serial", new SerialHandler()), new ClientActionWriter(), timing, executor, admission,
+        mock(Options.class));
+
+    String json = post(servlet, "serial,first,second");
+    int serial = json.indexOf("\"action\":\"serial\"");
+    int first = json.indexOf("\"action\":\"first\"");
+    int second = json.indexOf("\"action\":\"second\"");
+    assertTrue(json, serial >= 0 && serial < first && first < second);
+
+    // Each rpc is timed on its own.
+    verify(timing).record(eq("first"), anyLong());
+    verify(timing).record(eq("second"), anyLong());
+  }
+
+  public final void testAsyncRpcsContinueOnTheRequestThread() throws Exception {
+    Options options = mock(Options.class);
+    when(options.rpcSuspendMillis()).thenReturn(5000);
+    BackendHandler backendHandler = new BackendHandler();
+    RpcServlet servlet = new RpcServlet(ImmutableMap.<String, RpcHandler>of(
+        "backend", backendHandler,
+        "serial", new SerialHandler()), new ClientActionWriter(), timing, executor, admission,
+        options);
+
+    String json = post(servlet, "backend,serial");
+    int backend = json.indexOf("\"action\":\"backend\"");
+    int serial = json.indexOf("\"action\":\"serial\"");
+    assertTrue(json, backend >= 0 && backend < serial);
+    assertSame(Thread.currentThread(), backendHandler.continuedOn);
+    verify(timing).record(eq("backend"), anyLong());
+  }
+
+  public final void testLargeResponsesAreGzipped() throws Exception {
+    Options options = mock(Options.class);
+    when(options.rpcGzipThreshold()).thenReturn(1024);
+    RpcServlet servlet = new RpcServlet(ImmutableMap.<String, RpcHandler>of(
+        "big", new BigHandler(),
+        "serial", new SerialHandler()), new ClientActionWriter(), timing, executor, admission,
+        options);
+
+    HttpServletRequest request = request("serial");
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    assertTrue(new String(post(servlet, request, response), "UTF-8").contains("serial"));
+    verify(response, never()).setHeader("Content-Encoding", "gzip");
+
+    request = request("big");
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    response = mock(HttpServletResponse.class);
+    byte[] body = post(servlet, request, response);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    String json = gunzip(body);
+    assertTrue(json, json.startsWith("[{\"action\":\"big\",\"html\":\"<p>lorem ipsum</p>"));
+    assertTrue(body.length < json.length() / 10);
+  }
+
+  public final void testNotModifiedWhenTheClientHasTheResponse() throws Exception {
+    TaggedHandler taggedHandler = new TaggedHandler();
+    RpcServlet servlet = new RpcServlet(ImmutableMap.<String, RpcHandler>of(
+        "tagged", taggedHandler), new ClientActionWriter(), timing, executor,
+        admission, mock(Options.class));
+
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    assertTrue(new String(post(servlet, request("tagged"), response), "UTF-8")
+        .contains("tagged"));
+    verify(response).setHeader("ETag", "\"v1\"");
+
+    HttpServletRequest request = request("tagged");
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getHeader("If-None-Match")).thenReturn("\"v1\"");
+    response = mock(HttpServletResponse.class);
+    assertEquals(0, post(servlet, request, response).length);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(1, taggedHandler.calls);
+
+    // Posts always run, and are tagged by what they sent.
+    request = request("tagged");
+    when(request.getHeader("If-None-Match")).thenReturn("\"v1\"");
+    response = mock(HttpServletResponse.class);
+    assertTrue(new String(post(servlet, request, response), "UTF-8").contains("tagged"));
+    verify(response).setHeader("ETag", "\"v2\"");
+    assertEquals(2, taggedHandler.calls);
+  }
+
+  public final void testOnlyConditionalRpcsMayBeFetched() throws Exception {
+    SerialHandler serialHandler = new SerialHandler();
+    RpcServlet servlet = new RpcServlet(ImmutableMap.<String, RpcHandler>of(
+        "serial", serialHandler), new ClientActionWriter(), timing, executor,
+        admission, mock(Options.class));
+
+    HttpServletRequest request = request("serial");
+    when(request.getMethod()).thenReturn("GET");
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    assertEquals(0, post(servlet, request, response).length);
+    verify(response).sendError(eq(HttpServletResponse.SC_METHOD_NOT_ALLOWED), anyString());
+  }
+
+  public final void testBusyServerTurnsRequestsAway() throws Exception {
+    admission = mock(AdmissionController.class);
+    when(admission.withinRate(any(HttpServletRequest.class))).thenReturn(true);
+    RpcServlet servlet = new RpcServlet(ImmutableMap.<String, RpcHandler>of(
+        "serial", new SerialHandler()), new ClientActionWriter(), timing, executor, admission,
+        mock(Options.class));
+
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    assertEquals(0, post(servlet, request("serial"), response).length);
+    verify(admission).admit(ImmutableList.of("serial"), false);
+    verify(response).sendError(eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), anyString());
+    verify(response).setHeader("Retry-After", "1");
+  }
+
+  private static HttpServletRequest request(String rpcs) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter("rpc")).thenReturn(rpcs);
+    return request;
+  }
+
+  private static String post(RpcServlet servlet, String rpcs) throws Exception {
+    return new String(post(servlet, request(rpcs), mock(HttpServletResponse.class)), "UTF-8");
+  }
+
+  private static byte[] post(RpcServlet servlet, HttpServletRequest request,
+      HttpServletResponse response) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        out.write(b);
+      }
+    });
+    servlet.doPost(request, response);
+    return out.toByteArray();
+  }
+
+  private static String gunzip(byte[] body) throws Exception {
+    Reader in = new InputStreamReader(
+        new GZIPInputStream(new ByteArrayInputStream(body)), "UTF-8");
+    StringBuilder out = new StringBuilder();
+    char[] buffer = new char[4096];
+    for (int read; (read = in.read(buffer)) != -1; ) {
+      out.append(buffer, 0, read);
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.async;
+
+import com.google.inject.Provider;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.PortableRequestScope;
+import com.google.wave.splash.auth.SessionContext;
+import com.google.wave.splash.rpc.WaveletUpdateRpc;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.mortbay.util.ajax.Continuation;
+import org.waveprotocol.wave.model.id.WaveId;
+import org.waveprotocol.wave.model.id.WaveletId;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that one check per wave wakes exactly the polls it has passed.
+ */
+public class WaveWatcherTest extends TestCase {
+  private static final WaveId WAVE_ID = new WaveId("example.com", "w+watched");
+
+  private WaveletUpdateRpc waveletUpdateRpc;
+  private ScheduledExecutorService executor;
+  private WaveWatcher watcher;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void setUp() throws Exception {
+    super.setUp();
+    waveletUpdateRpc = mock(WaveletUpdateRpc.class);
+    executor = mock(ScheduledExecutorService.class);
+    Provider<SessionContext> sessionProvider = mock(Provider.class);
+    Options options = mock(Options.class);
+    when(options.longPollCheckMillis()).thenReturn(1000);
+    watcher = new WaveWatcher(waveletUpdateRpc, executor, new PortableRequestScope(),
+        sessionProvider, options);
+  }
+
+  public final void testCheckWakesPollsItHasPassed() {
+    Continuation behind = mock(Continuation.class);
+    Continuation current = mock(Continuation.class);
+    assertTrue(watcher.watch(WAVE_ID, 10, behind));
+    assertTrue(watcher.watch(WAVE_ID, 20, current));
+
+    // Only the first poll starts a check.
+    ArgumentCaptor<Runnable> check = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).execute(check.capture());
+
+    when(waveletUpdateRpc.fetchVersion(any(WaveId.class), any(WaveletId.class))).thenReturn(20L);
+    check.getValue().run();
+    verify(behind).resume();
+    verify(current, never()).resume();
+    verify(executor).schedule(check.getValue(), 1000, TimeUnit.MILLISECONDS);
+
+    // Polls behind the known version are answered without waiting.
+    assertFalse(watcher.watch(WAVE_ID, 10, mock(Continuation.class)));
+  }
+
+  public final void testWatchRetiresOnceNobodyWaits() {
+    Continuation continuation = mock(Continuation.class);
+    assertTrue(watcher.watch(WAVE_ID, 10, continuation));
+    watcher.unwatch(WAVE_ID, continuation);
+
+    ArgumentCaptor<Runnable> check = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).execute(check.capture());
+    check.getValue().run();
+    verify(waveletUpdateRpc, never()).fetchVersion(any(WaveId.class), any(WaveletId.class));
+    verify(executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+    // The next poll starts a new watch.
+    assertTrue(watcher.watch(WAVE_ID, 10, continuation));
+    verify(executor, times(2)).execute(any(Runnable.class));
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.template;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.wave.splash.text.Markup;
+import com.google.wave.api.ParticipantProfile;
+import com.google.wave.api.SearchResult.Digest;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mvel2.templates.TemplateCompiler;
+import org.mvel2.templates.TemplateRuntime;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that each compiled fragment renderer produces exactly what MVEL
+ * produces for the fragment file it replaces, so the two cannot drift apart.
+ */
+public class FragmentRendererTest extends TestCase {
+  private static final String WAR_DIR = "war/";
+
+  public final void testBlipFragment() throws IOException {
+    assertSameAsMvel(Templates.BLIP_TEMPLATE, BlipFragment.RENDERER, new BlipFragment("b-1",
+        "author-count-2", "<div class='authorbar first'>a</div>", "12:30 PM", "",
+        "<p>Hello &amp; goodbye", true));
+    assertSameAsMvel(Templates.BLIP_TEMPLATE, BlipFragment.RENDERER, new BlipFragment("b-2",
+        "author-count-many", new StringBuilder("authors"), "Jun 01", null, "", false));
+  }
+
+  public final void testCompactBlipFragment() throws IOException {
+    assertSameAsMvel(Templates.COMPACT_BLIP_TEMPLATE, BlipFragment.COMPACT_RENDERER,
+        new BlipFragment("b-1", "author-count-2", "Alice, Bob", "12:30 PM", "",
+            "<p>Hello &amp; goodbye", true));
+    assertSameAsMvel(Templates.COMPACT_BLIP_TEMPLATE, BlipFragment.COMPACT_RENDERER,
+        new BlipFragment("b-2", "author-count-many", new StringBuilder("authors"), "Jun 01",
+            null, "", false));
+  }
+
+  public final void testHeaderFragment() throws IOException {
+    List<ParticipantProfile> participants = ImmutableList.of(
+        new ParticipantProfile("Alice", "/images/a.png", "http://a"),
+        new ParticipantProfile("Bob", "/images/b.png", "http://b"),
+        new ParticipantProfile("Carol", "/images/c.png", "http://c"));
+
+    assertSameAsMvel(Templates.HEADER_TEMPLATE, HeaderFragment.RENDERER,
+        new HeaderFragment(participants));
+    assertSameAsMvel(Templates.HEADER_TEMPLATE, HeaderFragment.RENDERER,
+        new HeaderFragment(participants.subList(0, 1)));
+    assertSameAsMvel(Templates.HEADER_TEMPLATE, HeaderFragment.RENDERER,
+        new HeaderFragment(ImmutableList.<ParticipantProfile>of()));
+  }
+
+  public final void testFeedFragment() throws IOException {
+    Markup markup = mock(Markup.class);
+    when(markup.getDisplayName(anyString())).thenReturn("Alice");
+    when(markup.getImageUrl(anyString())).thenReturn("/images/a.png");
+    when(markup.sanitizeHtml(anyString())).thenAnswer(new Answer<String>() {
+      @Override
+      public String answer(InvocationOnMock invocation) {
+        return Markup.sanitize((String) invocation.getArguments()[0]);
+      }
+    });
+
+    List<Digest> feed = ImmutableList.of(
+        new Digest("A <title>", "Some \"snippet\"", "w+1",
+            ImmutableList.of("alice@example.com"), 1262304000000L, 0, 3),
+        new Digest("Another", "", "w+2",
+            ImmutableList.of("alice@example.com", "bob@example.com"), 1262304000000L, 2, 5));
+
+    FeedFragment.Renderer renderer = new FeedFragment.Renderer(markup);
+    assertSameAsMvel(Templates.FEED_TEMPLATE, renderer, new FeedFragment(feed), markup);
+    assertSameAsMvel(Templates.FEED_TEMPLATE, renderer,
+        new FeedFragment(ImmutableList.<Digest>of()), markup);
+  }
+
+  private static <T> void assertSameAsMvel(String template, FragmentRenderer<T> renderer,
+      T context) throws IOException {
+    assertSameAsMvel(template, renderer, context, null);
+  }
+
+  private static <T> void assertSameAsMvel(String template, FragmentRenderer<T> renderer,
+      T context, Markup markup) throws IOException {
+    String source = Files.toString(new File(WAR_DIR + template), Charsets.UTF_8);
+    Map<String, Object> vars = Maps.newHashMap();
+    vars.put("markup", markup);
+    String expected = TemplateRuntime.execute(
+        TemplateCompiler.compileTemplate(source), context, vars).toString();
+
+    StringBuilder out = new StringBuilder();
+    renderer.render(context, out);
+    assertEquals(expected, out.toString());
+  }
+}
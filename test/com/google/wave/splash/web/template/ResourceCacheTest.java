@@ -0,0 +1,119 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.template;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.web.template.ResourceCache.Resource;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that static resources are read once, gzipped when it pays, and read
+ * again in development mode when their file changes.
+ */
+public class ResourceCacheTest extends TestCase {
+  private static final String SCRIPT = "var x = 1;\n";
+
+  private Templates templates;
+  private Options options;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    templates = mock(Templates.class);
+    options = mock(Options.class);
+  }
+
+  public final void testResourcesAreReadOnceAndGzipped() throws Exception {
+    StringBuilder script = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      script.append(SCRIPT);
+    }
+    when(options.productionMode()).thenReturn(true);
+    when(templates.openResource("rpc.js")).thenReturn(stream(script.toString()));
+    when(templates.openResource("tiny.js")).thenReturn(stream(SCRIPT));
+    ResourceCache resources = new ResourceCache(templates, options);
+
+    Resource resource = resources.get("rpc.js");
+    assertSame(resource, resources.get("rpc.js"));
+    verify(templates).openResource("rpc.js");
+    assertEquals(script.toString(), new String(resource.getBytes(), Charsets.UTF_8));
+    assertEquals(script.toString(), new String(ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(resource.getGzipped()))), Charsets.UTF_8));
+
+    // Gzip would only make it bigger.
+    assertNull(resources.get("tiny.js").getGzipped());
+    assertNull(resources.get("missing.js"));
+  }
+
+  public final void testChangedFilesAreReadAgainInDevelopment() throws Exception {
+    when(templates.resourceLastModified("rpc.js")).thenReturn(1000L);
+    when(templates.openResource("rpc.js")).thenReturn(stream(SCRIPT), stream("var x = 2;\n"));
+    ResourceCache resources = new ResourceCache(templates, options);
+
+    Resource resource = resources.get("rpc.js");
+    assertSame(resource, resources.get("rpc.js"));
+    assertEquals(1000L, resource.getLastModified());
+
+    when(templates.resourceLastModified("rpc.js")).thenReturn(2000L);
+    Resource changed = resources.get("rpc.js");
+    verify(templates, times(2)).openResource("rpc.js");
+    assertEquals("var x = 2;\n", new String(changed.getBytes(), Charsets.UTF_8));
+    assertFalse(resource.getEtag(false).equals(changed.getEtag(false)));
+  }
+
+  public final void testConditionalGet() throws Exception {
+    when(templates.resourceLastModified("rpc.js")).thenReturn(1276000000123L);
+    when(templates.openResource("rpc.js")).thenReturn(stream(SCRIPT));
+    Resource resource = new ResourceCache(templates, options).get("rpc.js");
+
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+    assertFalse(resource.isNotModified(request, false));
+
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(1276000000000L);
+    assertTrue(resource.isNotModified(request, false));
+
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\"");
+    assertFalse(resource.isNotModified(request, false));
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + resource.getEtag(false));
+    assertTrue(resource.isNotModified(request, false));
+
+    // The tag of one representation does not validate the other.
+    assertFalse(resource.getEtag(false).equals(resource.getEtag(true)));
+    assertFalse(resource.isNotModified(request, true));
+    when(request.getHeader("If-None-Match")).thenReturn(resource.getEtag(true));
+    assertTrue(resource.isNotModified(request, true));
+    assertFalse(resource.isNotModified(request, false));
+  }
+
+  private static ByteArrayInputStream stream(String content) {
+    return new ByteArrayInputStream(content.getBytes(Charsets.UTF_8));
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.template;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.wave.splash.Options;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that plain and gzipped resources are served and revalidated each
+ * with their own entity tag.
+ */
+public class ResourceServletTest extends TestCase {
+  private static final String SCRIPT = Strings.repeat("var x = 1;\n", 100);
+
+  private ResourceServlet servlet;
+  private ResourceCache.Resource resource;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Templates templates = mock(Templates.class);
+    when(templates.openResource("rpc.js"))
+        .thenReturn(new ByteArrayInputStream(SCRIPT.getBytes(Charsets.UTF_8)));
+    Options options = mock(Options.class);
+    ResourceCache resources = new ResourceCache(templates, options);
+    servlet = new ResourceServlet(resources, options);
+    resource = resources.get("rpc.js");
+  }
+
+  public final void testGzippedAndPlainBodiesHaveTheirOwnTags() throws Exception {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    byte[] body = get(request("gzip, deflate", null), response);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("ETag", resource.getEtag(true));
+    verify(response).setHeader("Vary", "Accept-Encoding");
+    assertEquals(SCRIPT, new String(ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(body))), Charsets.UTF_8));
+
+    response = mock(HttpServletResponse.class);
+    body = get(request(null, null), response);
+    verify(response, never()).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("ETag", resource.getEtag(false));
+    assertEquals(SCRIPT, new String(body, Charsets.UTF_8));
+  }
+
+  public final void testOnlyTheServedRepresentationIsNotModified() throws Exception {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    assertEquals(0, get(request("gzip", resource.getEtag(true)), response).length);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    // A plain client revalidating with the gzipped tag must get plain bytes.
+    response = mock(HttpServletResponse.class);
+    byte[] body = get(request(null, resource.getEtag(true)), response);
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(SCRIPT, new String(body, Charsets.UTF_8));
+
+    response = mock(HttpServletResponse.class);
+    assertEquals(0, get(request(null, resource.getEtag(false)), response).length);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    // And the other way round.
+    response = mock(HttpServletResponse.class);
+    body = get(request("gzip", resource.getEtag(false)), response);
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    assertTrue(body.length > 0);
+  }
+
+  private static HttpServletRequest request(String acceptEncoding, String ifNoneMatch) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn("/js/rpc.js");
+    when(request.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+    when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+    return request;
+  }
+
+  private byte[] get(HttpServletRequest request, HttpServletResponse response)
+      throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+    });
+    servlet.doGet(request, response);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.wave.splash.web.template;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Provider;
+import com.google.wave.api.Annotations;
+import com.google.wave.api.Blip;
+import com.google.wave.api.BlipThread;
+import com.google.wave.api.Element;
+import com.google.wave.api.ElementType;
+import com.google.wave.api.Line;
+import com.google.wave.api.Wavelet;
+import com.google.wave.splash.Options;
+import com.google.wave.splash.PortableRequestScope;
+import com.google.wave.splash.data.ProfileStore;
+import com.google.wave.splash.data.ThreadIndex;
+import com.google.wave.splash.data.ThreadIndexStore;
+import com.google.wave.splash.rpc.ClientAction;
+import com.google.wave.splash.text.ContentRenderer;
+import com.google.wave.splash.text.GadgetRenderer;
+import com.google.wave.splash.text.Markup;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that the ways {@link ThreadedWaveRenderer} splits up a render, into
+ * pages, windows and parallel slices, all add up to the html of rendering the
+ * wave in one go.
+ */
+public class ThreadedWaveRendererTest extends TestCase {
+  private static final Pattern BLIP_ID = Pattern.compile("<div class='blip' id='([^']*)'>");
+  private static final String PURGATORY = "<div id=\"purgatory\">";
+
+  // Pages of two blips each.
+  private static final int CHARS_PER_PAGE = 2000;
+
+  private Map<String, Blip> blips;
+  private Map<String, BlipThread> threads;
+  private Wavelet wavelet;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newFixedThreadPool(4);
+    blips = Maps.newHashMap();
+    threads = Maps.newHashMap();
+    wavelet = mock(Wavelet.class);
+    when(wavelet.getWaveId()).thenReturn(new WaveId("example.com", "w+render"));
+    when(wavelet.getLastModifiedTime()).thenReturn(42L);
+    when(wavelet.getBlips()).thenReturn(blips);
+    when(wavelet.getThreads()).thenReturn(threads);
+    when(wavelet.getThread(anyString())).thenAnswer(new Answer<BlipThread>() {
+      @Override
+      public BlipThread answer(InvocationOnMock invocation) {
+        return threads.get(invocation.getArguments()[0]);
+      }
+    });
+
+    BlipThread root = thread("root", "b+1", "b+2", "b+3", "b+4", "b+5", "b+6");
+    when(wavelet.getRootThread()).thenReturn(root);
+    Blip rootBlip = blips.get("b+1");
+    when(wavelet.getRootBlip()).thenReturn(rootBlip);
+
+    replies("b+2", thread("t+2", "b+2a", "b+2b"));
+    replies("b+5", thread("t+5", "b+5a"));
+
+    // An inline reply with an inline reply of its own.
+    thread("ir+1", "b+ir1");
+    thread("ir+2", "b+ir2");
+    inlineReply("b+2a", "ir+1");
+    inlineReply("b+ir1", "ir+2");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public final void testPagesTogetherRenderEveryBlipOnce() {
+    ThreadedWaveRenderer renderer = newRenderer(0);
+    ThreadIndex index = ThreadIndex.build(wavelet, CHARS_PER_PAGE);
+    assertTrue(index.pageCount() > 2);
+
+    List<String> rendered = Lists.newArrayList();
+    for (int page = 0; page < index.pageCount(); page++) {
+      String html = renderer.render(wavelet, page, RenderMode.FULL).getHtml();
+      List<String> ids = blipIdsOf(mainConversationOf(html));
+      assertEquals(domIdsOf(index.renderOrder().subList(
+          index.pageStart(page), index.pageEnd(page))), ids);
+      assertEquals(page + 1 < index.pageCount(), html.contains("id=\"wave-loading\""));
+      rendered.addAll(ids);
+    }
+    assertEquals(domIdsOf(index.renderOrder()), rendered);
+    assertEquals(blipIdsOf(mainConversationOf(renderer.renderAll(wavelet).getHtml())),
+        rendered);
+  }
+
+  public final void testWindowsAreClampedToTheWave() {
+    ThreadedWaveRenderer renderer = newRenderer(0);
+    List<String> all = domIdsOf(ThreadIndex.build(wavelet, CHARS_PER_PAGE).renderOrder());
+
+    ClientAction window = renderer.renderWindow(wavelet, 2, 3, RenderMode.FULL);
+    assertEquals(2, window.getWindowStart().intValue());
+    assertEquals(all.size(), window.getWindowTotal().intValue());
+    assertEquals(all.subList(2, 5), blipIdsOf(mainConversationOf(window.getHtml())));
+
+    window = renderer.renderWindow(wavelet, -3, 2, RenderMode.FULL);
+    assertEquals(0, window.getWindowStart().intValue());
+    assertEquals(all.subList(0, 2), blipIdsOf(mainConversationOf(window.getHtml())));
+
+    window = renderer.renderWindow(wavelet, all.size() - 1, 100, RenderMode.FULL);
+    assertEquals(all.subList(all.size() - 1, all.size()),
+        blipIdsOf(mainConversationOf(window.getHtml())));
+
+    window = renderer.renderWindow(wavelet, 100, 5, RenderMode.FULL);
+    assertEquals(all.size(), window.getWindowStart().intValue());
+    assertEquals(Collections.emptyList(), blipIdsOf(mainConversationOf(window.getHtml())));
+
+    window = renderer.renderWindow(wavelet, 1, -5, RenderMode.FULL);
+    assertEquals(Collections.emptyList(), blipIdsOf(mainConversationOf(window.getHtml())));
+  }
+
+  public final void testParallelRenderMatchesSerialRender() {
+    ThreadedWaveRenderer serial = newRenderer(0);
+    ThreadedWaveRenderer parallel = newRenderer(1);
+    int pages = ThreadIndex.build(wavelet, CHARS_PER_PAGE).pageCount();
+
+    for (RenderMode mode : RenderMode.values()) {
+      for (int page = 0; page < pages; page++) {
+        assertEquals(serial.render(wavelet, page, mode).getHtml(),
+            parallel.render(wavelet, page, mode).getHtml());
+      }
+      assertEquals(serial.renderWindow(wavelet, 1, 5, mode).getHtml(),
+          parallel.renderWindow(wavelet, 1, 5, mode).getHtml());
+    }
+    assertEquals(serial.renderAll(wavelet).getHtml(), parallel.renderAll(wavelet).getHtml());
+  }
+
+  public final void testNestedRendersDoNotShareBuffers() {
+    ThreadedWaveRenderer renderer = newRenderer(0);
+    String html = renderer.renderAll(wavelet).getHtml();
+
+    // The blip holding the inline replies renders just as it does on its own,
+    // though its reply was rendered while its buffers were in use.
+    String blip = renderer.toHtml(blips.get("b+2a"), "", RenderMode.FULL);
+    assertTrue(blip.matches("(?s).*Text <span class=\"inline-reply\" ir-id=\"ir-1\">.*"
+        + "</span> of b\\+2a.*"));
+    assertTrue(html.contains("<div class='blip' id='b-2a'>" + blip + "</div>"));
+
+    String purgatory = html.substring(html.indexOf(PURGATORY));
+    assertTrue(purgatory.contains("id=\"ir-ir-1\""));
+    assertTrue(purgatory.contains("id=\"ir-ir-2\""));
+    assertEquals(Arrays.asList("b-ir1", "b-ir2"), sorted(blipIdsOf(purgatory)));
+
+    // Buffers are reused cleanly by the next render, and by a fresh renderer.
+    assertEquals(html, renderer.renderAll(wavelet).getHtml());
+    assertEquals(html, newRenderer(0).renderAll(wavelet).getHtml());
+  }
+
+  private ThreadedWaveRenderer newRenderer(int parallelRenderThreshold) {
+    Options options = mock(Options.class);
+    when(options.precompiledTemplates()).thenReturn(true);
+    when(options.readOnly()).thenReturn(true);
+    when(options.charsPerPage()).thenReturn(CHARS_PER_PAGE);
+    when(options.compactCharsPerPage()).thenReturn(CHARS_PER_PAGE);
+    when(options.parallelRenderThreshold()).thenReturn(parallelRenderThreshold);
+
+    // The content renderer calls back into the wave renderer for inline replies.
+    final ThreadedWaveRenderer[] renderer = new ThreadedWaveRenderer[1];
+    WaveRenderer waveRenderer = mock(WaveRenderer.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        Object[] args = invocation.getArguments();
+        renderer[0].renderInlineReply((Element) args[0], (Integer) args[1],
+            (StringBuilder) args[2]);
+        return null;
+      }
+    }).when(waveRenderer).renderInlineReply(any(Element.class), anyInt(),
+        any(StringBuilder.class));
+
+    Provider<String> requestUrl = new Provider<String>() {
+      @Override
+      public String get() {
+        return "http://example.com/wave";
+      }
+    };
+    renderer[0] = new ThreadedWaveRenderer(new Templates(options, mock(Markup.class), null),
+        options, new ContentRenderer(mock(GadgetRenderer.class), waveRenderer),
+        mock(ProfileStore.class), new ThreadIndexStore(options), executor,
+        new PortableRequestScope(), requestUrl);
+    return renderer[0];
+  }
+
+  private BlipThread thread(String id, String... blipIds) {
+    for (String blipId : blipIds) {
+      Blip blip = mock(Blip.class);
+      TreeMap<Integer, Element> elements = new TreeMap<Integer, Element>();
+      elements.put(0, new Line());
+      when(blip.getBlipId()).thenReturn(blipId);
+      when(blip.getContent()).thenReturn("\nText of " + blipId);
+      when(blip.getElements()).thenReturn(elements);
+      when(blip.getAnnotations()).thenReturn(new Annotations());
+      when(blip.getContributors()).thenReturn(ImmutableList.<String>of());
+      when(blip.getLastModifiedTime()).thenReturn(42L);
+      when(blip.getWavelet()).thenReturn(wavelet);
+      blips.put(blipId, blip);
+    }
+    BlipThread thread = new BlipThread(id, -1, Arrays.asList(blipIds), blips);
+    threads.put(id, thread);
+    return thread;
+  }
+
+  private void replies(String blipId, BlipThread... replyThreads) {
+    when(blips.get(blipId).getReplyThreads())
+        .thenReturn(ImmutableList.<BlipThread>copyOf(replyThreads));
+  }
+
+  private void inlineReply(String blipId, String threadId) {
+    Element inlineBlip = new Element(ElementType.INLINE_BLIP);
+    inlineBlip.setProperty("id", threadId);
+    blips.get(blipId).getElements().put(5, inlineBlip);
+  }
+
+  private static String mainConversationOf(String html) {
+    int purgatory = html.indexOf(PURGATORY);
+    return purgatory >= 0 ? html.substring(0, purgatory) : html;
+  }
+
+  private static List<String> blipIdsOf(String html) {
+    List<String> ids = Lists.newArrayList();
+    Matcher matcher = BLIP_ID.matcher(html);
+    while (matcher.find()) {
+      ids.add(matcher.group(1));
+    }
+    return ids;
+  }
+
+  private static List<String> domIdsOf(List<Blip> blips) {
+    List<String> ids = Lists.newArrayList();
+    for (Blip blip : blips) {
+      ids.add(Markup.toDomId(blip.getBlipId()));
+    }
+    return ids;
+  }
+
+  private static List<String> sorted(List<String> ids) {
+    Collections.sort(ids);
+    return ids;
+  }
+}
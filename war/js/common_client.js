@@ -114,15 +114,8 @@ function initCommon() {
   });
 
   // Listen for expansion of collapsed inline replies.
-  // TODO(dhanji): Left factor with same impl in permalink_client.js
   $('.inline-reply .count').live('click', function() {
-    var replyThreadRef = $('.content', $(this).parent());
-
-    if (replyThreadRef.is(":visible")) {
-      replyThreadRef.slideUp();
-    } else {
-      replyThreadRef.slideDown();
-    }
+    wave.Rpc.getInstance().toggleInlineReply($(this));
   });
 
   initEditor();
@@ -34,6 +34,10 @@ function warn(msg) {
 $(document).ready(function() {
   initCommon();
 
+  // Asks the server for compact renders of waves: no avatars, toolbars,
+  // gadgets or wave header, and shorter pages.
+  window.waveOptions_['client.type'] = 'mobile';
+
   // Set up the wave panel.
   var wave = $('#wave');
 
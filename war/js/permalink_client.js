@@ -78,19 +78,8 @@ $(document).ready(function() {
   });
 
   // Listen for expansion of collapsed inline replies.
-  // TODO(dhanji): Merge into a common.js (NOT common_client.js)
   $('.inline-reply .count').live('click', function() {
-    var inlineReplyId = '#ir-' + $(this).parent().attr('ir-id');
-    var countRef = $(this);
-
-    if (countRef.hasClass('expanded')) {
-      // Move this back to purgatory!
-      $(inlineReplyId).appendTo('#purgatory');
-      countRef.removeClass('expanded');
-    } else {
-      $(inlineReplyId).insertAfter(countRef);
-      countRef.addClass('expanded');
-    }
+    window.wave.Rpc.getInstance().toggleInlineReply($(this));
   });
 
   var rpc = window.wave.Rpc.getInstance();
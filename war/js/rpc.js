@@ -125,15 +125,24 @@ wave.DataView.prototype.addPendingEdits = function() {
   });
 };
 
+/**
+ * @return {boolean} True if edits were added to the client state by the
+ *     last <code>addPendingEdits</code>.
+ */
+wave.DataView.prototype.hasPendingEdits = function() {
+  return this.pendingEdits_.length > 0;
+};
+
 /**
  * Clears all the edited blips state stored in the client state, typically
  * called after this state has been synchronized with the server. Acts as
- * as complement to <code>addPendingEdits</code>.
+ * as complement to <code>addPendingEdits</code>. Edited blips are marked
+ * as saving until the server acknowledges their edit.
  */
 wave.DataView.prototype.clearPendingEdits = function() {
   var requestId = 0;
   for (var i = 0; i < this.pendingEdits_.length; i++) {
-    var dirtyRef = this.pendingEdits[i];
+    var dirtyRef = this.pendingEdits_[i];
     var blipId = dirtyRef.attr('blip_id');
     var blipRef = $('#' + blipId);
     var parentId = blipRef.data('parentId');
@@ -143,6 +152,9 @@ wave.DataView.prototype.clearPendingEdits = function() {
     delete window.waveOptions_['newblip_' + requestId + '_threadId'];
     delete window.waveOptions_['editblip_' + blipId];
     dirtyRef.removeClass('content-dirty');
+    if (!parentId) {
+      dirtyRef.addClass('content-saving');
+    }
     requestId++;
   }
   
@@ -150,6 +162,22 @@ wave.DataView.prototype.clearPendingEdits = function() {
   this.pendingEdits_.length = 0;
 };
 
+/**
+ * Settles the edit of a blip once the server has heard back from the wave
+ * backend about it. An edit that did not stick is marked dirty again, so
+ * that it goes out with the next update.
+ *
+ * @param {string} blipId The DOM id of the edited blip.
+ * @param {boolean} retry True if the edit has to be sent again.
+ */
+wave.DataView.prototype.ackEdit = function(blipId, retry) {
+  var savingRef = $('.content-saving[blip_id="' + blipId + '"]');
+  savingRef.removeClass('content-saving');
+  if (retry) {
+    savingRef.addClass('content-dirty');
+  }
+};
+
 /**
  * Updates the the time-measure field with the value from the last
  * action. For example, "Search completed in XX.Xs"
@@ -166,15 +194,19 @@ wave.DataView.prototype.measure = function(html) {
  *
  * @param {string} html A String of processed html representing the
  *     fragment of conversation to be appended.
+ * @return {boolean} True if there is more conversation to be loaded for
+ *     this wave.
  */
 wave.DataView.prototype.appendConversation = function(html) {
-  this.conversation_.append($(html));
   $('#wave-loading').remove();
+  this.conversation_.append($(html));
   $('#wave-header').show();
 
   // Set up the lightbox for any slideshows in the wave (using the jQuery
   // lightbox plugin).
   $('a.lightbox').lightBox();
+
+  return $('#wave-loading').length > 0;
 };
 
 /**
@@ -195,6 +227,19 @@ wave.DataView.prototype.insertConversation = function(html) {
   return $('#wave-loading').length > 0;
 };
 
+/**
+ * Replaces the existing wave conversation with a window of its blips, for
+ * clients that only show the blips in view.
+ *
+ * @param {string} html A string of processed html of the blips in the
+ *     window, each indented to its depth in the thread tree.
+ */
+wave.DataView.prototype.insertWaveWindow = function(html) {
+  this.conversation_.html($(html));
+
+  $('a.lightbox').lightBox();
+};
+
 /**
  * Replaces the existing wave header with a newly rendered html
  * list of participants.
@@ -221,6 +266,22 @@ wave.DataView.prototype.insertHeader = function(html) {
   }
 };
 
+/**
+ * Inserts the content of an inline reply thread after its reply count, in
+ * expanded state, replacing any content we had for it.
+ *
+ * @param {string} inlineReplyId DOM id of the inline reply thread.
+ * @param {string} html Processed html of the inline reply thread.
+ */
+wave.DataView.prototype.insertInlineReply = function(inlineReplyId, html) {
+  var countRef = $('.inline-reply[ir-id="' + inlineReplyId + '"] > .count');
+  $('#ir-' + inlineReplyId).remove();
+  $(html).insertAfter(countRef);
+  countRef.addClass('expanded');
+
+  $('a.lightbox').lightBox();
+};
+
 /**
  * Deletes the specified blip from view with an animation.
  *
@@ -357,15 +418,70 @@ wave.Rpc = function(dataView) {
    * @private
    */
   this.dataView_ = dataView;
+
+  /**
+   * The html and version of each blip last received in full, by DOM id, for
+   * applying patches to.
+   *
+   * @type {!Object.<string, !Object>}
+   * @private
+   */
+  this.blipBases_ = {};
+
+  /**
+   * True while a background update is waiting on the server for the open
+   * wave to change.
+   *
+   * @type {boolean}
+   * @private
+   */
+  this.updatePending_ = false;
+
+  /**
+   * The stream pushing updates to the open wave, if the browser supports
+   * one, and the id of the wave it was opened for.
+   *
+   * @type {EventSource}
+   * @private
+   */
+  this.eventSource_ = null;
+  this.eventSourceWaveId_ = null;
+
+  /**
+   * True once the server has turned down an update stream, after which
+   * updates are polled for instead.
+   *
+   * @type {boolean}
+   * @private
+   */
+  this.streamFailed_ = false;
+
+  /**
+   * The last response to opening each of a few recently opened waves, with
+   * its entity tag, by wave, page and client type. Opening one again sends
+   * the tag along, and a wave that has not changed since gets back 304 Not
+   * Modified, upon which the response we have is replayed.
+   *
+   * @type {!Object.<string, !Object>}
+   * @private
+   */
+  this.openedWaves_ = {};
+  this.openedWaveKeys_ = [];
+
   // Register global RPC server callbacks.
   this.callbacks_ = {
     'add-blip': this.addBlipCallback_,
+    'patch-blip': this.patchBlipCallback_,
     'update-blip': this.updateBlipCallback_,
     'delete-blip': this.deleteBlipCallback_,
     'update-feed': this.updateFeedCallback_,
     'update-wave-version': this.updateWaveVersionCallback_,
     'update-wave': this.updateWaveCallback_,
     'update-header': this.updateHeaderCallback_,
+    'update-inline-reply': this.updateInlineReplyCallback_,
+    'update-wave-window': this.updateWaveWindowCallback_,
+    'ack-edit': this.ackEditCallback_,
+    'retry-edit': this.retryEditCallback_,
     'measure': this.measureCallback_
   };
 };
@@ -395,7 +511,7 @@ wave.Rpc.getInstance = function() {
 /**
  * Default RPC endpoints requested by this edition of the client.
  * A comma-separated list of rpc names that will be executed each
- * time a short-poll request is made in the background.
+ * time a long-poll request is made in the background.
  *
  * @type {string}
  * @private
@@ -404,14 +520,32 @@ wave.Rpc.RPC_UPDATE_OPTIONS_ = 'update_wave,edit_wave';
 
 /**
  * The Ajax URL where RPCs should be sent for background batch
- * execution. This URL accepts only POST messages.
+ * execution. The server holds these until the open wave changes.
+ * This URL accepts only POST messages.
  *
  * @type {string}
  * @private
  */
-wave.Rpc.ASYNC_UPDATE_URL_ = '/async/update?rpc=' +
+wave.Rpc.ASYNC_UPDATE_URL_ = '/async/poll?rpc=' +
     wave.Rpc.RPC_UPDATE_OPTIONS_;
 
+/**
+ * The Ajax URL for sending edits immediately, while a background update
+ * is waiting.
+ *
+ * @type {string}
+ * @private
+ */
+wave.Rpc.SYNC_EDIT_URL_ = '/async/update?rpc=edit_wave';
+
+/**
+ * The Server-Sent Events URL where updates to the open wave are pushed.
+ *
+ * @type {string}
+ * @private
+ */
+wave.Rpc.EVENT_STREAM_URL_ = '/async/events';
+
 /**
  * The Ajax URL for executing searches immediately.
  *
@@ -428,6 +562,32 @@ wave.Rpc.SYNC_SEARCH_URL_ = '/async/search?rpc=search';
  */
 wave.Rpc.SYNC_WAVE_URL_ = '/async/wave?rpc=open_wave';
 
+/**
+ * The Ajax URL for fetching the content of an inline reply thread
+ * immediately.
+ *
+ * @type {string}
+ * @private
+ */
+wave.Rpc.SYNC_INLINE_REPLY_URL_ = '/async/inline?rpc=inline_reply';
+
+/**
+ * The Ajax URL for fetching a window of blips of the open wave immediately.
+ *
+ * @type {string}
+ * @private
+ */
+wave.Rpc.SYNC_WAVE_WINDOW_URL_ = '/async/window?rpc=wave_window';
+
+/**
+ * The number of recently opened waves whose responses are kept for when they
+ * are opened again.
+ *
+ * @type {number}
+ * @private
+ */
+wave.Rpc.OPENED_WAVES_KEPT_ = 10;
+
 /**
  * An internal map of RPC names to callbacks.
  *
@@ -453,22 +613,206 @@ wave.Rpc.prototype.rpcSearch = function() {
  * @export
  */
 wave.Rpc.prototype.rpcOpenWave = function() {
-  this.rpc_(wave.Rpc.SYNC_WAVE_URL_);
+  var options = window.waveOptions_;
+  this.rpc_(wave.Rpc.SYNC_WAVE_URL_, undefined,
+      [options.waveId, options.page, options['client.type']].join('/'));
+};
+
+/**
+ * Keeps the response to opening a wave, if it came with an entity tag, for
+ * when the wave is opened again.
+ *
+ * @param {string} key The wave, page and client type opened.
+ * @param {?string} etag The entity tag of the response.
+ * @param {Array.<Object>} data The response.
+ * @private
+ */
+wave.Rpc.prototype.keepOpenedWave_ = function(key, etag, data) {
+  if (!etag || !data) {
+    return;
+  }
+  if (!(key in this.openedWaves_)) {
+    this.openedWaveKeys_.push(key);
+    if (this.openedWaveKeys_.length > wave.Rpc.OPENED_WAVES_KEPT_) {
+      delete this.openedWaves_[this.openedWaveKeys_.shift()];
+    }
+  }
+  this.openedWaves_[key] = {etag: etag, data: data};
 };
 
 /**
- * Synchronizes the client state with the server via a periodic
- * short poll. This function is typically called by a timer and
- * sends a batch of RPCs including edits, new blip additions, etc.
+ * Fetches the content of an inline reply thread immediately. Responses are
+ * handled via <code>updateInlineReplyCallback</code>.
+ *
+ * @param {string} inlineReplyId DOM id of the inline reply thread.
+ * @export
+ */
+wave.Rpc.prototype.rpcInlineReply = function(inlineReplyId) {
+  window.waveOptions_.inlineReplyId = inlineReplyId;
+  this.rpc_(wave.Rpc.SYNC_INLINE_REPLY_URL_);
+  delete window.waveOptions_.inlineReplyId;
+};
+
+/**
+ * Fetches a window of blips of the open wave immediately, by position in
+ * flattened thread order. Responses are handled via
+ * <code>updateWaveWindowCallback</code>.
+ *
+ * @param {number} start Position of the first blip to fetch.
+ * @param {number} size Number of blips to fetch.
+ * @export
+ */
+wave.Rpc.prototype.rpcWaveWindow = function(start, size) {
+  window.waveOptions_.windowStart = start;
+  window.waveOptions_.windowSize = size;
+  this.rpc_(wave.Rpc.SYNC_WAVE_WINDOW_URL_);
+  delete window.waveOptions_.windowStart;
+  delete window.waveOptions_.windowSize;
+};
+
+/**
+ * Expands or collapses an inline reply thread. Threads are moved between
+ * purgatory and their spot in the blip. A thread we don't have yet is
+ * fetched, and expanded when it arrives.
+ *
+ * @param {Element} countRef The reply count element of the inline reply.
+ * @export
+ */
+wave.Rpc.prototype.toggleInlineReply = function(countRef) {
+  var inlineReplyId = countRef.parent().attr('ir-id');
+  var contentRef = $('#ir-' + inlineReplyId);
+
+  if (countRef.hasClass('expanded')) {
+    // Move this back to purgatory! Compact renders have none, so there the
+    // thread is dropped and fetched again if expanded later.
+    var purgatoryRef = $('#purgatory');
+    if (purgatoryRef.length) {
+      contentRef.appendTo(purgatoryRef);
+    } else {
+      contentRef.remove();
+    }
+    countRef.removeClass('expanded');
+  } else if (contentRef.length) {
+    contentRef.insertAfter(countRef);
+    countRef.addClass('expanded');
+  } else {
+    this.rpcInlineReply(inlineReplyId);
+  }
+};
+
+/**
+ * Synchronizes the client state with the server via a long poll,
+ * which the server answers once the open wave changes, or via a stream
+ * of updates where the browser supports one. This function is typically
+ * called by a timer and sends a batch of RPCs including edits, new blip
+ * additions, etc. While a poll is waiting or updates are streamed, only
+ * edits are sent, and right away.
  *
  * @export
  */
 wave.Rpc.prototype.rpcAsyncUpdate = function() {
+  var streaming = this.streamUpdates_();
   this.dataView_.addPendingEdits();
-  this.rpc_(wave.Rpc.ASYNC_UPDATE_URL_);
+  if (!streaming && !this.updatePending_) {
+    var self = this;
+    this.updatePending_ = true;
+    this.rpc_(wave.Rpc.ASYNC_UPDATE_URL_, function() {
+      self.updatePending_ = false;
+    });
+  } else if (this.dataView_.hasPendingEdits()) {
+    this.rpc_(wave.Rpc.SYNC_EDIT_URL_);
+  }
   this.dataView_.clearPendingEdits();
 };
 
+/**
+ * @return {boolean} True if the HTML template says the server takes event
+ *     streams. Pages without a BOOTSTRAP, such as permalinks, long poll.
+ * @private
+ */
+wave.Rpc.eventStreamsEnabled_ = function() {
+  return typeof BOOTSTRAP != 'undefined' && !!BOOTSTRAP.eventStreams;
+};
+
+/**
+ * Makes sure updates to the open wave are pushed to us, where the browser
+ * and server support it, and the server has event streams turned on. A stream for a wave that is no longer open is
+ * closed.
+ *
+ * @return {boolean} True if updates are streamed, and need not be polled
+ *     for.
+ * @private
+ */
+wave.Rpc.prototype.streamUpdates_ = function() {
+  var waveId = window.waveOptions_.waveId;
+  if (this.eventSource_ && this.eventSourceWaveId_ == waveId) {
+    return true;
+  }
+  this.closeEventStream_();
+
+  // Streams pick up from the version we have, so we need one.
+  if (!window.EventSource || !wave.Rpc.eventStreamsEnabled_() ||
+      this.streamFailed_ || !waveId ||
+      window.waveOptions_.waveVersion == null ||
+      window.waveOptions_.waveVersion == -1) {
+    return false;
+  }
+
+  var self = this;
+  var source = new window.EventSource(this.eventStreamUrl_());
+  source.onmessage = function(event) {
+    self.handleRpcResponse_($.parseJSON(event.data));
+  };
+  source.onerror = function() {
+    // Browsers reconnect by themselves, unless the server turned the
+    // stream down.
+    if (source.readyState == 2 && self.eventSource_ == source) {
+      self.streamFailed_ = true;
+      self.eventSource_ = null;
+    }
+  };
+  this.eventSource_ = source;
+  this.eventSourceWaveId_ = waveId;
+  return true;
+};
+
+/**
+ * Closes the update stream, if one is open. The next background update
+ * opens a new one.
+ *
+ * @private
+ */
+wave.Rpc.prototype.closeEventStream_ = function() {
+  if (this.eventSource_) {
+    this.eventSource_.close();
+    this.eventSource_ = null;
+  }
+};
+
+/**
+ * Builds the URL of an update stream for the open wave. Only the client
+ * state a stream starts from is sent, the server keeps it current after.
+ *
+ * @return {string} The stream URL.
+ * @private
+ */
+wave.Rpc.prototype.eventStreamUrl_ = function() {
+  var options = window.waveOptions_;
+  var params = {waveId: options.waveId, waveVersion: options.waveVersion};
+  if (options.headerVersion != null) {
+    params.headerVersion = options.headerVersion;
+  }
+  if (options['client.type']) {
+    params['client.type'] = options['client.type'];
+  }
+  for (var name in options) {
+    if (name.indexOf('resendblip_') == 0) {
+      params[name] = options[name];
+    }
+  }
+  return wave.Rpc.EVENT_STREAM_URL_ + '?' + $.param(params);
+};
+
 /**
  * Tests if the given wave id is currently open in the client.
  *
@@ -496,23 +840,81 @@ wave.Rpc.prototype.onAjaxFailure_ = function() {
 /**
  * The central RPC invoker, takes the entire state of the client and posts it
  * as name/value pairs to a given RPC endpoint. Asynchronous responses are
- * processed in <code>handleRpcResponse_</code>.
+ * processed in <code>handleRpcResponse_</code>. Requests the server turns
+ * away for being too many or too fast are sent again, with the same state,
+ * once the server's Retry-After has passed.
+ *
+ * @param {string} url  The relative URL representing an RPC endpoint.
+ * @param {function()=} opt_complete Called once the request is over,
+ *     whether it succeeded or not.
+ * @param {string=} opt_openedWave Key of the wave being opened, under which
+ *     the response is kept for when it is opened again.
+ * @private
+ */
+wave.Rpc.prototype.rpc_ = function(url, opt_complete, opt_openedWave) {
+  // Pending edits are cleared from the client state once sent, so a retry
+  // needs its own copy.
+  var data = {};
+  for (var name in window.waveOptions_) {
+    data[name] = window.waveOptions_[name];
+  }
+  this.send_(url, data, opt_complete, opt_openedWave);
+};
+
+/**
+ * Sends a request for <code>rpc_</code>, and sends it again if the server
+ * asks us to come back later.
  *
  * @param {string} url  The relative URL representing an RPC endpoint.
+ * @param {!Object} data The client state to send.
+ * @param {function()=} opt_complete Called once the request is over,
+ *     whether it succeeded or not, but not while it is waiting to be retried.
+ * @param {string=} opt_openedWave Key of the wave being opened.
  * @private
  */
-wave.Rpc.prototype.rpc_ = function(url) {
+wave.Rpc.prototype.send_ = function(url, data, opt_complete, opt_openedWave) {
   var self = this;
-  var success = function(data) {
-    self.handleRpcResponse_.call(self, data);
+  var kept = opt_openedWave ? this.openedWaves_[opt_openedWave] : null;
+  var beforeSend = function(xhr) {
+    if (kept) {
+      xhr.setRequestHeader('If-None-Match', kept.etag);
+    }
+  };
+  var success = function(response, status, xhr) {
+    if (kept && xhr && xhr.status == 304) {
+      response = kept.data;
+    } else if (opt_openedWave && xhr) {
+      self.keepOpenedWave_(opt_openedWave, xhr.getResponseHeader('ETag'), response);
+    }
+    self.handleRpcResponse_.call(self, response);
   };
+  var retrying = false;
+  var error = function(xhr) {
+    if (xhr && (xhr.status == 429 || xhr.status == 503)) {
+      retrying = true;
+      var seconds = parseInt(xhr.getResponseHeader('Retry-After'), 10);
+      window.setTimeout(function() {
+        self.send_(url, data, opt_complete, opt_openedWave);
+      }, (seconds > 0 ? seconds : 1) * 1000);
+    } else {
+      self.onAjaxFailure_();
+    }
+  };
+  var complete = function() {
+    if (!retrying && opt_complete) {
+      opt_complete();
+    }
+  };
+  // Only a GET may be answered with 304 Not Modified.
   $.ajax({
-    type: 'POST',
+    type: kept ? 'GET' : 'POST',
     url: url,
     dataType: 'json',
-    data: window.waveOptions_,
+    data: data,
+    beforeSend: beforeSend,
     success: success,
-    failure: self.onAjaxFailure_
+    error: error,
+    complete: complete
   });
 };
 
@@ -550,6 +952,29 @@ wave.Rpc.prototype.measureCallback_ = function(data) {
   this.dataView_.measure(data.html);
 };
 
+/**
+ * Marks an edit the wave backend has applied as saved.
+ *
+ * @param {!Object} data A client action carrying the DOM id of the edited
+ *     blip.
+ * @private
+ */
+wave.Rpc.prototype.ackEditCallback_ = function(data) {
+  this.dataView_.ackEdit(data.blipId, false);
+};
+
+/**
+ * Marks an edit the wave backend failed to apply as dirty again, to be sent
+ * with the next update.
+ *
+ * @param {!Object} data A client action carrying the DOM id of the edited
+ *     blip.
+ * @private
+ */
+wave.Rpc.prototype.retryEditCallback_ = function(data) {
+  this.dataView_.ackEdit(data.blipId, true);
+};
+
 /**
  * Updates the wave version that the client thinks it has. This is generally
  * done when we have the streaming blip updates set, so we know to request a
@@ -572,8 +997,8 @@ wave.Rpc.prototype.updateWaveVersionCallback_ = function(data) {
  * Updates the wave window with an entire pre-rendered wave. Used for
  * entire wave open, rather than incremental updates/adds of blips.
  * This function actually pages in the wave, by loading an initial fragment
- * and then if necessary issuing an immediate background request for the rest
- * of the conversation.
+ * and then if necessary issuing an immediate background request for each
+ * following page of the conversation.
  *
  * @param {!Object} data A client action containing the rendered html
  *    of the currently open wave conversation.
@@ -587,16 +1012,17 @@ wave.Rpc.prototype.updateWaveCallback_ = function(data) {
   // Store the version we just fetched.
   window.waveOptions_.waveVersion = data.version;
 
+  var hasMore;
   if (window.waveOptions_.page > 0) {
-    this.dataView_.appendConversation(data.html);
+    hasMore = this.dataView_.appendConversation(data.html);
   } else {
-    var hasMore = this.dataView_.insertConversation(data.html);
-    if (hasMore) {
-      // Advance the page and call wave open again (any page > 0 is the
-      // rest of the conversation).
-      window.waveOptions_.page = 1;
-      this.rpcOpenWave();
-    }
+    this.forgetBlips_();
+    hasMore = this.dataView_.insertConversation(data.html);
+  }
+  if (hasMore) {
+    // Advance the page and call wave open again for the next one.
+    window.waveOptions_.page += 1;
+    this.rpcOpenWave();
   }
 
   // Callback various event handlers to say the wave is ready.
@@ -613,7 +1039,7 @@ wave.Rpc.prototype.updateWaveCallback_ = function(data) {
  * Replaces any existing content in the header.
  *
  * @param {!Object} data A client action object containing the processed html
- *     with participants and avatars.
+ *     with participants and avatars, and the header version.
  * @private
  */
 wave.Rpc.prototype.updateHeaderCallback_ = function(data) {
@@ -621,9 +1047,51 @@ wave.Rpc.prototype.updateHeaderCallback_ = function(data) {
     return;
   }
 
+  // Sent back with updates, so the server only resends the header on change.
+  window.waveOptions_.headerVersion = data.version;
   this.dataView_.insertHeader(data.html);
 };
 
+/**
+ * Places the content of an inline reply thread that was fetched on
+ * expansion, and expands it.
+ *
+ * @param {!Object} data A client action object containing the DOM id of the
+ *     inline reply thread and its processed html.
+ * @private
+ */
+wave.Rpc.prototype.updateInlineReplyCallback_ = function(data) {
+  if (!this.isCurrentWave_(data.waveId)) {
+    return;
+  }
+
+  this.dataView_.insertInlineReply(data.blipId, data.html);
+};
+
+/**
+ * Shows a window of blips of the open wave in place of the conversation,
+ * and tells the UI which blips of the whole wave it holds, so it can lay out
+ * room for the rest.
+ *
+ * @param {!Object} data A client action object containing the processed html
+ *     of the window, the position of its first blip and the total number of
+ *     blips in the wave.
+ * @private
+ */
+wave.Rpc.prototype.updateWaveWindowCallback_ = function(data) {
+  if (!this.isCurrentWave_(data.waveId)) {
+    return;
+  }
+
+  window.waveOptions_.waveVersion = data.version;
+  this.forgetBlips_();
+  this.dataView_.insertWaveWindow(data.html);
+
+  if (wave.uiCallbacks_.waveWindowOpened) {
+    wave.uiCallbacks_.waveWindowOpened(data.windowStart, data.windowTotal);
+  }
+};
+
 /**
  * Updates the feed column with newer digest items, inserts
  * them directly into the feed. Appends these items to the feed
@@ -654,6 +1122,7 @@ wave.Rpc.prototype.deleteBlipCallback_ = function(data) {
     return;
   }
 
+  this.forgetBlip_(data.blipId.substring(1));
   this.dataView_.deleteBlip(data.blipId);
 };
 
@@ -667,6 +1136,8 @@ wave.Rpc.prototype.deleteBlipCallback_ = function(data) {
  * @private
  */
 wave.Rpc.prototype.addBlipCallback_ = function(data) {
+  this.rememberBlip_(data);
+
   // Kill the loading indicator if it's on.
   if ($('#loading').length > 0) {
     $('#loading').hide();
@@ -706,3 +1177,129 @@ wave.Rpc.prototype.updateBlipCallback_ = function(data) {
   // Remember this version so we ignore redundant updates.
   blip.data('version', data.version);
 };
+
+/**
+ * Applies a patch to the html of a blip we received earlier, then adds or
+ * updates the blip as if its full html had been sent. If we no longer have
+ * the html the patch was made against, asks the server to resend the blip in
+ * full with the next update instead.
+ *
+ * @param {!Object} data A client action object containing the blip id, the
+ *     patch in place of html, and the version and hash of the html the patch
+ *     applies to.
+ * @private
+ */
+wave.Rpc.prototype.patchBlipCallback_ = function(data) {
+  var base = this.blipBases_[data.blipId];
+  if (!base || base.version != data.baseVersion ||
+      wave.Rpc.hashCode_(base.html) != data.baseHash) {
+    this.forgetBlip_(data.blipId);
+    window.waveOptions_['resendblip_' + data.blipId] = 1;
+
+    // A stream can't be told, so open another that asks for the blip.
+    this.closeEventStream_();
+    return;
+  }
+
+  data.html = wave.Rpc.applyPatch_(base.html, data.html);
+  this.addBlipCallback_(data);
+};
+
+/**
+ * Keeps the full html of a blip, so that later versions can be sent to us as
+ * patches against it, and tells the server which version we have.
+ *
+ * @param {!Object} data An add-blip client action.
+ * @private
+ */
+wave.Rpc.prototype.rememberBlip_ = function(data) {
+  var base = this.blipBases_[data.blipId];
+  if (base && base.version >= data.version) {
+    return;
+  }
+
+  this.blipBases_[data.blipId] = {version: data.version, html: data.html};
+  window.waveOptions_['patchbase_' + data.blipId] = data.version;
+  delete window.waveOptions_['resendblip_' + data.blipId];
+};
+
+/**
+ * Drops the html kept for a blip, see <code>rememberBlip_</code>.
+ *
+ * @param {string} blipId DOM id of the blip.
+ * @private
+ */
+wave.Rpc.prototype.forgetBlip_ = function(blipId) {
+  delete this.blipBases_[blipId];
+  delete window.waveOptions_['patchbase_' + blipId];
+};
+
+/**
+ * Drops the html kept for all blips, typically when a wave is (re)opened.
+ *
+ * @private
+ */
+wave.Rpc.prototype.forgetBlips_ = function() {
+  for (var blipId in this.blipBases_) {
+    this.forgetBlip_(blipId);
+  }
+  for (var name in window.waveOptions_) {
+    if (name.indexOf('resendblip_') == 0) {
+      delete window.waveOptions_[name];
+    }
+  }
+};
+
+/**
+ * Applies a patch made by the server's <code>HtmlPatch</code>, a run of
+ * operations each made of a single character and a length: '=n' keeps the
+ * next n characters, '-n' drops them and '+n:' inserts the n characters that
+ * follow.
+ *
+ * @param {string} text The text the patch was made against.
+ * @param {string} patch The patch.
+ * @return {string} The patched text.
+ * @private
+ */
+wave.Rpc.applyPatch_ = function(text, patch) {
+  var result = [];
+  var cursor = 0;
+  var i = 0;
+  while (i < patch.length) {
+    var op = patch.charAt(i++);
+    var start = i;
+    while (i < patch.length && patch.charAt(i) >= '0' && patch.charAt(i) <= '9') {
+      i++;
+    }
+    var length = parseInt(patch.substring(start, i), 10);
+
+    if (op == '=') {
+      result.push(text.substring(cursor, cursor + length));
+      cursor += length;
+    } else if (op == '-') {
+      cursor += length;
+    } else {
+      // Skip the colon.
+      i++;
+      result.push(patch.substr(i, length));
+      i += length;
+    }
+  }
+  return result.join('');
+};
+
+/**
+ * Hashes a string the same way as Java's <code>String.hashCode()</code>, so
+ * we can check we have the html a patch was made against.
+ *
+ * @param {string} text The string to hash.
+ * @return {number} The hash, a signed 32 bit integer.
+ * @private
+ */
+wave.Rpc.hashCode_ = function(text) {
+  var hash = 0;
+  for (var i = 0; i < text.length; i++) {
+    hash = (31 * hash + text.charCodeAt(i)) | 0;
+  }
+  return hash;
+};
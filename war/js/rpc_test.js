@@ -308,3 +308,314 @@ function testUpdateBlip() {
   assertEquals(expectedBlipId, replacedBlipId);
   assertEquals(expectedHtml, replacedHtml);
 }
+
+
+function testPatchBlipAppliesToLastFullHtml() {
+  window = {};
+  window.waveOptions_ = {};
+
+  var insertedHtml = [];
+  var rpc = new wave.Rpc({
+    exists: function(selector) {
+      return false;
+    },
+    insertBlip: function(blipId, parent, indent, html, version) {
+      insertedHtml.push(html);
+      return {slideDown: function() {}};
+    }
+  });
+
+  rpc.handleRpcResponse_([{
+    action: 'add-blip',
+    blipId: 'aBlipId',
+    html: 'Hello world',
+    version: 1
+  }, {
+    action: 'patch-blip',
+    blipId: 'aBlipId',
+    html: '=6+7:there, =5',
+    version: 2,
+    baseVersion: 1,
+    baseHash: wave.Rpc.hashCode_('Hello world')
+  }]);
+
+  assertEquals('Hello there, world', insertedHtml[1]);
+  assertEquals(2, window.waveOptions_['patchbase_aBlipId']);
+}
+
+
+function testPatchBlipAgainstUnknownHtmlAsksForResend() {
+  window = {};
+  window.waveOptions_ = {};
+
+  var rpc = new wave.Rpc({});
+  rpc.handleRpcResponse_([{
+    action: 'patch-blip',
+    blipId: 'aBlipId',
+    html: '=6+7:there, =5',
+    version: 2,
+    baseVersion: 1,
+    baseHash: 0
+  }]);
+
+  assertEquals(1, window.waveOptions_['resendblip_aBlipId']);
+}
+
+
+function testUpdateWaveWindowReportsPosition() {
+  window = {};
+  window.waveOptions_ = {};
+  window.waveOptions_.waveId = 'aWaveId';
+
+  var insertedHtml, openedStart, openedTotal;
+  window.wave.uiCallbacks_ = {};
+  window.wave.uiCallbacks_.waveWindowOpened = function(start, total) {
+    openedStart = start;
+    openedTotal = total;
+  };
+  var rpc = new wave.Rpc({
+    insertWaveWindow: function(html) {
+      insertedHtml = html;
+    }
+  });
+
+  rpc.handleRpcResponse_([{
+    action: 'update-wave-window',
+    waveId: 'aWaveId',
+    html: '<some_html>',
+    version: 42,
+    windowStart: 100,
+    windowTotal: 5000
+  }]);
+
+  assertEquals('<some_html>', insertedHtml);
+  assertEquals(42, window.waveOptions_.waveVersion);
+  assertEquals(100, openedStart);
+  assertEquals(5000, openedTotal);
+}
+
+function testUpdateInlineReplyInsertsThread() {
+  window = {};
+  window.waveOptions_ = {};
+  window.waveOptions_.waveId = 'aWaveId';
+
+  var insertedId, insertedHtml;
+  var rpc = new wave.Rpc({
+    insertInlineReply: function(inlineReplyId, html) {
+      insertedId = inlineReplyId;
+      insertedHtml = html;
+    }
+  });
+
+  rpc.handleRpcResponse_([{
+    action: 'update-inline-reply',
+    waveId: 'aWaveId',
+    blipId: 'aThreadId',
+    html: '<some_html>'
+  }]);
+
+  assertEquals('aThreadId', insertedId);
+  assertEquals('<some_html>', insertedHtml);
+}
+
+function testAsyncUpdateSendsOnlyEditsWhilePolling() {
+  window = {};
+  window.waveOptions_ = {};
+
+  var hasEdits = false;
+  var rpc = new wave.Rpc({
+    addPendingEdits: function() {},
+    hasPendingEdits: function() { return hasEdits; },
+    clearPendingEdits: function() {}
+  });
+  var urls = [];
+  var completes = [];
+  rpc.rpc_ = function(url, opt_complete) {
+    urls.push(url);
+    completes.push(opt_complete);
+  };
+
+  rpc.rpcAsyncUpdate();
+  rpc.rpcAsyncUpdate();
+  hasEdits = true;
+  rpc.rpcAsyncUpdate();
+  assertEquals(2, urls.length);
+  assertEquals(wave.Rpc.ASYNC_UPDATE_URL_, urls[0]);
+  assertEquals(wave.Rpc.SYNC_EDIT_URL_, urls[1]);
+
+  // Once the poll is answered, the next update polls again.
+  completes[0]();
+  rpc.rpcAsyncUpdate();
+  assertEquals(wave.Rpc.ASYNC_UPDATE_URL_, urls[2]);
+}
+
+function testStreamedUpdatesAreNotPolled() {
+  BOOTSTRAP = {eventStreams: true};
+  window = {};
+  window.waveOptions_ = {waveId: 'aWaveId', waveVersion: 4};
+  var streams = [];
+  window.EventSource = function(url) {
+    this.url = url;
+    this.close = function() {
+      this.closed = true;
+    };
+    streams.push(this);
+  };
+
+  var rpc = new wave.Rpc({
+    addPendingEdits: function() {},
+    hasPendingEdits: function() { return false; },
+    clearPendingEdits: function() {}
+  });
+  rpc.eventStreamUrl_ = function() {
+    return window.waveOptions_.waveId;
+  };
+  var urls = [];
+  rpc.rpc_ = function(url) {
+    urls.push(url);
+  };
+
+  rpc.rpcAsyncUpdate();
+  rpc.rpcAsyncUpdate();
+  assertEquals(1, streams.length);
+  assertEquals('aWaveId', streams[0].url);
+  assertEquals(0, urls.length);
+
+  // Opening another wave closes the stream, and polls until it has loaded.
+  window.waveOptions_.waveId = 'anotherWaveId';
+  window.waveOptions_.waveVersion = -1;
+  rpc.rpcAsyncUpdate();
+  assertTrue(streams[0].closed);
+  assertEquals(wave.Rpc.ASYNC_UPDATE_URL_, urls[0]);
+}
+
+function testUpdatesArePolledUnlessEventStreamsAreOn() {
+  BOOTSTRAP = {eventStreams: false};
+  window = {};
+  window.waveOptions_ = {waveId: 'aWaveId', waveVersion: 4};
+  var streams = [];
+  window.EventSource = function(url) {
+    streams.push(this);
+  };
+
+  var rpc = new wave.Rpc({
+    addPendingEdits: function() {},
+    hasPendingEdits: function() { return false; },
+    clearPendingEdits: function() {}
+  });
+  var urls = [];
+  rpc.rpc_ = function(url) {
+    urls.push(url);
+  };
+
+  rpc.rpcAsyncUpdate();
+  assertEquals(0, streams.length);
+  assertEquals(wave.Rpc.ASYNC_UPDATE_URL_, urls[0]);
+}
+
+function testReopenedWaveReplaysItsLastResponse() {
+  window = {};
+  window.waveOptions_ = {waveId: 'aWaveId', page: 0, 'client.type': 'full'};
+  var rpc = new wave.Rpc({});
+  var handled = [];
+  rpc.handleRpcResponse_ = function(data) {
+    handled.push(data);
+  };
+  var requests = [];
+  var ajax = $.ajax;
+  $.ajax = function(settings) {
+    requests.push(settings);
+  };
+
+  var headers = {};
+  var xhr = {
+    status: 200,
+    getResponseHeader: function(name) {
+      return name == 'ETag' ? '"v1"' : null;
+    },
+    setRequestHeader: function(name, value) {
+      headers[name] = value;
+    }
+  };
+  try {
+    rpc.rpcOpenWave();
+    requests[0].beforeSend(xhr);
+    assertEquals('POST', requests[0].type);
+    assertEquals(undefined, headers['If-None-Match']);
+    var response = [{action: 'update-wave'}];
+    requests[0].success(response, 'success', xhr);
+
+    // The wave has not changed since.
+    rpc.rpcOpenWave();
+    requests[1].beforeSend(xhr);
+    assertEquals('GET', requests[1].type);
+    assertEquals('"v1"', headers['If-None-Match']);
+    xhr.status = 304;
+    requests[1].success(null, 'success', xhr);
+    assertEquals(2, handled.length);
+    assertEquals(response, handled[1]);
+  } finally {
+    $.ajax = ajax;
+  }
+}
+
+function testEditAcknowledgementsSettleEdits() {
+  window = {};
+  window.waveOptions_ = {};
+  var acks = [];
+  var rpc = new wave.Rpc({
+    ackEdit: function(blipId, retry) {
+      acks.push(blipId + (retry ? ' retry' : ' saved'));
+    }
+  });
+
+  rpc.handleRpcResponse_([
+    {action: 'ack-edit', blipId: 'b-1'},
+    {action: 'retry-edit', blipId: 'b-2'}
+  ]);
+  assertEquals(2, acks.length);
+  assertEquals('b-1 saved', acks[0]);
+  assertEquals('b-2 retry', acks[1]);
+}
+
+function testTurnedAwayRequestsAreRetried() {
+  window = {};
+  window.waveOptions_ = {waveId: 'aWaveId', page: 1};
+  var timeouts = [];
+  window.setTimeout = function(callback, millis) {
+    timeouts.push({callback: callback, millis: millis});
+  };
+  var rpc = new wave.Rpc({});
+  var requests = [];
+  var ajax = $.ajax;
+  $.ajax = function(settings) {
+    requests.push(settings);
+  };
+
+  var completed = 0;
+  var xhr = {
+    status: 429,
+    getResponseHeader: function(name) {
+      return name == 'Retry-After' ? '2' : null;
+    }
+  };
+  try {
+    rpc.rpc_('url', function() {
+      completed++;
+    });
+    window.waveOptions_.page = 2;
+    requests[0].error(xhr);
+    requests[0].complete();
+    assertEquals(0, completed);
+    assertEquals(2000, timeouts[0].millis);
+
+    // The retry sends what the first request did.
+    timeouts[0].callback();
+    assertEquals(1, requests[1].data.page);
+    requests[1].success([], 'success', {status: 200});
+    requests[1].complete();
+    assertEquals(1, completed);
+  } finally {
+    $.ajax = ajax;
+  }
+}